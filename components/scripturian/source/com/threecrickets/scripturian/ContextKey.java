@@ -0,0 +1,155 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed key for an {@link ExecutionContext} attribute that is accessed often,
+ * such as the per-context state of a language adapter.
+ * <p>
+ * Each registered key is assigned a dense slot index, so that
+ * {@link ExecutionContext#getAttribute(ContextKey)} is an array lookup rather
+ * than a hash lookup. The attribute remains available under its name via
+ * {@link ExecutionContext#getAttributes()}, and the two views are always
+ * consistent.
+ * <p>
+ * Keys should be registered once, in static fields.
+ *
+ * @author Tal Liron
+ * @param <T>
+ *        The attribute type
+ */
+public final class ContextKey<T>
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Registers a key, or returns the key already registered for the name.
+	 *
+	 * @param <T>
+	 *        The attribute type
+	 * @param name
+	 *        The attribute name
+	 * @return The key
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ContextKey<T> register( String name )
+	{
+		ContextKey<?> key = keys.get( name );
+		if( key == null )
+		{
+			synchronized( keys )
+			{
+				key = keys.get( name );
+				if( key == null )
+				{
+					key = new ContextKey<T>( name, keys.size() );
+					keys.put( name, key );
+				}
+			}
+		}
+		return (ContextKey<T>) key;
+	}
+
+	/**
+	 * The registered key for an attribute name.
+	 *
+	 * @param name
+	 *        The attribute name
+	 * @return The key or null
+	 */
+	public static ContextKey<?> get( String name )
+	{
+		return keys.get( name );
+	}
+
+	/**
+	 * The number of registered keys.
+	 *
+	 * @return The number of keys
+	 */
+	public static int getCount()
+	{
+		return keys.size();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The attribute name.
+	 *
+	 * @return The name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * The slot index.
+	 *
+	 * @return The index
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "ContextKey: " + name + ", " + index;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Registered keys.
+	 */
+	private static final ConcurrentMap<String, ContextKey<?>> keys = new ConcurrentHashMap<String, ContextKey<?>>();
+
+	/**
+	 * The attribute name.
+	 */
+	private final String name;
+
+	/**
+	 * The slot index.
+	 */
+	private final int index;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *        The attribute name
+	 * @param index
+	 *        The slot index
+	 */
+	private ContextKey( String name, int index )
+	{
+		this.name = name;
+		this.index = index;
+	}
+}
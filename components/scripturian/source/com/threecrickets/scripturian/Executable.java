@@ -12,16 +12,36 @@
 package com.threecrickets.scripturian;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import com.threecrickets.scripturian.document.DocumentDescriptor;
 import com.threecrickets.scripturian.document.DocumentSource;
 import com.threecrickets.scripturian.exception.DocumentException;
 import com.threecrickets.scripturian.exception.ExecutionException;
+import com.threecrickets.scripturian.exception.ExecutionTimeoutException;
 import com.threecrickets.scripturian.exception.ParsingException;
+import com.threecrickets.scripturian.internal.CurrentExecutionContext;
+import com.threecrickets.scripturian.internal.EnterableExecutionContextPool;
+import com.threecrickets.scripturian.internal.EnterableExecutionContextReaper;
+import com.threecrickets.scripturian.internal.ExecutionDeadline;
+import com.threecrickets.scripturian.internal.ResourceUsage;
 import com.threecrickets.scripturian.service.ExecutableService;
 
 /**
@@ -81,7 +101,8 @@ import com.threecrickets.scripturian.service.ExecutableService;
  * method, lambda, closure or macro, or even sending a network request. This
  * phase follows a special execution phase via a call to
  * {@link #makeEnterable(Object, ExecutionContext, Object, ExecutionController)}
- * , after which all entries use the same {@link ExecutionContext}. Passing
+ * , after which all entries use the same {@link ExecutionContext}, or one of a
+ * pool of them. Passing
  * state is handled differently in entry vs. execution: in entry, support is for
  * sending a list of "argument" states and returning a single state value.
  * <p>
@@ -124,6 +145,40 @@ public class Executable
 	 */
 	public static final String ON_THE_FLY_PREFIX = "_ON_THE_FLY_";
 
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The maximum time in milliseconds an executable may go unused before its
+	 * enterable execution contexts are released in the background, freeing
+	 * their engine state. A later call to
+	 * {@link #makeEnterable(Object, ExecutionContext, Object, ExecutionController)}
+	 * can make the executable enterable again.
+	 * <p>
+	 * Enterable execution contexts are in any case released in the background
+	 * after the executable is garbage collected.
+	 * 
+	 * @return The maximum idle time, or -1 (the default) to never release idle
+	 *         contexts
+	 * @see #setMaximumEnterableIdleTime(long)
+	 * @see #getLastUsedTimestamp()
+	 */
+	public static long getMaximumEnterableIdleTime()
+	{
+		return EnterableExecutionContextReaper.getMaximumIdleTime();
+	}
+
+	/**
+	 * @param maximumEnterableIdleTime
+	 *        The maximum idle time in milliseconds, or -1
+	 * @see #getMaximumEnterableIdleTime()
+	 */
+	public static void setMaximumEnterableIdleTime( long maximumEnterableIdleTime )
+	{
+		EnterableExecutionContextReaper.setMaximumIdleTime( maximumEnterableIdleTime );
+	}
+
 	//
 	// Static operations
 	//
@@ -263,6 +318,34 @@ public class Executable
 		// Flatten list into array
 		this.segments = new ExecutableSegment[segments.size()];
 		segments.toArray( this.segments );
+
+		metrics = ExecutionMetrics.getMetrics( partition );
+		executionStatistics = metrics.getDocumentExecutionStatistics( documentName );
+		entryStatistics = metrics.getDocumentEntryStatistics( documentName );
+
+		// Bind adapters to program segments
+		Set<LanguageAdapter> adapters = new LinkedHashSet<LanguageAdapter>();
+		LanguageAdapter lastAdapter = null;
+		for( ExecutableSegment segment : this.segments )
+		{
+			if( segment.isProgram )
+			{
+				if( segment.adapter == null )
+				{
+					segment.adapter = languageManager.getAdapterByTag( segment.languageTag );
+					if( segment.adapter == null )
+						throw ParsingException.adapterNotFound( documentName, segment.startLineNumber, segment.startColumnNumber, segment.languageTag );
+				}
+
+				adapters.add( segment.adapter );
+				lastAdapter = segment.adapter;
+
+				segment.statistics = new ExecutionStatistics();
+				segment.languageTagStatistics = metrics.getLanguageTagStatistics( segment.languageTag );
+			}
+		}
+		this.adapters = adapters.toArray( new LanguageAdapter[adapters.size()] );
+		this.lastAdapter = lastAdapter;
 	}
 
 	//
@@ -354,6 +437,54 @@ public class Executable
 		return lastUsedTimestamp;
 	}
 
+	/**
+	 * The segments, which can be programs, scriptlets or plain-text. Program
+	 * segments have their own execution statistics.
+	 * 
+	 * @return The segments
+	 * @see ExecutableSegment#statistics
+	 */
+	public List<ExecutableSegment> getSegments()
+	{
+		return Collections.unmodifiableList( Arrays.asList( segments ) );
+	}
+
+	/**
+	 * The execution metrics for the executable's partition.
+	 * 
+	 * @return The metrics
+	 */
+	public ExecutionMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Statistics for executions of the document. These are shared by all
+	 * executables for the same document name in the partition, so they
+	 * survive recompilation.
+	 * 
+	 * @return The execution statistics
+	 * @see #execute(ExecutionContext, Object, ExecutionController)
+	 */
+	public ExecutionStatistics getExecutionStatistics()
+	{
+		return executionStatistics;
+	}
+
+	/**
+	 * Statistics for entries of the document. These are shared by all
+	 * executables for the same document name in the partition, so they
+	 * survive recompilation.
+	 * 
+	 * @return The entry statistics
+	 * @see #enter(Object, String, Object...)
+	 */
+	public ExecutionStatistics getEntryStatistics()
+	{
+		return entryStatistics;
+	}
+
 	/**
 	 * Returns the source code in the trivial case of a "text-with-scriptlets"
 	 * executable that contains no scriptlets. Identifying such executables can
@@ -375,7 +506,8 @@ public class Executable
 	}
 
 	/**
-	 * The enterable execution context for an entering key.
+	 * The enterable execution context for an entering key. If there is more
+	 * than one, returns the first.
 	 * 
 	 * @param enteringKey
 	 *        The entering key
@@ -386,7 +518,8 @@ public class Executable
 	 */
 	public ExecutionContext getEnterableExecutionContext( Object enteringKey )
 	{
-		return enterableExecutionContexts.get( enteringKey );
+		EnterableExecutionContextPool pool = enterableExecutionContexts.get( enteringKey );
+		return pool != null ? pool.getFirst() : null;
 	}
 
 	/**
@@ -444,77 +577,59 @@ public class Executable
 	 * @throws IOException
 	 *         In case of a writing error
 	 */
-	public void execute( ExecutionContext executionContext, Object containerService, ExecutionController executionController ) throws ParsingException, ExecutionException, IOException
+	public void execute( final ExecutionContext executionContext, final Object containerService, final ExecutionController executionController ) throws ParsingException, ExecutionException, IOException
 	{
 		if( executionContext == null )
 			throw new ExecutionException( documentName, "Execute does not have an execution context" );
 
-		ExecutionContext oldExecutionContext = executionContext.makeCurrent();
-
-		if( !executionContext.isImmutable() && executionController != null )
-			executionController.initialize( executionContext );
-
-		Object oldExecutableService = null;
-		if( !executionContext.isImmutable() )
-			oldExecutableService = executionContext.getServices().put( executableServiceName, new ExecutableService( executionContext, languageManager, parserManager, containerService ) );
+		if( CurrentExecutionContext.current.isInScope( executionContext ) )
+		{
+			// Already executing in this context (for example, an inclusion)
+			executeInScope( executionContext, containerService, executionController, true );
+			return;
+		}
 
 		try
 		{
-			for( ExecutableSegment segment : segments )
+			CurrentExecutionContext.current.call( executionContext, new Callable<Void>()
 			{
-				if( !segment.isProgram )
-					// Literal
-					executionContext.getWriter().write( segment.sourceCode );
-				else
+				public Void call() throws Exception
 				{
-					LanguageAdapter adapter = languageManager.getAdapterByTag( segment.languageTag );
-					if( adapter == null )
-						throw ParsingException.adapterNotFound( documentName, segment.startLineNumber, segment.startColumnNumber, segment.languageTag );
-
-					if( !executionContext.isImmutable() )
-						executionContext.addAdapter( adapter );
-
-					if( !adapter.isThreadSafe() )
-						adapter.getLock().lock();
-
+					ExecutionDeadline deadline = ExecutionDeadline.start( executionContext, documentName );
 					try
 					{
-						segment.program.execute( executionContext );
-					}
-					catch( ParsingException x )
-					{
-						x.setExectable( this );
-						throw x;
-					}
-					catch( ExecutionException x )
-					{
-						x.setExectable( this );
-						throw x;
+						executeInScope( executionContext, containerService, executionController, false );
 					}
 					finally
 					{
-						if( !adapter.isThreadSafe() )
-							adapter.getLock().unlock();
+						if( deadline != null )
+							deadline.finish();
 					}
-
-					if( !executionContext.isImmutable() )
-						executionContext.addAdapter( adapter );
+					executionContext.flushAfterExecution();
+					return null;
 				}
-			}
+			} );
 		}
-		finally
+		catch( ParsingException x )
 		{
-			if( !executionContext.isImmutable() && oldExecutableService != null )
-				executionContext.getServices().put( executableServiceName, oldExecutableService );
-
-			if( !executionContext.isImmutable() && executionController != null )
-				executionController.release( executionContext );
-
-			if( oldExecutionContext != null )
-				oldExecutionContext.makeCurrent();
+			throw x;
+		}
+		catch( ExecutionException x )
+		{
+			throw x;
+		}
+		catch( IOException x )
+		{
+			throw x;
+		}
+		catch( RuntimeException x )
+		{
+			throw x;
+		}
+		catch( Exception x )
+		{
+			throw new ExecutionException( documentName, x.getMessage(), x );
 		}
-
-		lastUsedTimestamp = System.currentTimeMillis();
 	}
 
 	/**
@@ -538,6 +653,76 @@ public class Executable
 		execute( ExecutionContext.getCurrent(), containerService, executionController );
 	}
 
+	/**
+	 * Executes the executable asynchronously using an executor, for example a
+	 * thread pool, so that the calling thread does not block on execution.
+	 * <p>
+	 * The execution context is made current for the executor thread during
+	 * execution, and that thread's previous current context (if any) is
+	 * restored afterwards. The calling thread's current context is not
+	 * affected. Note that execution contexts are not thread-safe: do not use
+	 * the execution context until the returned future is done.
+	 * <p>
+	 * A failure is reported by the future as a
+	 * {@link java.util.concurrent.ExecutionException} with the
+	 * {@link ParsingException}, {@link ExecutionException} or
+	 * {@link IOException} as its cause.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param containerService
+	 *        The optional container service
+	 * @param executionController
+	 *        The optional {@link ExecutionController} to be applied to the
+	 *        execution context
+	 * @param executor
+	 *        The executor
+	 * @return A future for the execution
+	 * @see #execute(ExecutionContext, Object, ExecutionController)
+	 */
+	public Future<Void> executeAsync( final ExecutionContext executionContext, final Object containerService, final ExecutionController executionController, Executor executor )
+	{
+		FutureTask<Void> task = new FutureTask<Void>( new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				execute( executionContext, containerService, executionController );
+				return null;
+			}
+		} );
+		executor.execute( task );
+		return task;
+	}
+
+	/**
+	 * Creates a publisher for the output of an execution. The execution starts
+	 * on the executor when a subscriber subscribes, and its output is sent as
+	 * chunks of bytes as the subscriber requests them, so that a slow
+	 * subscriber slows down the execution rather than causing output to pile
+	 * up in memory.
+	 * <p>
+	 * The execution context's standard output is replaced by the publisher.
+	 * Failures are reported to the subscriber.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param containerService
+	 *        The optional container service
+	 * @param executionController
+	 *        The optional {@link ExecutionController} to be applied to the
+	 *        execution context
+	 * @param charset
+	 *        The charset for encoding the output
+	 * @param executor
+	 *        The executor
+	 * @return The publisher
+	 * @see OutputPublisher
+	 */
+	public OutputPublisher publish( ExecutionContext executionContext, Object containerService, ExecutionController executionController, Charset charset, Executor executor )
+	{
+		return new OutputPublisher( this, executionContext, containerService, executionController, charset, executor );
+	}
+
 	/**
 	 * Makes an execution context enterable, in preparation for calling
 	 * {@link ExecutionContext#enter(String, Object...)}.
@@ -595,19 +780,106 @@ public class Executable
 	 *         In case of a writing error
 	 */
 	public boolean makeEnterable( Object enteringKey, ExecutionContext executionContext, Object containerService, ExecutionController executionController ) throws ParsingException, ExecutionException, IOException
+	{
+		return makeEnterable( enteringKey, executionContext, containerService, executionController, 1 );
+	}
+
+	/**
+	 * Makes an execution context enterable, in preparation for calling
+	 * {@link ExecutionContext#enter(String, Object...)}.
+	 * <p>
+	 * Up to a maximum number of execution contexts can be made enterable per
+	 * entering key for an executable. Each call to
+	 * {@link #enter(Object, String, Object...)} checks out a context that is not
+	 * used by another thread, so that concurrent entries do not contend on the
+	 * same engine state. If all contexts are in use, and the maximum has not
+	 * been reached, a new context is created lazily: it gets the writers and
+	 * library locations of the first context, and is made enterable with the
+	 * same container service and execution controller. Note that services are
+	 * <i>not</i> copied, so they should be set up by the execution controller.
+	 * If the maximum has been reached, contexts are shared.
+	 * <p>
+	 * The maximum is set by the first call for an entering key. If this call
+	 * succeeds and returns true, the execution context should be considered
+	 * "consumed" by this executable. At this point it is immutable, and can only
+	 * be released by calling {@link #release()} on the executable.
+	 * 
+	 * @param enteringKey
+	 *        The entering key
+	 * @param executionContext
+	 *        The execution context
+	 * @param containerService
+	 *        The optional container service
+	 * @param executionController
+	 *        The optional {@link ExecutionController} to be applied to the
+	 *        execution context
+	 * @param maximumSize
+	 *        The maximum number of enterable execution contexts for the
+	 *        entering key
+	 * @return False if we already have the maximum number of enterable
+	 *         contexts and the execution context was not consumed, true if the
+	 *         operation succeeded and execution context was consumed
+	 * @throws ParsingException
+	 *         In case of a parsing error
+	 * @throws ExecutionException
+	 *         In case of an execution error
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	public boolean makeEnterable( Object enteringKey, ExecutionContext executionContext, Object containerService, ExecutionController executionController, int maximumSize ) throws ParsingException, ExecutionException,
+		IOException
 	{
 		if( executionContext.enterableExecutable != null )
 			throw new IllegalStateException( "Execution context was already made enterable for another executable" );
 
-		execute( executionContext, containerService, executionController );
+		EnterableExecutionContextPool pool;
+		while( true )
+		{
+			pool = enterableExecutionContexts.get( enteringKey );
+			if( pool == null )
+			{
+				pool = new EnterableExecutionContextPool( maximumSize, containerService, executionController );
+				EnterableExecutionContextPool existing = enterableExecutionContexts.putIfAbsent( enteringKey, pool );
+				if( existing != null )
+					pool = existing;
+			}
+
+			if( pool.acquire() )
+				break;
 
-		if( enterableExecutionContexts.putIfAbsent( enteringKey, executionContext ) != null )
-			return false;
+			// The pool is being reaped
+			Thread.yield();
+		}
+
+		try
+		{
+			if( !pool.reserve() )
+				return false;
+
+			boolean added = false;
+			try
+			{
+				execute( executionContext, containerService, executionController );
+
+				executionContext.enterableExecutable = getReference();
+				executionContext.enteringKey = enteringKey;
+				executionContext.enterableExecutionContextPool = pool;
+				executionContext.makeImmutable();
+				pool.add( executionContext, false );
+				added = true;
+			}
+			finally
+			{
+				if( !added )
+					pool.cancelReservation();
+			}
 
-		executionContext.enterableExecutable = this;
-		executionContext.enteringKey = enteringKey;
-		executionContext.makeImmutable();
-		return true;
+			return true;
+		}
+		finally
+		{
+			pool.relinquish();
+		}
 	}
 
 	/**
@@ -637,16 +909,130 @@ public class Executable
 	 */
 	public Object enter( Object enteringKey, String entryPointName, Object... arguments ) throws ParsingException, ExecutionException, NoSuchMethodException
 	{
-		ExecutionContext enterableExecutionContext = enterableExecutionContexts.get( enteringKey );
-		if( enterableExecutionContext == null )
-			throw new IllegalStateException( "Executable does not have an enterable execution context for key: " + enteringKey );
+		EnterableExecutionContextPool pool;
+		while( true )
+		{
+			pool = enterableExecutionContexts.get( enteringKey );
+			if( pool == null )
+				throw new IllegalStateException( "Executable does not have an enterable execution context for key: " + enteringKey );
 
-		if( enterableExecutionContext.enterableExecutable != this )
-			throw new ExecutionException( documentName, "Attempted to enter executable using an uninitialized execution context" );
+			if( pool.acquire() )
+				break;
 
-		Object r = enterableExecutionContext.enter( entryPointName, arguments );
-		lastUsedTimestamp = System.currentTimeMillis();
-		return r;
+			// The pool is being reaped
+			Thread.yield();
+		}
+
+		try
+		{
+			ExecutionContext enterableExecutionContext = pool.checkout();
+			if( enterableExecutionContext == null )
+				enterableExecutionContext = createEnterableExecutionContext( enteringKey, pool );
+			boolean checkedOut = enterableExecutionContext != null;
+			if( !checkedOut )
+				enterableExecutionContext = pool.share();
+
+			if( enterableExecutionContext == null )
+				throw new IllegalStateException( "Executable does not have an enterable execution context for key: " + enteringKey );
+
+			boolean statistics = ExecutionMetrics.isStatistics();
+			boolean timed = statistics || ExecutionMetrics.hasListeners();
+			long start = timed ? System.nanoTime() : 0;
+			ResourceUsage resourceUsage = ExecutionMetrics.isResourceAccounting() ? ResourceUsage.start( documentName ) : null;
+			boolean succeeded = false;
+			Throwable failure = null;
+			try
+			{
+				if( enterableExecutionContext.getEnterableExecutable() != this )
+					throw new ExecutionException( documentName, "Attempted to enter executable using an uninitialized execution context" );
+
+				Object r = enterableExecutionContext.enter( entryPointName, arguments );
+				lastUsedTimestamp = System.currentTimeMillis();
+				succeeded = true;
+				return r;
+			}
+			catch( ParsingException x )
+			{
+				failure = x;
+				throw x;
+			}
+			catch( ExecutionException x )
+			{
+				failure = x;
+				throw x;
+			}
+			catch( NoSuchMethodException x )
+			{
+				failure = x;
+				throw x;
+			}
+			catch( RuntimeException x )
+			{
+				failure = x;
+				throw x;
+			}
+			finally
+			{
+				if( checkedOut )
+					pool.checkin( enterableExecutionContext );
+
+				long duration = timed ? System.nanoTime() - start : 0;
+				if( statistics )
+				{
+					entryStatistics.record( duration, !succeeded );
+					metrics.getEntryStatistics().record( duration, !succeeded );
+				}
+				if( resourceUsage != null )
+				{
+					resourceUsage.stop();
+					recordResourceUsage( resourceUsage, enterableExecutionContext, entryStatistics, metrics.getEntryStatistics() );
+				}
+				if( timed && ExecutionMetrics.hasListeners() )
+					ExecutionMetrics.fire( createEvent( enterableExecutionContext, entryPointName, duration, !succeeded, failure, resourceUsage ) );
+			}
+		}
+		finally
+		{
+			pool.relinquish();
+		}
+	}
+
+	/**
+	 * Enters the executable asynchronously using an executor, for example a
+	 * thread pool, so that the calling thread does not block on the entry.
+	 * <p>
+	 * The enterable execution context is made current for the executor thread
+	 * during the entry, and that thread's previous current context (if any) is
+	 * restored afterwards. The calling thread's current context is not
+	 * affected.
+	 * <p>
+	 * A failure is reported by the future as a
+	 * {@link java.util.concurrent.ExecutionException} with the
+	 * {@link ParsingException}, {@link ExecutionException} or
+	 * {@link NoSuchMethodException} as its cause.
+	 * 
+	 * @param enteringKey
+	 *        The entering key
+	 * @param entryPointName
+	 *        The name of the entry point
+	 * @param executor
+	 *        The executor
+	 * @param arguments
+	 *        Optional state to pass to the entry point
+	 * @return A future for the state returned from the entry point or null
+	 * @see #enter(Object, String, Object...)
+	 */
+	public Future<Object> enterAsync( final Object enteringKey, final String entryPointName, Executor executor, final Object... arguments )
+	{
+		FutureTask<Object> task = new FutureTask<Object>( new Callable<Object>()
+		{
+			public Object call() throws Exception
+			{
+				return enter( enteringKey, entryPointName, arguments );
+			}
+		} );
+		executor.execute( task );
+		return task;
 	}
 
 	/**
@@ -654,12 +1040,12 @@ public class Executable
 	 * 
 	 * @see #makeEnterable(Object, ExecutionContext, Object,
 	 *      ExecutionController)
-	 * @see #finalize()
+	 * @see #getMaximumEnterableIdleTime()
 	 */
 	public void release()
 	{
-		for( ExecutionContext enterableExecutionContext : enterableExecutionContexts.values() )
-			enterableExecutionContext.release();
+		for( Map.Entry<Object, EnterableExecutionContextPool> entry : enterableExecutionContexts.entrySet() )
+			EnterableExecutionContextReaper.release( enterableExecutionContexts, entry.getKey(), entry.getValue() );
 	}
 
 	//
@@ -682,17 +1068,7 @@ public class Executable
 	 * @see #makeEnterable(Object, ExecutionContext, Object,
 	 *      ExecutionController)
 	 */
-	protected final ConcurrentMap<Object, ExecutionContext> enterableExecutionContexts = new ConcurrentHashMap<Object, ExecutionContext>();
-
-	//
-	// Object
-	//
-
-	@Override
-	protected void finalize()
-	{
-		release();
-	}
+	protected final ConcurrentMap<Object, EnterableExecutionContextPool> enterableExecutionContexts = new ConcurrentHashMap<Object, EnterableExecutionContextPool>();
 
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
@@ -742,6 +1118,32 @@ public class Executable
 	 */
 	private final ExecutableSegment[] segments;
 
+	/**
+	 * The execution metrics for the partition.
+	 */
+	private final ExecutionMetrics metrics;
+
+	/**
+	 * Statistics for executions of the document.
+	 */
+	private final ExecutionStatistics executionStatistics;
+
+	/**
+	 * Statistics for entries of the document.
+	 */
+	private final ExecutionStatistics entryStatistics;
+
+	/**
+	 * The distinct language adapters bound to the program segments.
+	 */
+	private final LanguageAdapter[] adapters;
+
+	/**
+	 * The language adapter of the last program segment, or null if there are
+	 * no program segments.
+	 */
+	private final LanguageAdapter lastAdapter;
+
 	/**
 	 * The default name for the {@link ExecutableService} instance.
 	 */
@@ -753,6 +1155,368 @@ public class Executable
 	 */
 	private volatile long lastUsedTimestamp = 0;
 
+	/**
+	 * Lazily adds an enterable execution context to a pool, if it has not
+	 * reached its maximum size.
+	 * 
+	 * @param enteringKey
+	 *        The entering key
+	 * @param pool
+	 *        The pool
+	 * @return The new execution context, already checked out, or null if the
+	 *         pool is full
+	 * @throws ParsingException
+	 *         In case of a parsing error
+	 * @throws ExecutionException
+	 *         In case of an execution error
+	 */
+	private ExecutionContext createEnterableExecutionContext( Object enteringKey, EnterableExecutionContextPool pool ) throws ParsingException, ExecutionException
+	{
+		if( !pool.reserve() )
+			return null;
+
+		ExecutionContext executionContext = null;
+		boolean added = false;
+		try
+		{
+			ExecutionContext first = pool.getFirst();
+			if( first == null )
+				return null;
+
+			executionContext = new ExecutionContext( first.getWriter(), first.getErrorWriter() );
+			executionContext.getLibraryLocations().addAll( first.getLibraryLocations() );
+
+			// Services set up before the executable was made enterable, but not
+			// the first context's executable service, which execution replaces
+			Map<String, Object> services = executionContext.getServices();
+			services.putAll( first.getServices() );
+			services.remove( executableServiceName );
+
+			try
+			{
+				execute( executionContext, pool.getContainerService(), pool.getExecutionController() );
+			}
+			catch( IOException x )
+			{
+				throw new ExecutionException( documentName, x );
+			}
+
+			executionContext.enterableExecutable = getReference();
+			executionContext.enteringKey = enteringKey;
+			executionContext.enterableExecutionContextPool = pool;
+			executionContext.makeImmutable();
+			pool.add( executionContext, true );
+			added = true;
+			return executionContext;
+		}
+		finally
+		{
+			if( !added )
+			{
+				pool.cancelReservation();
+				if( executionContext != null )
+					executionContext.release();
+			}
+		}
+	}
+
+	/**
+	 * The weak reference to this executable used by its enterable execution
+	 * contexts. Registered with the reaper on first use.
+	 */
+	private WeakReference<Executable> reference;
+
+	/**
+	 * The weak reference to this executable used by its enterable execution
+	 * contexts, registering it with the reaper if necessary.
+	 * 
+	 * @return The reference
+	 * @see EnterableExecutionContextReaper
+	 */
+	private synchronized WeakReference<Executable> getReference()
+	{
+		if( reference == null )
+			reference = EnterableExecutionContextReaper.register( this, enterableExecutionContexts );
+		return reference;
+	}
+
+	/**
+	 * Executes the executable, with the execution context already bound to
+	 * this thread.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param containerService
+	 *        The optional container service
+	 * @param executionController
+	 *        The optional execution controller
+	 * @param included
+	 *        Whether we are included in another execution in this thread
+	 * @throws ParsingException
+	 *         In case of a parsing error
+	 * @throws ExecutionException
+	 *         In case of an execution error
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private void executeInScope( ExecutionContext executionContext, Object containerService, ExecutionController executionController, boolean included ) throws ParsingException, ExecutionException, IOException
+	{
+		boolean statistics = ExecutionMetrics.isStatistics();
+		boolean timed = statistics || ExecutionMetrics.hasListeners();
+		long start = timed ? System.nanoTime() : 0;
+		boolean mutable = !executionContext.isImmutable();
+		ExtendedExecutionController hooks = executionController instanceof ExtendedExecutionController ? (ExtendedExecutionController) executionController : null;
+
+		if( mutable && executionController != null )
+			executionController.initialize( executionContext );
+
+		Object oldExecutableService = null;
+		if( mutable )
+		{
+			oldExecutableService = executionContext.getServices().put( executableServiceName, new ExecutableService( executionContext, languageManager, parserManager, containerService ) );
+			executionContext.addAdapters( adapters );
+		}
+
+		OutputStream outputStream = executionContext.getOutputStream();
+		Charset charset = outputStream != null ? executionContext.getCharset() : null;
+		ExecutionDeadline deadline = ExecutionDeadline.getCurrent();
+		ResourceUsage resourceUsage = null;
+		boolean entered = false;
+		boolean succeeded = false;
+		Throwable failure = null;
+		ExecutableSegment currentSegment = null;
+		try
+		{
+			if( ExecutionMetrics.isResourceAccounting() )
+				resourceUsage = ResourceUsage.start( documentName );
+
+			if( included && ( hooks != null ) )
+			{
+				hooks.enterInclude( executionContext, this, System.nanoTime() );
+				entered = true;
+			}
+
+			for( ExecutableSegment segment : segments )
+			{
+				if( ( deadline != null ) && deadline.isExpired() )
+					throw timedOut( deadline, null );
+
+				if( hooks != null )
+				{
+					currentSegment = segment;
+					hooks.beforeSegment( executionContext, this, segment, System.nanoTime() );
+				}
+
+				if( !segment.isProgram )
+				{
+					// Literal
+					if( outputStream != null )
+						outputStream.write( segment.getEncodedSourceCode( charset ) );
+					else
+						executionContext.getWriter().write( segment.sourceCode );
+				}
+				else
+				{
+					if( mutable )
+						executionContext.setAdapter( segment.adapter );
+
+					// The adapter's lock is held only while its program runs, so
+					// that no two adapter locks are held across writes or
+					// between segments
+					Lock lock = segment.adapter.isThreadSafe() ? null : segment.adapter.getLock();
+					long segmentStart = statistics ? System.nanoTime() : 0;
+					boolean segmentSucceeded = false;
+					try
+					{
+						if( lock != null )
+							lock.lock();
+						try
+						{
+							segment.program.execute( executionContext );
+						}
+						finally
+						{
+							if( lock != null )
+								lock.unlock();
+						}
+						segmentSucceeded = true;
+					}
+					catch( ParsingException x )
+					{
+						x.setExectable( this );
+						throw x;
+					}
+					catch( ExecutionTimeoutException x )
+					{
+						x.setExectable( this );
+						throw x;
+					}
+					catch( ExecutionException x )
+					{
+						x.setExectable( this );
+						if( ( deadline != null ) && deadline.isExpired() )
+							throw timedOut( deadline, x );
+						throw x;
+					}
+					catch( RuntimeException x )
+					{
+						if( ( deadline != null ) && deadline.isExpired() )
+							throw timedOut( deadline, x );
+						throw x;
+					}
+					catch( Error x )
+					{
+						if( ( deadline != null ) && deadline.isExpired() )
+							throw timedOut( deadline, x );
+						throw x;
+					}
+					finally
+					{
+						if( statistics )
+						{
+							long segmentDuration = System.nanoTime() - segmentStart;
+							segment.statistics.record( segmentDuration, !segmentSucceeded );
+							segment.languageTagStatistics.record( segmentDuration, !segmentSucceeded );
+						}
+					}
+				}
+
+				if( hooks != null )
+				{
+					hooks.afterSegment( executionContext, this, segment, System.nanoTime() );
+					currentSegment = null;
+				}
+			}
+
+			if( mutable && ( lastAdapter != null ) )
+				executionContext.setAdapter( lastAdapter );
+
+			succeeded = true;
+		}
+		catch( ParsingException x )
+		{
+			failure = x;
+			throw x;
+		}
+		catch( ExecutionException x )
+		{
+			failure = x;
+			throw x;
+		}
+		catch( IOException x )
+		{
+			failure = x;
+			throw x;
+		}
+		catch( RuntimeException x )
+		{
+			failure = x;
+			throw x;
+		}
+		catch( Error x )
+		{
+			failure = x;
+			throw x;
+		}
+		finally
+		{
+			if( ( hooks != null ) && ( failure != null ) )
+				hooks.failed( executionContext, this, currentSegment, failure, System.nanoTime() );
+
+			if( mutable && oldExecutableService != null )
+				executionContext.getServices().put( executableServiceName, oldExecutableService );
+
+			if( mutable && executionController != null )
+				executionController.release( executionContext );
+
+			long duration = timed ? System.nanoTime() - start : 0;
+			if( statistics )
+			{
+				executionStatistics.record( duration, !succeeded );
+				metrics.getExecutionStatistics().record( duration, !succeeded );
+			}
+			if( resourceUsage != null )
+			{
+				resourceUsage.stop();
+				recordResourceUsage( resourceUsage, executionContext, executionStatistics, metrics.getExecutionStatistics() );
+			}
+			if( timed && ExecutionMetrics.hasListeners() )
+				ExecutionMetrics.fire( createEvent( executionContext, null, duration, !succeeded, failure, resourceUsage ) );
+
+			if( entered )
+				hooks.exitInclude( executionContext, this, System.nanoTime() );
+		}
+
+		lastUsedTimestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records the resource usage of an execution or entry.
+	 * 
+	 * @param resourceUsage
+	 *        The stopped resource usage
+	 * @param executionContext
+	 *        The execution context
+	 * @param documentStatistics
+	 *        The statistics for this document
+	 * @param partitionStatistics
+	 *        The statistics for the partition
+	 */
+	private static void recordResourceUsage( ResourceUsage resourceUsage, ExecutionContext executionContext, ExecutionStatistics documentStatistics, ExecutionStatistics partitionStatistics )
+	{
+		long cpuTime = resourceUsage.getCpuTime();
+		long allocatedBytes = resourceUsage.getAllocatedBytes();
+		documentStatistics.recordResourceUsage( cpuTime, allocatedBytes );
+
+		// Nested executions are already included in the outermost one
+		if( resourceUsage.getParent() == null )
+			partitionStatistics.recordResourceUsage( cpuTime, allocatedBytes );
+
+		executionContext.setResourceUsage( cpuTime, allocatedBytes );
+	}
+
+	/**
+	 * Creates an event for listeners.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param entryPointName
+	 *        The entry point name, or null for an execution
+	 * @param duration
+	 *        The duration in nanoseconds
+	 * @param failed
+	 *        Whether the execution failed
+	 * @param throwable
+	 *        The failure or null
+	 * @param resourceUsage
+	 *        The stopped resource usage or null
+	 * @return The event
+	 */
+	private ExecutionEvent createEvent( ExecutionContext executionContext, String entryPointName, long duration, boolean failed, Throwable throwable, ResourceUsage resourceUsage )
+	{
+		if( resourceUsage != null )
+			return new ExecutionEvent( this, executionContext, entryPointName, duration, failed, throwable, resourceUsage.getCpuTime(), resourceUsage.getAllocatedBytes(), resourceUsage.getIncludeChain() );
+		else
+			return new ExecutionEvent( this, executionContext, entryPointName, duration, failed, throwable );
+	}
+
+	/**
+	 * Creates the exception for an execution that was stopped because its
+	 * deadline passed.
+	 * 
+	 * @param deadline
+	 *        The deadline
+	 * @param cause
+	 *        The error with which the execution was stopped, or null
+	 * @return The exception
+	 */
+	private ExecutionTimeoutException timedOut( ExecutionDeadline deadline, Throwable cause )
+	{
+		ExecutionTimeoutException x = deadline.createException( cause );
+		x.setExectable( this );
+		return x;
+	}
+
 	/**
 	 * Get the exposed service for the executable.
 	 * 
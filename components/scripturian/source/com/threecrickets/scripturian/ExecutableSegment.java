@@ -14,6 +14,7 @@ package com.threecrickets.scripturian;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.Charset;
 
 import com.threecrickets.scripturian.exception.ParsingException;
 import com.threecrickets.scripturian.internal.ScripturianUtil;
@@ -115,6 +116,48 @@ public class ExecutableSegment
 	 */
 	public Program program;
 
+	/**
+	 * The language adapter bound to the program.
+	 * 
+	 * @see #createProgram(Executable, LanguageManager, boolean, boolean)
+	 */
+	public LanguageAdapter adapter;
+
+	/**
+	 * Statistics for executions of the program, or null if this is not a
+	 * program.
+	 * 
+	 * @see ExecutionMetrics
+	 */
+	public ExecutionStatistics statistics;
+
+	/**
+	 * Statistics for executions of all programs in this segment's language in
+	 * the partition, or null if this is not a program.
+	 * 
+	 * @see ExecutionMetrics#getLanguageTagStatistics(String)
+	 */
+	public ExecutionStatistics languageTagStatistics;
+
+	/**
+	 * The source code encoded in a charset. The encoding is cached, so that
+	 * literal text segments are only encoded once per charset.
+	 * 
+	 * @param charset
+	 *        The charset
+	 * @return The encoded source code
+	 */
+	public byte[] getEncodedSourceCode( Charset charset )
+	{
+		EncodedSourceCode encodedSourceCode = this.encodedSourceCode;
+		if( ( encodedSourceCode == null ) || !encodedSourceCode.charset.equals( charset ) )
+		{
+			encodedSourceCode = new EncodedSourceCode( sourceCode, charset );
+			this.encodedSourceCode = encodedSourceCode;
+		}
+		return encodedSourceCode.bytes;
+	}
+
 	//
 	// Operations
 	//
@@ -136,6 +179,7 @@ public class ExecutableSegment
 	 * @see #isScriptlet
 	 * @see #languageTag
 	 * @see #program
+	 * @see #adapter
 	 */
 	public void createProgram( Executable executable, LanguageManager manager, boolean prepare, boolean debug ) throws ParsingException
 	{
@@ -182,6 +226,7 @@ public class ExecutableSegment
 			}
 		}
 
+		this.adapter = adapter;
 		program = adapter.createProgram( sourceCode, isScriptlet, position, startLineNumber, startColumnNumber, executable );
 
 		if( prepare )
@@ -197,4 +242,28 @@ public class ExecutableSegment
 	{
 		return "ExecutableSegment: " + languageTag + ( isProgram ? ", program, " : ", non-program, " ) + ( isScriptlet ? "scriptlet" : "non-scriptlet" );
 	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The cached encoded source code.
+	 */
+	private volatile EncodedSourceCode encodedSourceCode;
+
+	/**
+	 * Source code encoded in a charset.
+	 */
+	private static class EncodedSourceCode
+	{
+		public EncodedSourceCode( String sourceCode, Charset charset )
+		{
+			this.charset = charset;
+			bytes = sourceCode.getBytes( charset );
+		}
+
+		public final Charset charset;
+
+		public final byte[] bytes;
+	}
 }
\ No newline at end of file
@@ -12,21 +12,39 @@
 package com.threecrickets.scripturian;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.ref.WeakReference;
 import java.net.URI;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import com.threecrickets.scripturian.exception.ExecutionException;
+import com.threecrickets.scripturian.exception.ExecutionTimeoutException;
 import com.threecrickets.scripturian.exception.ParsingException;
-import com.threecrickets.scripturian.internal.ThreadLocalExecutionContext;
+import com.threecrickets.scripturian.internal.AttributeMap;
+import com.threecrickets.scripturian.internal.ByteSinkWriter;
+import com.threecrickets.scripturian.internal.CurrentExecutionContext;
+import com.threecrickets.scripturian.internal.EnterableExecutionContextPool;
+import com.threecrickets.scripturian.internal.ExecutionDeadline;
+import com.threecrickets.scripturian.internal.ForkableList;
+import com.threecrickets.scripturian.internal.PooledBufferedWriter;
+import com.threecrickets.scripturian.internal.ServiceMap;
 
 /**
  * Encapsulates context for an {@link Executable}.
@@ -46,11 +64,11 @@ import com.threecrickets.scripturian.internal.ThreadLocalExecutionContext;
  * The second occurs when
  * {@link Executable#makeEnterable(Object, ExecutionContext, Object, ExecutionController)}
  * is called, and then {@link Executable#enter(Object, String, Object...)} is
- * callable by concurrent threads. In this case, <i>all invoking threads share
- * the same execution context</i>. Because the context is immutable (internally
- * {@link #makeImmutable()} is called), it is "thread-safe" to the extent that
- * you better not try to modify it. Otherwise, an {@link IllegalStateException}
- * is thrown.
+ * callable by concurrent threads. In this case, <i>invoking threads share the
+ * same execution context</i>, or one of a pool of them. Because the context is
+ * immutable (internally {@link #makeImmutable()} is called), it is
+ * "thread-safe" to the extent that you better not try to modify it. Otherwise,
+ * an {@link IllegalStateException} is thrown.
  * 
  * @author Tal Liron
  */
@@ -61,7 +79,9 @@ public class ExecutionContext
 	//
 
 	/**
-	 * The execution context set for this thread.
+	 * The execution context set for this thread. This is either the context
+	 * of the innermost ongoing execution or entry, or the one set via
+	 * {@link #makeCurrent()}.
 	 * 
 	 * @return An execution context or null
 	 * @see #makeCurrent()
@@ -69,7 +89,7 @@ public class ExecutionContext
 	 */
 	public static ExecutionContext getCurrent()
 	{
-		ExecutionContext executionContext = ThreadLocalExecutionContext.current.get();
+		ExecutionContext executionContext = CurrentExecutionContext.current.get();
 		if( ( executionContext != null ) && executionContext.released )
 		{
 			disconnect();
@@ -91,7 +111,7 @@ public class ExecutionContext
 	 */
 	public static void disconnect()
 	{
-		ThreadLocalExecutionContext.current.set( null );
+		CurrentExecutionContext.current.remove();
 	}
 
 	//
@@ -126,9 +146,29 @@ public class ExecutionContext
 	 *        The standard error set for executables using this context
 	 */
 	public ExecutionContext( Writer writer, Writer errorWriter )
+	{
+		this( writer, errorWriter, new ForkableList<URI>(), new ServiceMap() );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param writer
+	 *        The standard output set for executables using this context
+	 * @param errorWriter
+	 *        The standard error set for executables using this context
+	 * @param libraryLocations
+	 *        The library locations
+	 * @param services
+	 *        The services
+	 * @see #fork(Writer)
+	 */
+	protected ExecutionContext( Writer writer, Writer errorWriter, ForkableList<URI> libraryLocations, ServiceMap services )
 	{
 		this.writer = writer;
 		this.errorWriter = errorWriter;
+		this.libraryLocations = libraryLocations;
+		this.services = services;
 	}
 
 	//
@@ -152,11 +192,74 @@ public class ExecutionContext
 			throw new IllegalStateException( "Cannot access released execution context" );
 
 		if( immutable )
-			return Collections.unmodifiableMap( attributes );
+			return frozenAttributes;
 		else
 			return attributes;
 	}
 
+	/**
+	 * Fast access to an attribute via its slot. This is equivalent to getting
+	 * the attribute by its name from {@link #getAttributes()}.
+	 * 
+	 * @param <T>
+	 *        The attribute type
+	 * @param key
+	 *        The key
+	 * @return The attribute value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute( ContextKey<T> key )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return (T) attributes.get( key );
+	}
+
+	/**
+	 * Sets an attribute. This is equivalent to putting the attribute by its
+	 * name into {@link #getAttributes()}.
+	 * 
+	 * @param <T>
+	 *        The attribute type
+	 * @param key
+	 *        The key
+	 * @param value
+	 *        The attribute value
+	 * @return The previous attribute value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T putAttribute( ContextKey<T> key, T value )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+		else if( immutable )
+			throw new IllegalStateException( "Cannot modify an immutable execution context" );
+
+		return (T) attributes.put( key.getName(), value );
+	}
+
+	/**
+	 * Removes an attribute. This is equivalent to removing the attribute by
+	 * its name from {@link #getAttributes()}.
+	 * 
+	 * @param <T>
+	 *        The attribute type
+	 * @param key
+	 *        The key
+	 * @return The previous attribute value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T removeAttribute( ContextKey<T> key )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+		else if( immutable )
+			throw new IllegalStateException( "Cannot modify an immutable execution context" );
+
+		return (T) attributes.remove( key.getName() );
+	}
+
 	/**
 	 * Locations where language adapters might search for extra libraries. The
 	 * exact use varies per language adapter. "Location" URIs are often
@@ -174,7 +277,7 @@ public class ExecutionContext
 			throw new IllegalStateException( "Cannot access released execution context" );
 
 		if( immutable )
-			return Collections.unmodifiableList( libraryLocations );
+			return frozenLibraryLocations;
 		else
 			return libraryLocations;
 	}
@@ -193,11 +296,49 @@ public class ExecutionContext
 			throw new IllegalStateException( "Cannot access released execution context" );
 
 		if( immutable )
-			return Collections.unmodifiableMap( services );
+			return frozenServices;
 		else
 			return services;
 	}
 
+	/**
+	 * The modification version of the services. Increases whenever a service
+	 * is added, changed or removed.
+	 * 
+	 * @return The version
+	 * @see #getServicesModifiedSince(long)
+	 */
+	public long getServicesVersion()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return services.getVersion();
+	}
+
+	/**
+	 * The services that were added or changed after a version. Language
+	 * adapters use this to avoid rebinding services that their engines have
+	 * already bound. Note that removed services are not included.
+	 * 
+	 * @param version
+	 *        The version, or 0 for all services
+	 * @return The services
+	 * @see #getServicesVersion()
+	 */
+	public Map<String, Object> getServicesModifiedSince( long version )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		if( version <= 0 )
+			return getServices();
+		else if( immutable && ( version >= services.getVersion() ) )
+			return Collections.emptyMap();
+		else
+			return services.getModifiedSince( version );
+	}
+
 	/**
 	 * The standard output set for executables using this context.
 	 * 
@@ -239,10 +380,197 @@ public class ExecutionContext
 			throw new IllegalStateException( "Cannot modify an immutable execution context" );
 
 		Writer old = this.writer;
-		this.writer = writer instanceof PrintWriter ? (PrintWriter) writer : new PrintWriter( writer, true );
+		releaseBuffer();
+		targetWriter = writer;
+		this.writer = wrap( writer );
+		byteSink = null;
 		return old;
 	}
 
+	/**
+	 * Determines when output written to the standard output is flushed to the
+	 * writer set via {@link #setWriter(Writer)}. Defaults to
+	 * {@link FlushPolicy#IMMEDIATE}.
+	 * 
+	 * @return The flush policy
+	 * @see #setFlushPolicy(FlushPolicy)
+	 */
+	public FlushPolicy getFlushPolicy()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return flushPolicy;
+	}
+
+	/**
+	 * Applies to the current writer, as well as those set later via
+	 * {@link #setWriter(Writer)}.
+	 * 
+	 * @param flushPolicy
+	 *        The flush policy
+	 * @see #getFlushPolicy()
+	 */
+	public void setFlushPolicy( FlushPolicy flushPolicy )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+		else if( immutable )
+			throw new IllegalStateException( "Cannot modify an immutable execution context" );
+
+		this.flushPolicy = flushPolicy;
+		rewrap();
+	}
+
+	/**
+	 * The amount of unflushed output in characters at which
+	 * {@link FlushPolicy#THRESHOLD} flushes. Defaults to
+	 * {@link PooledBufferedWriter#BUFFER_SIZE}.
+	 * 
+	 * @return The flush threshold
+	 * @see #setFlushThreshold(int)
+	 */
+	public int getFlushThreshold()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return flushThreshold;
+	}
+
+	/**
+	 * @param flushThreshold
+	 *        The flush threshold
+	 * @see #getFlushThreshold()
+	 */
+	public void setFlushThreshold( int flushThreshold )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+		else if( immutable )
+			throw new IllegalStateException( "Cannot modify an immutable execution context" );
+
+		this.flushThreshold = flushThreshold;
+		if( flushPolicy == FlushPolicy.THRESHOLD )
+			rewrap();
+	}
+
+	/**
+	 * The maximum time in milliseconds that an execution or entry in this
+	 * context may run, after which it is stopped with an
+	 * {@link ExecutionTimeoutException}. Nested executions (such as
+	 * inclusions) count towards the time of the outermost one.
+	 * <p>
+	 * Stopping is cooperative: the deadline is checked between segments and by
+	 * language engine hooks where available, and the executing thread is
+	 * interrupted when the deadline passes. An engine stuck in a call that
+	 * ignores these might not stop.
+	 * 
+	 * @return The timeout, or 0 for no timeout
+	 * @see #setTimeout(long)
+	 * @see #checkTimeout()
+	 */
+	public long getTimeout()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return timeout;
+	}
+
+	/**
+	 * @param timeout
+	 *        The timeout in milliseconds, or 0 for no timeout
+	 * @see #getTimeout()
+	 */
+	public void setTimeout( long timeout )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+		else if( immutable )
+			throw new IllegalStateException( "Cannot modify an immutable execution context" );
+
+		this.timeout = timeout;
+	}
+
+	/**
+	 * The byte sink set for executables using this context, if the standard
+	 * output was set via {@link #setOutputStream(OutputStream, Charset)}.
+	 * Bytes written to this stream must be encoded in {@link #getCharset()},
+	 * and are ordered correctly with regard to characters written to
+	 * {@link #getWriter()}.
+	 * <p>
+	 * Executables use this to write their literal text segments directly as
+	 * bytes, and language adapters may use it to bypass decoding of
+	 * byte-oriented output.
+	 * 
+	 * @return The output stream or null
+	 */
+	public OutputStream getOutputStream()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return byteSink != null ? byteSink.getOutputStream() : null;
+	}
+
+	/**
+	 * The charset of the byte sink.
+	 * 
+	 * @return The charset or null if there is no byte sink
+	 * @see #getOutputStream()
+	 */
+	public Charset getCharset()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return byteSink != null ? byteSink.getCharset() : null;
+	}
+
+	/**
+	 * Sets the standard output for executables using this context to a byte
+	 * sink with a fixed charset. The writer will encode characters into the
+	 * sink, while the sink is also available as a byte stream via
+	 * {@link #getOutputStream()}.
+	 * <p>
+	 * Output is buffered: make sure to flush the writer when done.
+	 * 
+	 * @param outputStream
+	 *        The byte sink
+	 * @param charset
+	 *        The charset
+	 * @return The previous writer or null
+	 */
+	public Writer setOutputStream( OutputStream outputStream, Charset charset )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+		else if( immutable )
+			throw new IllegalStateException( "Cannot modify an immutable execution context" );
+
+		Writer old = this.writer;
+		releaseBuffer();
+		targetWriter = null;
+		byteSink = new ByteSinkWriter( outputStream, charset );
+		this.writer = new PrintWriter( byteSink );
+		return old;
+	}
+
+	/**
+	 * As {@link #setOutputStream(OutputStream, Charset)}, for a channel.
+	 * 
+	 * @param channel
+	 *        The byte sink
+	 * @param charset
+	 *        The charset
+	 * @return The previous writer or null
+	 */
+	public Writer setOutputChannel( WritableByteChannel channel, Charset charset )
+	{
+		return setOutputStream( Channels.newOutputStream( channel ), charset );
+	}
+
 	/**
 	 * The standard error set for executables using this context.
 	 * 
@@ -334,7 +662,7 @@ public class ExecutionContext
 		if( released )
 			throw new IllegalStateException( "Cannot access released execution context" );
 
-		return enterableExecutable;
+		return enterableExecutable != null ? enterableExecutable.get() : null;
 	}
 
 	/**
@@ -363,6 +691,9 @@ public class ExecutionContext
 	 * The context must have been previously made enterable by a call to
 	 * {@link Executable#makeEnterable(Object, ExecutionContext, Object, ExecutionController)}
 	 * .
+	 * <p>
+	 * If the language adapter is thread-safe, concurrent threads may enter the
+	 * same context without locking.
 	 * 
 	 * @param entryPointName
 	 *        The name of the entry point
@@ -378,20 +709,64 @@ public class ExecutionContext
 	 * @see #getEnterableExecutable()
 	 * @see #getAdapter()
 	 */
-	public Object enter( String entryPointName, Object... arguments ) throws ParsingException, ExecutionException, NoSuchMethodException
+	public Object enter( final String entryPointName, final Object... arguments ) throws ParsingException, ExecutionException, NoSuchMethodException
 	{
+		final Executable enterableExecutable = this.enterableExecutable != null ? this.enterableExecutable.get() : null;
 		if( enterableExecutable == null )
 			throw new IllegalStateException( "This execution context is not enterable" );
 
-		ExecutionContext oldExecutionContext = makeCurrent();
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
 
-		LanguageAdapter languageAdapter = this.languageAdapter;
+		final LanguageAdapter languageAdapter = this.languageAdapter;
 		if( !languageAdapter.isThreadSafe() )
 			languageAdapter.getLock().lock();
 
 		try
 		{
-			return languageAdapter.enter( entryPointName, enterableExecutable, this, arguments );
+			if( CurrentExecutionContext.current.isInScope( this ) )
+				// Already executing in this context, so there is no need for a
+				// new scope
+				return enterInScope( languageAdapter, entryPointName, enterableExecutable, arguments );
+
+			return CurrentExecutionContext.current.call( this, new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					ExecutionDeadline deadline = ExecutionDeadline.start( ExecutionContext.this, enterableExecutable.getDocumentName() );
+					try
+					{
+						return enterInScope( languageAdapter, entryPointName, enterableExecutable, arguments );
+					}
+					catch( ExecutionTimeoutException x )
+					{
+						throw x;
+					}
+					catch( ExecutionException x )
+					{
+						if( ( deadline != null ) && deadline.isExpired() )
+							throw deadline.createException( x );
+						throw x;
+					}
+					catch( RuntimeException x )
+					{
+						if( ( deadline != null ) && deadline.isExpired() )
+							throw deadline.createException( x );
+						throw x;
+					}
+					catch( Error x )
+					{
+						if( ( deadline != null ) && deadline.isExpired() )
+							throw deadline.createException( x );
+						throw x;
+					}
+					finally
+					{
+						if( deadline != null )
+							deadline.finish();
+					}
+				}
+			} );
 		}
 		catch( ParsingException x )
 		{
@@ -403,33 +778,190 @@ public class ExecutionContext
 			x.setExectable( enterableExecutable );
 			throw x;
 		}
+		catch( NoSuchMethodException x )
+		{
+			throw x;
+		}
+		catch( RuntimeException x )
+		{
+			throw x;
+		}
+		catch( Exception x )
+		{
+			throw new ExecutionException( enterableExecutable.getDocumentName(), x.getMessage(), x );
+		}
 		finally
 		{
 			if( !languageAdapter.isThreadSafe() )
 				languageAdapter.getLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates a mutable, non-enterable child of this context for use by an
+	 * independent sub-execution, possibly in another thread.
+	 * <p>
+	 * The child shares this context's services and library locations until
+	 * either context modifies them. Attributes are copied, except for those
+	 * under which the language adapters that have used this context keep
+	 * their per-context state (see {@link LanguageAdapter#CONTEXT_ATTRIBUTES}
+	 * and {@link LanguageAdapter#CONTEXT_STATE_ATTRIBUTES}), so that the child
+	 * gets its own engine state. Note that attribute values are not copied.
+	 * The timeout is copied, but the child's executions have their own
+	 * deadlines.
+	 * <p>
+	 * The child's standard output is its own {@link StringWriter}, so its
+	 * output can be retrieved via {@link #getWriter()} once it is done. The
+	 * standard error is shared.
+	 * <p>
+	 * Forking must happen in the thread using this context. The child should
+	 * be {@link #release() released} when done.
+	 * 
+	 * @return The child context
+	 * @see #fork(Writer)
+	 */
+	public ExecutionContext fork()
+	{
+		return fork( new StringWriter() );
+	}
+
+	/**
+	 * Creates a mutable, non-enterable child of this context, as in
+	 * {@link #fork()}, with its own standard output.
+	 * 
+	 * @param writer
+	 *        The standard output for the child
+	 * @return The child context
+	 */
+	@SuppressWarnings("unchecked")
+	public ExecutionContext fork( Writer writer )
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
 
-			if( oldExecutionContext != null )
-				oldExecutionContext.makeCurrent();
+		ExecutionContext fork = new ExecutionContext( writer, errorWriter, libraryLocations.fork(), services.fork() );
+		fork.timeout = timeout;
+
+		fork.attributes.putAll( attributes );
+		for( LanguageAdapter languageAdapter : languageAdapters )
+		{
+			Collection<String> contextAttributes = (Collection<String>) languageAdapter.getAttributes().get( LanguageAdapter.CONTEXT_ATTRIBUTES );
+			if( contextAttributes != null )
+				fork.attributes.keySet().removeAll( contextAttributes );
+			contextAttributes = (Collection<String>) languageAdapter.getAttributes().get( LanguageAdapter.CONTEXT_STATE_ATTRIBUTES );
+			if( contextAttributes != null )
+				fork.attributes.keySet().removeAll( contextAttributes );
 		}
+
+		fork.languageAdapter = languageAdapter;
+		return fork;
+	}
+
+	/**
+	 * Flushes the standard output and standard error, regardless of the
+	 * {@link #getFlushPolicy() flush policy}.
+	 * 
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	public void flush() throws IOException
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		if( bufferedWriter != null )
+			bufferedWriter.flush( true );
+		else if( writer != null )
+			writer.flush();
+
+		if( errorWriter != null )
+			errorWriter.flush();
+	}
+
+	/**
+	 * The CPU time used by the last execution or entry in this context,
+	 * including nested executions. Measured only if resource accounting is
+	 * enabled. For enterable contexts used by concurrent threads, this is of
+	 * one of the latest entries.
+	 * 
+	 * @return The CPU time in nanoseconds, or -1 if not measured
+	 * @see ExecutionMetrics#isResourceAccounting()
+	 */
+	public long getCpuTime()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return cpuTime;
+	}
+
+	/**
+	 * The bytes allocated by the last execution or entry in this context,
+	 * including nested executions. Measured only if resource accounting is
+	 * enabled. For enterable contexts used by concurrent threads, this is of
+	 * one of the latest entries.
+	 * 
+	 * @return The allocated bytes, or -1 if not measured
+	 * @see ExecutionMetrics#isResourceAccounting()
+	 */
+	public long getAllocatedBytes()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+
+		return allocatedBytes;
+	}
+
+	/**
+	 * Throws an exception if the ongoing execution in this thread has passed
+	 * its deadline. Services called by executables can use this to stop long
+	 * operations early.
+	 * 
+	 * @throws ExecutionTimeoutException
+	 *         If the deadline has passed
+	 * @see #getTimeout()
+	 */
+	public void checkTimeout() throws ExecutionTimeoutException
+	{
+		ExecutionDeadline deadline = ExecutionDeadline.getCurrent();
+		if( deadline != null )
+			deadline.check();
 	}
 
 	/**
 	 * Makes this context immutable. Any attempt to change it will result in an
 	 * {@link IllegalStateException}.
 	 * <p>
+	 * The unmodifiable views of the attributes, services and library locations
+	 * are created here, once, so that concurrent threads entering the context
+	 * can access them without allocation or locking.
+	 * <p>
 	 * Calling this method more than once will have no effect. Once made
 	 * immutable, execution contexts cannot become mutable again.
 	 */
-	public void makeImmutable()
+	public synchronized void makeImmutable()
 	{
 		if( released )
 			throw new IllegalStateException( "Cannot access released execution context" );
 
+		if( immutable )
+			return;
+
+		attributes.freeze();
+		frozenAttributes = Collections.unmodifiableMap( attributes );
+		frozenLibraryLocations = Collections.unmodifiableList( Arrays.asList( libraryLocations.toArray( new URI[libraryLocations.size()] ) ) );
+		frozenServices = Collections.unmodifiableMap( new HashMap<String, Object>( services ) );
+
+		// The volatile write publishes the above to other threads
 		immutable = true;
 	}
 
 	/**
 	 * Sets this execution context for this thread.
+	 * <p>
+	 * Note that executions and entries already bind their context for their
+	 * duration. When called within such a scope, the change is undone when the
+	 * scope ends; otherwise, it lasts until {@link #disconnect()}.
 	 * 
 	 * @return The previous current execution context or null
 	 * @see #getCurrent()
@@ -441,10 +973,65 @@ public class ExecutionContext
 			throw new IllegalStateException( "Cannot access released execution context" );
 
 		ExecutionContext oldExecutionContext = getCurrent();
-		ThreadLocalExecutionContext.current.set( this );
+		CurrentExecutionContext.current.set( this );
 		return oldExecutionContext;
 	}
 
+	/**
+	 * Prepares this context for reuse by an unrelated execution, as done by
+	 * {@link ExecutionContextPool}.
+	 * <p>
+	 * Calls {@link LanguageAdapter#resetContext(ExecutionContext)} on all
+	 * adapters that have used this context, giving them a chance to scrub their
+	 * state while keeping their engines warm. Attributes are cleared, except
+	 * for those listed in {@link LanguageAdapter#CONTEXT_ATTRIBUTES} by adapters
+	 * that kept their state. Services, library locations and writers are
+	 * cleared, after flushing the standard output, and the flush policy and
+	 * timeout are restored to their defaults.
+	 * <p>
+	 * Immutable and enterable contexts cannot be reset.
+	 */
+	@SuppressWarnings("unchecked")
+	public void reset()
+	{
+		if( released )
+			throw new IllegalStateException( "Cannot access released execution context" );
+		else if( immutable )
+			throw new IllegalStateException( "Cannot modify an immutable execution context" );
+		else if( enterableExecutable != null )
+			throw new IllegalStateException( "Cannot reset an enterable execution context" );
+
+		Set<String> retainedAttributes = new HashSet<String>();
+		for( Iterator<LanguageAdapter> i = languageAdapters.iterator(); i.hasNext(); )
+		{
+			LanguageAdapter languageAdapter = i.next();
+			if( languageAdapter.resetContext( this ) )
+			{
+				Collection<String> contextAttributes = (Collection<String>) languageAdapter.getAttributes().get( LanguageAdapter.CONTEXT_ATTRIBUTES );
+				if( contextAttributes != null )
+					retainedAttributes.addAll( contextAttributes );
+			}
+			else
+				i.remove();
+		}
+
+		lastAddedAdapters = null;
+		attributes.keySet().retainAll( retainedAttributes );
+		libraryLocations.clear();
+		services.clear();
+		releaseBuffer();
+		writer = null;
+		targetWriter = null;
+		byteSink = null;
+		flushPolicy = FlushPolicy.IMMEDIATE;
+		flushThreshold = PooledBufferedWriter.BUFFER_SIZE;
+		timeout = 0;
+		cpuTime = -1;
+		allocatedBytes = -1;
+		errorWriter = null;
+		languageAdapter = null;
+	}
+
 	/**
 	 * Calls {@link LanguageAdapter#releaseContext(ExecutionContext)} on all
 	 * adapters that have used this context.
@@ -460,8 +1047,10 @@ public class ExecutionContext
 		for( LanguageAdapter languageAdapter : languageAdapters )
 			languageAdapter.releaseContext( this );
 
-		if( enterableExecutable != null )
-			enterableExecutable.enterableExecutionContexts.remove( enteringKey );
+		releaseBuffer();
+
+		if( enterableExecutionContextPool != null )
+			enterableExecutionContextPool.remove( this );
 
 		released = true;
 	}
@@ -480,15 +1069,82 @@ public class ExecutionContext
 	// Protected
 
 	/**
-	 * Non-null if this context is enterable.
+	 * Called at the end of the outermost execution or entry in this context,
+	 * in order to flush the standard output if the flush policy calls for it.
+	 * 
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	protected void flushAfterExecution() throws IOException
+	{
+		if( ( bufferedWriter != null ) && ( ( flushPolicy == FlushPolicy.EXECUTION ) || ( flushPolicy == FlushPolicy.THRESHOLD ) ) )
+			bufferedWriter.flush( true );
+	}
+
+	/**
+	 * Sets the resource usage of the last execution or entry.
+	 * 
+	 * @param cpuTime
+	 *        The CPU time in nanoseconds, or -1
+	 * @param allocatedBytes
+	 *        The allocated bytes, or -1
+	 * @see #getCpuTime()
+	 * @see #getAllocatedBytes()
 	 */
-	protected Executable enterableExecutable;
+	protected void setResourceUsage( long cpuTime, long allocatedBytes )
+	{
+		this.cpuTime = cpuTime;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	/**
+	 * Sets the language adapters of an executable as users of this context, as
+	 * in {@link #addAdapter(LanguageAdapter)}, without changing the last
+	 * language adapter. Does nothing if the same array was the last to be
+	 * added, so executables can call this once per execution.
+	 * 
+	 * @param languageAdapters
+	 *        The language adapters
+	 */
+	protected void addAdapters( LanguageAdapter[] languageAdapters )
+	{
+		if( languageAdapters == lastAddedAdapters )
+			return;
+
+		for( LanguageAdapter languageAdapter : languageAdapters )
+			this.languageAdapters.add( languageAdapter );
+		lastAddedAdapters = languageAdapters;
+	}
+
+	/**
+	 * Sets the last language adapter used by the context. The adapter must
+	 * have already been added.
+	 * 
+	 * @param languageAdapter
+	 *        The language adapter
+	 * @see #addAdapters(LanguageAdapter[])
+	 */
+	protected void setAdapter( LanguageAdapter languageAdapter )
+	{
+		this.languageAdapter = languageAdapter;
+	}
+
+	/**
+	 * Non-null if this context is enterable. The reference is weak, so that
+	 * the context does not keep the executable from being garbage collected.
+	 */
+	protected WeakReference<Executable> enterableExecutable;
 
 	/**
 	 * Non-null if this context is enterable.
 	 */
 	protected Object enteringKey;
 
+	/**
+	 * The pool to which this context belongs, if it is enterable.
+	 */
+	protected EnterableExecutionContextPool enterableExecutionContextPool;
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
@@ -498,7 +1154,7 @@ public class ExecutionContext
 	 * and other components along the execution chain might use this to store
 	 * contextual state.
 	 */
-	private final Map<String, Object> attributes = new HashMap<String, Object>();
+	private final AttributeMap attributes = new AttributeMap();
 
 	/**
 	 * Locations where language adapters might search for extra libraries. The
@@ -506,12 +1162,12 @@ public class ExecutionContext
 	 * filesystem directory paths, but some adapters might support paths to
 	 * specific library files and network URLs.
 	 */
-	private final List<URI> libraryLocations = new ArrayList<URI>();
+	private final ForkableList<URI> libraryLocations;
 
 	/**
 	 * Services exposed to executables using this context.
 	 */
-	private final Map<String, Object> services = new HashMap<String, Object>();
+	private final ServiceMap services;
 
 	/**
 	 * Language adapters that have used this context.
@@ -520,11 +1176,59 @@ public class ExecutionContext
 	 */
 	private final Set<LanguageAdapter> languageAdapters = new HashSet<LanguageAdapter>();
 
+	/**
+	 * The last array of language adapters added.
+	 * 
+	 * @see #addAdapters(LanguageAdapter[])
+	 */
+	private LanguageAdapter[] lastAddedAdapters;
+
 	/**
 	 * The standard output set for executables using this context.
 	 */
 	private Writer writer;
 
+	/**
+	 * The writer set via {@link #setWriter(Writer)}, before wrapping.
+	 */
+	private Writer targetWriter;
+
+	/**
+	 * The buffer wrapped around the target writer, if the flush policy calls
+	 * for one.
+	 */
+	private PooledBufferedWriter bufferedWriter;
+
+	/**
+	 * The flush policy.
+	 */
+	private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+
+	/**
+	 * The flush threshold.
+	 */
+	private int flushThreshold = PooledBufferedWriter.BUFFER_SIZE;
+
+	/**
+	 * The timeout in milliseconds.
+	 */
+	private long timeout;
+
+	/**
+	 * The CPU time of the last execution or entry.
+	 */
+	private volatile long cpuTime = -1;
+
+	/**
+	 * The allocated bytes of the last execution or entry.
+	 */
+	private volatile long allocatedBytes = -1;
+
+	/**
+	 * The byte sink, if standard output was set to one.
+	 */
+	private ByteSinkWriter byteSink;
+
 	/**
 	 * The default standard output set for executables using this context.
 	 */
@@ -545,6 +1249,21 @@ public class ExecutionContext
 	 */
 	private LanguageAdapter languageAdapter;
 
+	/**
+	 * The unmodifiable attributes, once immutable.
+	 */
+	private Map<String, Object> frozenAttributes;
+
+	/**
+	 * The unmodifiable library locations, once immutable.
+	 */
+	private List<URI> frozenLibraryLocations;
+
+	/**
+	 * The unmodifiable services, once immutable.
+	 */
+	private Map<String, Object> frozenServices;
+
 	/**
 	 * Whether this context is immutable.
 	 */
@@ -554,4 +1273,77 @@ public class ExecutionContext
 	 * Whether this context has been released.
 	 */
 	private volatile boolean released;
+
+	/**
+	 * Enters the executable, with this context already bound as current.
+	 * 
+	 * @param languageAdapter
+	 *        The language adapter
+	 * @param entryPointName
+	 *        The name of the entry point
+	 * @param enterableExecutable
+	 *        The executable
+	 * @param arguments
+	 *        Optional state to pass to the entry point
+	 * @return State returned from the entry point or null
+	 * @throws Exception
+	 *         In case of an error
+	 */
+	private Object enterInScope( LanguageAdapter languageAdapter, String entryPointName, Executable enterableExecutable, Object[] arguments ) throws Exception
+	{
+		Object r = languageAdapter.enter( entryPointName, enterableExecutable, this, arguments );
+		flushAfterExecution();
+		return r;
+	}
+
+	/**
+	 * Wraps a writer according to the flush policy.
+	 * 
+	 * @param writer
+	 *        The writer
+	 * @return The wrapped writer
+	 */
+	private Writer wrap( Writer writer )
+	{
+		if( flushPolicy == FlushPolicy.IMMEDIATE )
+		{
+			bufferedWriter = null;
+			return writer instanceof PrintWriter ? (PrintWriter) writer : new PrintWriter( writer, true );
+		}
+
+		bufferedWriter = new PooledBufferedWriter( writer, flushPolicy, flushThreshold );
+		return new PrintWriter( bufferedWriter );
+	}
+
+	/**
+	 * Wraps the writer set via {@link #setWriter(Writer)} again, after a change
+	 * to the flush policy.
+	 */
+	private void rewrap()
+	{
+		if( targetWriter != null )
+		{
+			releaseBuffer();
+			writer = wrap( targetWriter );
+		}
+	}
+
+	/**
+	 * Flushes the buffer, if there is one, and returns it to the pool.
+	 */
+	private void releaseBuffer()
+	{
+		if( bufferedWriter != null )
+		{
+			try
+			{
+				bufferedWriter.flush( true );
+			}
+			catch( IOException x )
+			{
+				// As with PrintWriter, errors are not propagated
+			}
+			bufferedWriter = null;
+		}
+	}
 }
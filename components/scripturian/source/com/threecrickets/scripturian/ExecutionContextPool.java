@@ -0,0 +1,226 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * A bounded pool of reusable {@link ExecutionContext} instances.
+ * <p>
+ * Creating a fresh execution context for every execution means that language
+ * adapters must rebuild their engine state (scopes, runtimes, interpreters)
+ * every time. Contexts returned to this pool are {@link ExecutionContext#reset()
+ * reset} instead of released, so that adapters can keep their engines warm
+ * while scrubbing all user-visible state.
+ * <p>
+ * The most recently returned context is handed out first. Contexts that have
+ * been idle in the pool for longer than the maximum idle time are released.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Tal Liron
+ * @see LanguageAdapter#resetContext(ExecutionContext)
+ */
+public class ExecutionContextPool
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maximumSize
+	 *        The maximum number of idle contexts kept in the pool
+	 * @param maximumIdleTime
+	 *        The maximum time in milliseconds a context may stay idle in the
+	 *        pool before being released, or -1 to keep idle contexts forever
+	 */
+	public ExecutionContextPool( int maximumSize, long maximumIdleTime )
+	{
+		if( maximumSize < 1 )
+			throw new IllegalArgumentException( "Maximum size must be at least 1" );
+
+		this.maximumSize = maximumSize;
+		this.maximumIdleTime = maximumIdleTime;
+		idle = new LinkedBlockingDeque<IdleExecutionContext>( maximumSize );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The maximum number of idle contexts kept in the pool.
+	 *
+	 * @return The maximum size
+	 */
+	public int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * The maximum time in milliseconds a context may stay idle in the pool
+	 * before being released.
+	 *
+	 * @return The maximum idle time, or -1 if idle contexts are kept forever
+	 */
+	public long getMaximumIdleTime()
+	{
+		return maximumIdleTime;
+	}
+
+	/**
+	 * The number of idle contexts currently in the pool.
+	 *
+	 * @return The idle count
+	 */
+	public int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Takes a context from the pool, or creates a new one if the pool is
+	 * empty. Return it with {@link #checkin(ExecutionContext)} when done.
+	 *
+	 * @return An execution context
+	 */
+	public ExecutionContext checkout()
+	{
+		evictIdle();
+
+		IdleExecutionContext idleExecutionContext = idle.pollFirst();
+		if( idleExecutionContext != null )
+			return idleExecutionContext.executionContext;
+		else
+			return new ExecutionContext();
+	}
+
+	/**
+	 * Takes a context from the pool, or creates a new one if the pool is
+	 * empty, and sets its writers. Return it with
+	 * {@link #checkin(ExecutionContext)} when done.
+	 *
+	 * @param writer
+	 *        The standard output set for executables using this context
+	 * @param errorWriter
+	 *        The standard error set for executables using this context
+	 * @return An execution context
+	 */
+	public ExecutionContext checkout( Writer writer, Writer errorWriter )
+	{
+		ExecutionContext executionContext = checkout();
+		if( writer != null )
+			executionContext.setWriter( writer );
+		if( errorWriter != null )
+			executionContext.setErrorWriter( errorWriter );
+		return executionContext;
+	}
+
+	/**
+	 * Returns a context to the pool. The context is reset. If it cannot be
+	 * reset, or if the pool is full, it is released instead.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 */
+	public void checkin( ExecutionContext executionContext )
+	{
+		try
+		{
+			executionContext.reset();
+		}
+		catch( RuntimeException x )
+		{
+			executionContext.release();
+			return;
+		}
+
+		if( !idle.offerFirst( new IdleExecutionContext( executionContext ) ) )
+			executionContext.release();
+	}
+
+	/**
+	 * Releases contexts that have been idle in the pool for longer than the
+	 * maximum idle time. Called automatically on {@link #checkout()}.
+	 */
+	public void evictIdle()
+	{
+		if( maximumIdleTime < 0 )
+			return;
+
+		long threshold = System.currentTimeMillis() - maximumIdleTime;
+		for( Iterator<IdleExecutionContext> i = idle.descendingIterator(); i.hasNext(); )
+		{
+			IdleExecutionContext idleExecutionContext = i.next();
+			if( idleExecutionContext.timestamp > threshold )
+				// The rest are newer
+				break;
+
+			if( idle.removeLastOccurrence( idleExecutionContext ) )
+				idleExecutionContext.executionContext.release();
+		}
+	}
+
+	/**
+	 * Releases all idle contexts in the pool. Contexts currently checked out
+	 * are not affected, and may still be returned to the pool.
+	 */
+	public void release()
+	{
+		IdleExecutionContext idleExecutionContext;
+		while( ( idleExecutionContext = idle.pollLast() ) != null )
+			idleExecutionContext.executionContext.release();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The maximum number of idle contexts kept in the pool.
+	 */
+	private final int maximumSize;
+
+	/**
+	 * The maximum time in milliseconds a context may stay idle in the pool.
+	 */
+	private final long maximumIdleTime;
+
+	/**
+	 * The idle contexts, most recently returned first.
+	 */
+	private final BlockingDeque<IdleExecutionContext> idle;
+
+	/**
+	 * An idle context with the time it was returned to the pool.
+	 */
+	private static class IdleExecutionContext
+	{
+		public IdleExecutionContext( ExecutionContext executionContext )
+		{
+			this.executionContext = executionContext;
+		}
+
+		public final ExecutionContext executionContext;
+
+		public final long timestamp = System.currentTimeMillis();
+	}
+}
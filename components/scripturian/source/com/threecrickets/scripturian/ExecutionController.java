@@ -20,6 +20,8 @@ import com.threecrickets.scripturian.exception.ExecutionException;
  * @author Tal Liron
  * @see Executable
  * @see ExecutionContext
+ * @see ExtendedExecutionController
+ * @see ExecutionControllerChain
  */
 public interface ExecutionController
 {
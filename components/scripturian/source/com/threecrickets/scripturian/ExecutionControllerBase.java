@@ -0,0 +1,59 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import com.threecrickets.scripturian.exception.ExecutionException;
+
+/**
+ * An {@link ExtendedExecutionController} that does nothing. Override only the
+ * hooks you need.
+ * 
+ * @author Tal Liron
+ */
+public abstract class ExecutionControllerBase implements ExtendedExecutionController
+{
+	//
+	// ExecutionController
+	//
+
+	public void initialize( ExecutionContext executionContext ) throws ExecutionException
+	{
+	}
+
+	public void release( ExecutionContext executionContext )
+	{
+	}
+
+	//
+	// ExtendedExecutionController
+	//
+
+	public void beforeSegment( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, long timestamp )
+	{
+	}
+
+	public void afterSegment( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, long timestamp )
+	{
+	}
+
+	public void enterInclude( ExecutionContext executionContext, Executable executable, long timestamp )
+	{
+	}
+
+	public void exitInclude( ExecutionContext executionContext, Executable executable, long timestamp )
+	{
+	}
+
+	public void failed( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, Throwable failure, long timestamp )
+	{
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.threecrickets.scripturian.exception.ExecutionException;
+
+/**
+ * Combines several {@link ExecutionController} instances, so that each can
+ * handle a separate concern (profiling, tracing, resource limits, caching,
+ * etc.).
+ * <p>
+ * Controllers are initialized in order and released in reverse order, like
+ * nested scopes. Likewise, "before" hooks of {@link ExtendedExecutionController}
+ * instances are called in order, and "after" hooks in reverse order. Plain
+ * controllers only take part in initialization and release.
+ * <p>
+ * Chains are immutable, and thus thread-safe.
+ *
+ * @author Tal Liron
+ */
+public class ExecutionControllerChain implements ExtendedExecutionController
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Combines controllers, avoiding a chain where one is not needed.
+	 *
+	 * @param executionControllers
+	 *        The controllers (nulls are ignored)
+	 * @return Null if there are no controllers, the controller if there is
+	 *         only one, otherwise a chain
+	 */
+	public static ExecutionController of( ExecutionController... executionControllers )
+	{
+		ExecutionController single = null;
+		int count = 0;
+		for( ExecutionController executionController : executionControllers )
+		{
+			if( executionController != null )
+			{
+				single = executionController;
+				count++;
+			}
+		}
+
+		if( count <= 1 )
+			return single;
+		else
+			return new ExecutionControllerChain( executionControllers );
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executionControllers
+	 *        The controllers (nulls are ignored)
+	 */
+	public ExecutionControllerChain( ExecutionController... executionControllers )
+	{
+		ArrayList<ExecutionController> all = new ArrayList<ExecutionController>( executionControllers.length );
+		ArrayList<ExtendedExecutionController> extended = new ArrayList<ExtendedExecutionController>( executionControllers.length );
+		for( ExecutionController executionController : executionControllers )
+		{
+			if( executionController != null )
+			{
+				all.add( executionController );
+				if( executionController instanceof ExtendedExecutionController )
+					extended.add( (ExtendedExecutionController) executionController );
+			}
+		}
+		this.executionControllers = all.toArray( new ExecutionController[all.size()] );
+		this.extendedExecutionControllers = extended.toArray( new ExtendedExecutionController[extended.size()] );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The controllers, in order.
+	 *
+	 * @return The controllers
+	 */
+	public List<ExecutionController> getExecutionControllers()
+	{
+		return Collections.unmodifiableList( Arrays.asList( executionControllers ) );
+	}
+
+	//
+	// ExecutionController
+	//
+
+	/**
+	 * Initializes the controllers in order. If one fails, those already
+	 * initialized are released.
+	 */
+	public void initialize( ExecutionContext executionContext ) throws ExecutionException
+	{
+		int initialized = 0;
+		try
+		{
+			for( ExecutionController executionController : executionControllers )
+			{
+				executionController.initialize( executionContext );
+				initialized++;
+			}
+		}
+		finally
+		{
+			if( initialized < executionControllers.length )
+				while( initialized > 0 )
+					executionControllers[--initialized].release( executionContext );
+		}
+	}
+
+	/**
+	 * Releases the controllers in reverse order. All are released even if
+	 * some fail, in which case the first failure is thrown.
+	 */
+	public void release( ExecutionContext executionContext )
+	{
+		RuntimeException failure = null;
+		for( int i = executionControllers.length - 1; i >= 0; i-- )
+		{
+			try
+			{
+				executionControllers[i].release( executionContext );
+			}
+			catch( RuntimeException x )
+			{
+				if( failure == null )
+					failure = x;
+			}
+		}
+		if( failure != null )
+			throw failure;
+	}
+
+	//
+	// ExtendedExecutionController
+	//
+
+	public void beforeSegment( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, long timestamp )
+	{
+		for( ExtendedExecutionController executionController : extendedExecutionControllers )
+			executionController.beforeSegment( executionContext, executable, segment, timestamp );
+	}
+
+	public void afterSegment( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, long timestamp )
+	{
+		for( int i = extendedExecutionControllers.length - 1; i >= 0; i-- )
+			extendedExecutionControllers[i].afterSegment( executionContext, executable, segment, timestamp );
+	}
+
+	public void enterInclude( ExecutionContext executionContext, Executable executable, long timestamp )
+	{
+		for( ExtendedExecutionController executionController : extendedExecutionControllers )
+			executionController.enterInclude( executionContext, executable, timestamp );
+	}
+
+	public void exitInclude( ExecutionContext executionContext, Executable executable, long timestamp )
+	{
+		for( int i = extendedExecutionControllers.length - 1; i >= 0; i-- )
+			extendedExecutionControllers[i].exitInclude( executionContext, executable, timestamp );
+	}
+
+	public void failed( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, Throwable failure, long timestamp )
+	{
+		for( int i = extendedExecutionControllers.length - 1; i >= 0; i-- )
+			extendedExecutionControllers[i].failed( executionContext, executable, segment, failure, timestamp );
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "ExecutionControllerChain: " + Arrays.toString( executionControllers );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The controllers.
+	 */
+	private final ExecutionController[] executionControllers;
+
+	/**
+	 * The controllers that are also extended controllers.
+	 */
+	private final ExtendedExecutionController[] extendedExecutionControllers;
+}
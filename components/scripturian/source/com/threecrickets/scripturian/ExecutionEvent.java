@@ -0,0 +1,241 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+/**
+ * Describes an execution or entry of an {@link Executable}.
+ * 
+ * @author Tal Liron
+ * @see ExecutionListener
+ */
+public class ExecutionEvent
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @param executionContext
+	 *        The execution context
+	 * @param entryPointName
+	 *        The entry point name, or null for an execution
+	 * @param duration
+	 *        The duration in nanoseconds
+	 * @param failed
+	 *        Whether the execution failed
+	 * @param throwable
+	 *        The failure or null
+	 */
+	public ExecutionEvent( Executable executable, ExecutionContext executionContext, String entryPointName, long duration, boolean failed, Throwable throwable )
+	{
+		this( executable, executionContext, entryPointName, duration, failed, throwable, -1, -1, null );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @param executionContext
+	 *        The execution context
+	 * @param entryPointName
+	 *        The entry point name, or null for an execution
+	 * @param duration
+	 *        The duration in nanoseconds
+	 * @param failed
+	 *        Whether the execution failed
+	 * @param throwable
+	 *        The failure or null
+	 * @param cpuTime
+	 *        The CPU time in nanoseconds, or -1 if not measured
+	 * @param allocatedBytes
+	 *        The allocated bytes, or -1 if not measured
+	 * @param includeChain
+	 *        The document names of the including executions, outermost first
+	 *        and ending with this one, or null if not known
+	 */
+	public ExecutionEvent( Executable executable, ExecutionContext executionContext, String entryPointName, long duration, boolean failed, Throwable throwable, long cpuTime, long allocatedBytes, String[] includeChain )
+	{
+		this.executable = executable;
+		this.executionContext = executionContext;
+		this.entryPointName = entryPointName;
+		this.duration = duration;
+		this.failed = failed;
+		this.throwable = throwable;
+		this.cpuTime = cpuTime;
+		this.allocatedBytes = allocatedBytes;
+		this.includeChain = includeChain;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The executable.
+	 * 
+	 * @return The executable
+	 */
+	public Executable getExecutable()
+	{
+		return executable;
+	}
+
+	/**
+	 * The execution context.
+	 * 
+	 * @return The execution context
+	 */
+	public ExecutionContext getExecutionContext()
+	{
+		return executionContext;
+	}
+
+	/**
+	 * The entry point name.
+	 * 
+	 * @return The entry point name, or null if this was an execution
+	 */
+	public String getEntryPointName()
+	{
+		return entryPointName;
+	}
+
+	/**
+	 * The duration.
+	 * 
+	 * @return The duration in nanoseconds
+	 */
+	public long getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Whether the execution or entry failed.
+	 * 
+	 * @return True if failed
+	 */
+	public boolean isFailed()
+	{
+		return failed;
+	}
+
+	/**
+	 * The failure.
+	 * 
+	 * @return The failure, or null if it succeeded or the failure was not an
+	 *         exception
+	 */
+	public Throwable getThrowable()
+	{
+		return throwable;
+	}
+
+	/**
+	 * The CPU time used by the execution or entry, including nested
+	 * executions. Measured only if resource accounting is enabled.
+	 * 
+	 * @return The CPU time in nanoseconds, or -1 if not measured
+	 * @see ExecutionMetrics#isResourceAccounting()
+	 */
+	public long getCpuTime()
+	{
+		return cpuTime;
+	}
+
+	/**
+	 * The bytes allocated by the execution or entry, including nested
+	 * executions. Measured only if resource accounting is enabled.
+	 * 
+	 * @return The allocated bytes, or -1 if not measured
+	 * @see ExecutionMetrics#isResourceAccounting()
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+
+	/**
+	 * The document names of the executions that led to this one, for example
+	 * via inclusion, outermost first and ending with this one. Known only if
+	 * resource accounting is enabled.
+	 * 
+	 * @return The include chain or null
+	 */
+	public String[] getIncludeChain()
+	{
+		return includeChain;
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "ExecutionEvent: " + executable.getDocumentName() + ", " + ( entryPointName != null ? entryPointName + ", " : "" ) + duration + ( failed ? ", failed" : "" );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The executable.
+	 */
+	private final Executable executable;
+
+	/**
+	 * The execution context.
+	 */
+	private final ExecutionContext executionContext;
+
+	/**
+	 * The entry point name or null.
+	 */
+	private final String entryPointName;
+
+	/**
+	 * The duration in nanoseconds.
+	 */
+	private final long duration;
+
+	/**
+	 * Whether it failed.
+	 */
+	private final boolean failed;
+
+	/**
+	 * The failure or null.
+	 */
+	private final Throwable throwable;
+
+	/**
+	 * The CPU time in nanoseconds or -1.
+	 */
+	private final long cpuTime;
+
+	/**
+	 * The allocated bytes or -1.
+	 */
+	private final long allocatedBytes;
+
+	/**
+	 * The include chain or null.
+	 */
+	private final String[] includeChain;
+}
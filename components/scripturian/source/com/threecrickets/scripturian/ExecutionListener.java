@@ -0,0 +1,35 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+/**
+ * Notified after every execution and entry of an {@link Executable}.
+ * <p>
+ * Listeners are added via {@link ExecutionMetrics#addListener(ExecutionListener)}
+ * , or found in the
+ * {@code META-INF/services/com.threecrickets.scripturian.ExecutionListener}
+ * resource. They are called in the executing thread, so they should return
+ * quickly.
+ * 
+ * @author Tal Liron
+ * @see ExecutionMetrics
+ */
+public interface ExecutionListener
+{
+	/**
+	 * Called after an execution or entry, whether it succeeded or not.
+	 * 
+	 * @param event
+	 *        The event
+	 */
+	public void executed( ExecutionEvent event );
+}
@@ -0,0 +1,628 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.ObjectName;
+
+import com.threecrickets.scripturian.internal.ServiceLoader;
+
+/**
+ * Execution statistics for a partition (see {@link Executable#getPartition()}
+ * ), per document and per language tag, as well as the registry of
+ * {@link ExecutionListener} instances.
+ * <p>
+ * Statistics are only recorded if enabled (initially via the
+ * {@value #STATISTICS_PROPERTY} system property), because recording them
+ * updates counters shared by all threads executing in the partition.
+ * <p>
+ * If the {@value #JMX_PROPERTY} system property is "true", each partition's
+ * metrics are registered as a JMX MBean.
+ * <p>
+ * If resource accounting is enabled (initially via the
+ * {@value #ACCOUNTING_PROPERTY} system property), the CPU time and allocated
+ * bytes of executions and entries are measured as well, and attributed to
+ * their documents. Note that the figures of a document include those of the
+ * documents it includes.
+ * <p>
+ * Documents with on-the-fly names (see
+ * {@link Executable#createOnTheFlyDocumentName()}) are not tracked per
+ * document.
+ *
+ * @author Tal Liron
+ * @see ExecutionStatistics
+ */
+public class ExecutionMetrics implements ExecutionMetricsMBean
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * System property for registering JMX MBeans.
+	 */
+	public static final String JMX_PROPERTY = "com.threecrickets.scripturian.jmx";
+
+	/**
+	 * System property for enabling statistics.
+	 */
+	public static final String STATISTICS_PROPERTY = "com.threecrickets.scripturian.statistics";
+
+	/**
+	 * System property for enabling resource accounting.
+	 */
+	public static final String ACCOUNTING_PROPERTY = "com.threecrickets.scripturian.accounting";
+
+	/**
+	 * The JMX domain.
+	 */
+	public static final String JMX_DOMAIN = "com.threecrickets.scripturian";
+
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The metrics for a partition, created if necessary.
+	 *
+	 * @param partition
+	 *        The partition or null
+	 * @return The metrics
+	 */
+	public static ExecutionMetrics getMetrics( String partition )
+	{
+		if( partition == null )
+			partition = "";
+
+		ExecutionMetrics metrics = metricsByPartition.get( partition );
+		if( metrics == null )
+		{
+			metrics = new ExecutionMetrics( partition );
+			ExecutionMetrics existing = metricsByPartition.putIfAbsent( partition, metrics );
+			if( existing != null )
+				metrics = existing;
+			else if( Boolean.getBoolean( JMX_PROPERTY ) )
+				metrics.register();
+		}
+		return metrics;
+	}
+
+	/**
+	 * The metrics for all partitions.
+	 *
+	 * @return The metrics
+	 */
+	public static Collection<ExecutionMetrics> getAllMetrics()
+	{
+		return Collections.unmodifiableCollection( metricsByPartition.values() );
+	}
+
+	/**
+	 * Whether the statistics of executions, entries and segments are recorded.
+	 * Disabled by default.
+	 *
+	 * @return True if statistics are enabled
+	 * @see #setStatistics(boolean)
+	 */
+	public static boolean isStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * @param statistics
+	 *        True to enable statistics
+	 * @see #isStatistics()
+	 */
+	public static void setStatistics( boolean statistics )
+	{
+		ExecutionMetrics.statistics = statistics;
+	}
+
+	/**
+	 * Whether the CPU time and allocated bytes of executions and entries are
+	 * measured. Measurement adds a small overhead to every execution and entry.
+	 *
+	 * @return True if resource accounting is enabled
+	 * @see #setResourceAccounting(boolean)
+	 */
+	public static boolean isResourceAccounting()
+	{
+		return resourceAccounting;
+	}
+
+	/**
+	 * @param resourceAccounting
+	 *        True to enable resource accounting
+	 * @see #isResourceAccounting()
+	 */
+	public static void setResourceAccounting( boolean resourceAccounting )
+	{
+		ExecutionMetrics.resourceAccounting = resourceAccounting;
+	}
+
+	/**
+	 * The execution listeners. Initially these are the listeners found in the
+	 * {@code META-INF/services/com.threecrickets.scripturian.ExecutionListener}
+	 * resource using the context class loader.
+	 *
+	 * @return The listeners
+	 */
+	public static List<ExecutionListener> getListeners()
+	{
+		return Collections.unmodifiableList( listeners );
+	}
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Adds an execution listener.
+	 *
+	 * @param listener
+	 *        The listener
+	 */
+	public static void addListener( ExecutionListener listener )
+	{
+		listeners.addIfAbsent( listener );
+		hasListeners = true;
+	}
+
+	/**
+	 * Removes an execution listener.
+	 *
+	 * @param listener
+	 *        The listener
+	 */
+	public static void removeListener( ExecutionListener listener )
+	{
+		listeners.remove( listener );
+		hasListeners = !listeners.isEmpty();
+	}
+
+	/**
+	 * Whether there are any listeners. Checking this first saves creating
+	 * events when no one is listening.
+	 *
+	 * @return True if there are listeners
+	 */
+	public static boolean hasListeners()
+	{
+		return hasListeners;
+	}
+
+	/**
+	 * Notifies all listeners. Exceptions thrown by listeners are ignored.
+	 *
+	 * @param event
+	 *        The event
+	 */
+	public static void fire( ExecutionEvent event )
+	{
+		for( ExecutionListener listener : listeners )
+		{
+			try
+			{
+				listener.executed( event );
+			}
+			catch( RuntimeException x )
+			{
+			}
+		}
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 *
+	 * @param partition
+	 *        The partition
+	 */
+	private ExecutionMetrics( String partition )
+	{
+		this.partition = partition;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * Statistics for all executions in the partition.
+	 *
+	 * @return The execution statistics
+	 */
+	public ExecutionStatistics getExecutionStatistics()
+	{
+		return executionStatistics;
+	}
+
+	/**
+	 * Statistics for all entries in the partition.
+	 *
+	 * @return The entry statistics
+	 */
+	public ExecutionStatistics getEntryStatistics()
+	{
+		return entryStatistics;
+	}
+
+	/**
+	 * Statistics for executions of a document, created if necessary. These
+	 * survive recompilation of the document.
+	 *
+	 * @param documentName
+	 *        The document name
+	 * @return The statistics
+	 */
+	public ExecutionStatistics getDocumentExecutionStatistics( String documentName )
+	{
+		return getStatistics( documentExecutionStatistics, documentName );
+	}
+
+	/**
+	 * Statistics for entries of a document, created if necessary. These survive
+	 * recompilation of the document.
+	 *
+	 * @param documentName
+	 *        The document name
+	 * @return The statistics
+	 */
+	public ExecutionStatistics getDocumentEntryStatistics( String documentName )
+	{
+		return getStatistics( documentEntryStatistics, documentName );
+	}
+
+	/**
+	 * Statistics for program segments in a language, created if necessary.
+	 *
+	 * @param languageTag
+	 *        The language tag
+	 * @return The statistics
+	 */
+	public ExecutionStatistics getLanguageTagStatistics( String languageTag )
+	{
+		return getStatistics( languageTagStatistics, languageTag );
+	}
+
+	//
+	// ExecutionMetricsMBean
+	//
+
+	public String getPartition()
+	{
+		return partition;
+	}
+
+	public long getExecutions()
+	{
+		return executionStatistics.getInvocations();
+	}
+
+	public long getExecutionErrors()
+	{
+		return executionStatistics.getErrors();
+	}
+
+	public double getExecutionMeanTime()
+	{
+		return toMilliseconds( executionStatistics.getMeanTime() );
+	}
+
+	public double getExecution99thPercentileTime()
+	{
+		return toMilliseconds( executionStatistics.getPercentileTime( 0.99 ) );
+	}
+
+	public long getEntries()
+	{
+		return entryStatistics.getInvocations();
+	}
+
+	public long getEntryErrors()
+	{
+		return entryStatistics.getErrors();
+	}
+
+	public double getEntryMeanTime()
+	{
+		return toMilliseconds( entryStatistics.getMeanTime() );
+	}
+
+	public double getEntry99thPercentileTime()
+	{
+		return toMilliseconds( entryStatistics.getPercentileTime( 0.99 ) );
+	}
+
+	public String[] getLanguageTags()
+	{
+		return languageTagStatistics.keySet().toArray( new String[0] );
+	}
+
+	public String[] getDocumentNames()
+	{
+		ArrayList<String> documentNames = new ArrayList<String>( documentExecutionStatistics.keySet() );
+		for( String documentName : documentEntryStatistics.keySet() )
+			if( !documentExecutionStatistics.containsKey( documentName ) )
+				documentNames.add( documentName );
+		return documentNames.toArray( new String[documentNames.size()] );
+	}
+
+	public String[] describeSlowestDocuments( int count )
+	{
+		String[] documentNames = getDocumentNames();
+		long[] totalTimes = new long[documentNames.length];
+		for( int i = 0; i < documentNames.length; i++ )
+			totalTimes[i] = getTotalTime( documentExecutionStatistics.get( documentNames[i] ) ) + getTotalTime( documentEntryStatistics.get( documentNames[i] ) );
+		return describeTopDocuments( documentNames, totalTimes, count );
+	}
+
+	public String[] describeMostAllocatingDocuments( int count )
+	{
+		String[] documentNames = getDocumentNames();
+		long[] totalAllocatedBytes = new long[documentNames.length];
+		for( int i = 0; i < documentNames.length; i++ )
+			totalAllocatedBytes[i] = getTotalAllocatedBytes( documentExecutionStatistics.get( documentNames[i] ) ) + getTotalAllocatedBytes( documentEntryStatistics.get( documentNames[i] ) );
+		return describeTopDocuments( documentNames, totalAllocatedBytes, count );
+	}
+
+	public String describeDocument( String documentName )
+	{
+		ExecutionStatistics execution = documentExecutionStatistics.get( documentName );
+		ExecutionStatistics entry = documentEntryStatistics.get( documentName );
+		if( ( execution == null ) && ( entry == null ) )
+			return null;
+
+		StringBuilder description = new StringBuilder( documentName );
+		if( execution != null )
+			description.append( ": execution " ).append( describe( execution ) );
+		if( entry != null )
+			description.append( execution != null ? ", entry " : ": entry " ).append( describe( entry ) );
+		return description.toString();
+	}
+
+	public String describeLanguageTag( String languageTag )
+	{
+		ExecutionStatistics statistics = languageTagStatistics.get( languageTag );
+		return statistics != null ? languageTag + ": " + describe( statistics ) : null;
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "ExecutionMetrics: " + partition;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The metrics by partition.
+	 */
+	private static final ConcurrentMap<String, ExecutionMetrics> metricsByPartition = new ConcurrentHashMap<String, ExecutionMetrics>();
+
+	/**
+	 * The listeners.
+	 */
+	private static final CopyOnWriteArrayList<ExecutionListener> listeners = new CopyOnWriteArrayList<ExecutionListener>();
+
+	/**
+	 * Whether there are listeners.
+	 */
+	private static volatile boolean hasListeners;
+
+	/**
+	 * Whether statistics are enabled.
+	 */
+	private static volatile boolean statistics = Boolean.getBoolean( STATISTICS_PROPERTY );
+
+	/**
+	 * Whether resource accounting is enabled.
+	 */
+	private static volatile boolean resourceAccounting = Boolean.getBoolean( ACCOUNTING_PROPERTY );
+
+	static
+	{
+		ServiceLoader<ExecutionListener> listenerLoader = ServiceLoader.load( ExecutionListener.class, Thread.currentThread().getContextClassLoader() );
+		for( Iterator<ExecutionListener> i = listenerLoader.iterator(); i.hasNext(); )
+		{
+			try
+			{
+				listeners.add( i.next() );
+			}
+			catch( Throwable x )
+			{
+				// Probably a ClassNotFoundException
+			}
+		}
+		hasListeners = !listeners.isEmpty();
+	}
+
+	/**
+	 * The partition.
+	 */
+	private final String partition;
+
+	/**
+	 * Statistics for all executions.
+	 */
+	private final ExecutionStatistics executionStatistics = new ExecutionStatistics();
+
+	/**
+	 * Statistics for all entries.
+	 */
+	private final ExecutionStatistics entryStatistics = new ExecutionStatistics();
+
+	/**
+	 * Execution statistics by document name.
+	 */
+	private final ConcurrentMap<String, ExecutionStatistics> documentExecutionStatistics = new ConcurrentHashMap<String, ExecutionStatistics>();
+
+	/**
+	 * Entry statistics by document name.
+	 */
+	private final ConcurrentMap<String, ExecutionStatistics> documentEntryStatistics = new ConcurrentHashMap<String, ExecutionStatistics>();
+
+	/**
+	 * Program segment statistics by language tag.
+	 */
+	private final ConcurrentMap<String, ExecutionStatistics> languageTagStatistics = new ConcurrentHashMap<String, ExecutionStatistics>();
+
+	/**
+	 * Gets statistics from a map, creating them if necessary. On-the-fly
+	 * documents get statistics that are not stored in the map.
+	 *
+	 * @param map
+	 *        The map
+	 * @param key
+	 *        The key
+	 * @return The statistics
+	 */
+	private static ExecutionStatistics getStatistics( ConcurrentMap<String, ExecutionStatistics> map, String key )
+	{
+		if( key == null )
+			key = "";
+
+		ExecutionStatistics statistics = map.get( key );
+		if( statistics == null )
+		{
+			statistics = new ExecutionStatistics();
+			if( key.startsWith( Executable.ON_THE_FLY_PREFIX ) )
+				return statistics;
+
+			ExecutionStatistics existing = map.putIfAbsent( key, statistics );
+			if( existing != null )
+				statistics = existing;
+		}
+		return statistics;
+	}
+
+	/**
+	 * Registers the metrics as a JMX MBean.
+	 */
+	private void register()
+	{
+		try
+		{
+			ObjectName name = new ObjectName( JMX_DOMAIN + ":type=ExecutionMetrics,partition=" + ObjectName.quote( partition ) );
+			ManagementFactory.getPlatformMBeanServer().registerMBean( this, name );
+		}
+		catch( Exception x )
+		{
+			// JMX is optional
+		}
+	}
+
+	/**
+	 * The total time of statistics.
+	 *
+	 * @param statistics
+	 *        The statistics or null
+	 * @return The total time in nanoseconds
+	 */
+	private static long getTotalTime( ExecutionStatistics statistics )
+	{
+		return statistics != null ? statistics.getTotalTime() : 0;
+	}
+
+	/**
+	 * The total allocated bytes of statistics.
+	 *
+	 * @param statistics
+	 *        The statistics or null
+	 * @return The total allocated bytes
+	 */
+	private static long getTotalAllocatedBytes( ExecutionStatistics statistics )
+	{
+		return statistics != null ? statistics.getTotalAllocatedBytes() : 0;
+	}
+
+	/**
+	 * Summarizes the documents with the highest values.
+	 *
+	 * @param documentNames
+	 *        The document names
+	 * @param values
+	 *        The values per document
+	 * @param count
+	 *        The maximum number of documents
+	 * @return A line per document
+	 */
+	private String[] describeTopDocuments( String[] documentNames, final long[] values, int count )
+	{
+		Integer[] order = new Integer[documentNames.length];
+		for( int i = 0; i < documentNames.length; i++ )
+			order[i] = i;
+		Arrays.sort( order, new Comparator<Integer>()
+		{
+			public int compare( Integer index1, Integer index2 )
+			{
+				long value1 = values[index1];
+				long value2 = values[index2];
+				return value1 > value2 ? -1 : ( value1 == value2 ? 0 : 1 );
+			}
+		} );
+
+		count = Math.min( count, documentNames.length );
+		String[] descriptions = new String[count];
+		for( int i = 0; i < count; i++ )
+			descriptions[i] = describeDocument( documentNames[order[i]] );
+		return descriptions;
+	}
+
+	/**
+	 * Summarizes statistics.
+	 *
+	 * @param statistics
+	 *        The statistics
+	 * @return The summary
+	 */
+	private static String describe( ExecutionStatistics statistics )
+	{
+		String description = statistics.getInvocations() + " invocations, " + statistics.getErrors() + " errors, " + toMilliseconds( statistics.getTotalTime() ) + "ms total, " + toMilliseconds( statistics.getMeanTime() ) + "ms mean, "
+			+ toMilliseconds( statistics.getPercentileTime( 0.99 ) ) + "ms 99th percentile";
+		if( statistics.getAccountedInvocations() > 0 )
+			description += ", " + toMilliseconds( statistics.getTotalCpuTime() ) + "ms CPU total, " + statistics.getTotalAllocatedBytes() + " bytes allocated total, " + statistics.getMeanAllocatedBytes() + " bytes allocated mean";
+		return description;
+	}
+
+	/**
+	 * Converts nanoseconds to milliseconds.
+	 *
+	 * @param nanoseconds
+	 *        The nanoseconds
+	 * @return The milliseconds
+	 */
+	private static double toMilliseconds( long nanoseconds )
+	{
+		return nanoseconds / 1000000.0;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+/**
+ * JMX interface for {@link ExecutionMetrics}. Times are in milliseconds.
+ * <p>
+ * Counts and times remain zero unless statistics are enabled (see
+ * {@link ExecutionMetrics#isStatistics()}).
+ * 
+ * @author Tal Liron
+ */
+public interface ExecutionMetricsMBean
+{
+	/**
+	 * The partition.
+	 * 
+	 * @return The partition
+	 */
+	public String getPartition();
+
+	/**
+	 * @return The number of executions
+	 */
+	public long getExecutions();
+
+	/**
+	 * @return The number of failed executions
+	 */
+	public long getExecutionErrors();
+
+	/**
+	 * @return The mean execution time
+	 */
+	public double getExecutionMeanTime();
+
+	/**
+	 * @return The 99th percentile execution time
+	 */
+	public double getExecution99thPercentileTime();
+
+	/**
+	 * @return The number of entries
+	 */
+	public long getEntries();
+
+	/**
+	 * @return The number of failed entries
+	 */
+	public long getEntryErrors();
+
+	/**
+	 * @return The mean entry time
+	 */
+	public double getEntryMeanTime();
+
+	/**
+	 * @return The 99th percentile entry time
+	 */
+	public double getEntry99thPercentileTime();
+
+	/**
+	 * @return The language tags of executed program segments
+	 */
+	public String[] getLanguageTags();
+
+	/**
+	 * @return The names of executed or entered documents
+	 */
+	public String[] getDocumentNames();
+
+	/**
+	 * Summarizes the documents that took the most total time, including both
+	 * execution and entry.
+	 * 
+	 * @param count
+	 *        The maximum number of documents
+	 * @return A line per document
+	 */
+	public String[] describeSlowestDocuments( int count );
+
+	/**
+	 * Summarizes the documents that allocated the most bytes in total,
+	 * including both execution and entry. Requires resource accounting.
+	 * 
+	 * @param count
+	 *        The maximum number of documents
+	 * @return A line per document
+	 * @see ExecutionMetrics#isResourceAccounting()
+	 */
+	public String[] describeMostAllocatingDocuments( int count );
+
+	/**
+	 * Summarizes a document.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @return The summary or null if not found
+	 */
+	public String describeDocument( String documentName );
+
+	/**
+	 * Summarizes a language tag.
+	 * 
+	 * @param languageTag
+	 *        The language tag
+	 * @return The summary or null if not found
+	 */
+	public String describeLanguageTag( String languageTag );
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Invocation count, error count and a latency histogram for executions, as
+ * well as their CPU time and allocated bytes if resource accounting is enabled
+ * (see {@link ExecutionMetrics#isResourceAccounting()}). Invocations are only
+ * recorded if statistics are enabled (see
+ * {@link ExecutionMetrics#isStatistics()}).
+ * <p>
+ * The histogram has power-of-two buckets, starting at about one microsecond,
+ * so percentiles are approximate: they are reported as the upper bound of the
+ * bucket in which they fall.
+ * <p>
+ * This class is thread-safe, and recording is lock-free.
+ *
+ * @author Tal Liron
+ * @see ExecutionMetrics
+ */
+public class ExecutionStatistics
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The number of histogram buckets.
+	 */
+	public static final int BUCKETS = 40;
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of invocations.
+	 *
+	 * @return The invocation count
+	 */
+	public long getInvocations()
+	{
+		return invocations.get();
+	}
+
+	/**
+	 * The number of invocations that failed.
+	 *
+	 * @return The error count
+	 */
+	public long getErrors()
+	{
+		return errors.get();
+	}
+
+	/**
+	 * The total duration of all invocations.
+	 *
+	 * @return The total time in nanoseconds
+	 */
+	public long getTotalTime()
+	{
+		return totalTime.get();
+	}
+
+	/**
+	 * The mean duration of invocations.
+	 *
+	 * @return The mean time in nanoseconds, or 0 if there were no invocations
+	 */
+	public long getMeanTime()
+	{
+		long invocations = this.invocations.get();
+		return invocations > 0 ? totalTime.get() / invocations : 0;
+	}
+
+	/**
+	 * The longest duration of an invocation.
+	 *
+	 * @return The maximum time in nanoseconds
+	 */
+	public long getMaximumTime()
+	{
+		return maximumTime.get();
+	}
+
+	/**
+	 * The number of invocations for which resource usage was recorded.
+	 *
+	 * @return The count
+	 * @see #recordResourceUsage(long, long)
+	 */
+	public long getAccountedInvocations()
+	{
+		return accountedInvocations.get();
+	}
+
+	/**
+	 * The total CPU time used by accounted invocations.
+	 *
+	 * @return The total CPU time in nanoseconds
+	 */
+	public long getTotalCpuTime()
+	{
+		return totalCpuTime.get();
+	}
+
+	/**
+	 * The total bytes allocated by accounted invocations.
+	 *
+	 * @return The total allocated bytes
+	 */
+	public long getTotalAllocatedBytes()
+	{
+		return totalAllocatedBytes.get();
+	}
+
+	/**
+	 * The mean bytes allocated by accounted invocations.
+	 *
+	 * @return The mean allocated bytes, or 0 if there were no accounted
+	 *         invocations
+	 */
+	public long getMeanAllocatedBytes()
+	{
+		long accountedInvocations = this.accountedInvocations.get();
+		return accountedInvocations > 0 ? totalAllocatedBytes.get() / accountedInvocations : 0;
+	}
+
+	/**
+	 * The approximate duration under which a fraction of invocations fall.
+	 *
+	 * @param fraction
+	 *        The fraction, for example 0.99 for the 99th percentile
+	 * @return The time in nanoseconds, or 0 if there were no invocations
+	 */
+	public long getPercentileTime( double fraction )
+	{
+		long[] histogram = getHistogram();
+		long count = 0;
+		for( long bucket : histogram )
+			count += bucket;
+		if( count == 0 )
+			return 0;
+
+		long threshold = (long) Math.ceil( count * fraction );
+		long accumulated = 0;
+		for( int i = 0; i < BUCKETS; i++ )
+		{
+			accumulated += histogram[i];
+			if( accumulated >= threshold )
+				return Math.min( getBucketUpperBound( i ), maximumTime.get() );
+		}
+		return maximumTime.get();
+	}
+
+	/**
+	 * A snapshot of the latency histogram. Bucket i counts invocations that
+	 * took up to {@link #getBucketUpperBound(int)} nanoseconds.
+	 *
+	 * @return The histogram
+	 */
+	public long[] getHistogram()
+	{
+		long[] histogram = new long[BUCKETS];
+		for( int i = 0; i < BUCKETS; i++ )
+			histogram[i] = this.histogram.get( i );
+		return histogram;
+	}
+
+	/**
+	 * The upper bound of a histogram bucket.
+	 *
+	 * @param bucket
+	 *        The bucket index
+	 * @return The upper bound in nanoseconds
+	 */
+	public static long getBucketUpperBound( int bucket )
+	{
+		return ( 1L << bucket ) << 10;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Records an invocation.
+	 *
+	 * @param duration
+	 *        The duration in nanoseconds
+	 * @param failed
+	 *        Whether the invocation failed
+	 */
+	public void record( long duration, boolean failed )
+	{
+		if( duration < 0 )
+			duration = 0;
+
+		invocations.incrementAndGet();
+		if( failed )
+			errors.incrementAndGet();
+		totalTime.addAndGet( duration );
+
+		long maximum;
+		while( duration > ( maximum = maximumTime.get() ) )
+			if( maximumTime.compareAndSet( maximum, duration ) )
+				break;
+
+		// Roughly microseconds
+		int bucket = 64 - Long.numberOfLeadingZeros( duration >>> 10 );
+		histogram.incrementAndGet( bucket < BUCKETS ? bucket : BUCKETS - 1 );
+	}
+
+	/**
+	 * Records the resource usage of an invocation, in addition to
+	 * {@link #record(long, boolean)}. Figures that could not be measured are
+	 * -1.
+	 *
+	 * @param cpuTime
+	 *        The CPU time in nanoseconds
+	 * @param allocatedBytes
+	 *        The allocated bytes
+	 */
+	public void recordResourceUsage( long cpuTime, long allocatedBytes )
+	{
+		accountedInvocations.incrementAndGet();
+		if( cpuTime > 0 )
+			totalCpuTime.addAndGet( cpuTime );
+		if( allocatedBytes > 0 )
+			totalAllocatedBytes.addAndGet( allocatedBytes );
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "ExecutionStatistics: " + getInvocations() + ", " + getErrors() + ", " + getMeanTime() + ", " + getMaximumTime();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The number of invocations.
+	 */
+	private final AtomicLong invocations = new AtomicLong();
+
+	/**
+	 * The number of invocations that failed.
+	 */
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * The total time in nanoseconds.
+	 */
+	private final AtomicLong totalTime = new AtomicLong();
+
+	/**
+	 * The maximum time in nanoseconds.
+	 */
+	private final AtomicLong maximumTime = new AtomicLong();
+
+	/**
+	 * The number of accounted invocations.
+	 */
+	private final AtomicLong accountedInvocations = new AtomicLong();
+
+	/**
+	 * The total CPU time in nanoseconds.
+	 */
+	private final AtomicLong totalCpuTime = new AtomicLong();
+
+	/**
+	 * The total allocated bytes.
+	 */
+	private final AtomicLong totalAllocatedBytes = new AtomicLong();
+
+	/**
+	 * The latency histogram.
+	 */
+	private final AtomicLongArray histogram = new AtomicLongArray( BUCKETS );
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+/**
+ * An {@link ExecutionController} that is also notified of the progress of
+ * executions, for example in order to profile or trace them.
+ * <p>
+ * All timestamps are in {@link System#nanoTime()} terms. The hooks are called
+ * in the executing thread, so they should return quickly, and they should not
+ * throw exceptions.
+ * <p>
+ * Several controllers can be combined via {@link ExecutionControllerChain}.
+ * 
+ * @author Tal Liron
+ * @see ExecutionControllerBase
+ */
+public interface ExtendedExecutionController extends ExecutionController
+{
+	/**
+	 * Called before a segment is executed or, for literal segments, written.
+	 * Followed by either
+	 * {@link #afterSegment(ExecutionContext, Executable, ExecutableSegment, long)}
+	 * or
+	 * {@link #failed(ExecutionContext, Executable, ExecutableSegment, Throwable, long)}
+	 * .
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param executable
+	 *        The executable
+	 * @param segment
+	 *        The segment
+	 * @param timestamp
+	 *        The timestamp in nanoseconds
+	 */
+	public void beforeSegment( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, long timestamp );
+
+	/**
+	 * Called after a segment is executed successfully.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param executable
+	 *        The executable
+	 * @param segment
+	 *        The segment
+	 * @param timestamp
+	 *        The timestamp in nanoseconds
+	 */
+	public void afterSegment( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, long timestamp );
+
+	/**
+	 * Called before an executable is executed within another execution in the
+	 * same context, for example when included. Followed by
+	 * {@link #exitInclude(ExecutionContext, Executable, long)}.
+	 * <p>
+	 * Note that {@link #initialize(ExecutionContext)} is called as well.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param executable
+	 *        The included executable
+	 * @param timestamp
+	 *        The timestamp in nanoseconds
+	 */
+	public void enterInclude( ExecutionContext executionContext, Executable executable, long timestamp );
+
+	/**
+	 * Called after an included executable is executed, whether it succeeded or
+	 * not.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param executable
+	 *        The included executable
+	 * @param timestamp
+	 *        The timestamp in nanoseconds
+	 */
+	public void exitInclude( ExecutionContext executionContext, Executable executable, long timestamp );
+
+	/**
+	 * Called when an execution fails.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param executable
+	 *        The executable
+	 * @param segment
+	 *        The segment that failed, or null if the failure happened outside
+	 *        of a segment
+	 * @param failure
+	 *        The failure
+	 * @param timestamp
+	 *        The timestamp in nanoseconds
+	 */
+	public void failed( ExecutionContext executionContext, Executable executable, ExecutableSegment segment, Throwable failure, long timestamp );
+}
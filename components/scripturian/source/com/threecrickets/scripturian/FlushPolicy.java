@@ -0,0 +1,51 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+/**
+ * Determines when the standard output of an {@link ExecutionContext} is
+ * flushed to the writer set via
+ * {@link ExecutionContext#setWriter(java.io.Writer)}.
+ * <p>
+ * With any policy other than {@link #IMMEDIATE}, output is collected in a
+ * recycled buffer, and flushes requested by executables and language adapters
+ * (for example, after every scriptlet) are ignored.
+ *
+ * @author Tal Liron
+ * @see ExecutionContext#setFlushPolicy(FlushPolicy)
+ */
+public enum FlushPolicy
+{
+	/**
+	 * Output is not buffered, and every flush request is honored. This is the
+	 * default.
+	 */
+	IMMEDIATE,
+
+	/**
+	 * Output is flushed when the outermost execution in the context ends.
+	 */
+	EXECUTION,
+
+	/**
+	 * Output is flushed whenever the amount of unflushed output reaches
+	 * {@link ExecutionContext#getFlushThreshold()}, and when the outermost
+	 * execution in the context ends.
+	 */
+	THRESHOLD,
+
+	/**
+	 * Output is flushed only via {@link ExecutionContext#flush()}, or when the
+	 * context is reset or released.
+	 */
+	EXPLICIT
+}
@@ -72,6 +72,22 @@ public interface LanguageAdapter
 	 */
 	public static final String DEFAULT_TAG = "tag.default";
 
+	/**
+	 * Attribute for the collection of execution context attribute names under
+	 * which the adapter stores per-context state that survives
+	 * {@link #resetContext(ExecutionContext)}.
+	 */
+	public static final String CONTEXT_ATTRIBUTES = "context.attributes";
+
+	/**
+	 * Attribute for the collection of additional execution context attribute
+	 * names (beyond {@link #CONTEXT_ATTRIBUTES}) under which the adapter stores
+	 * per-context state. These are not copied into forked contexts.
+	 * 
+	 * @see ExecutionContext#fork()
+	 */
+	public static final String CONTEXT_STATE_ATTRIBUTES = "context.stateAttributes";
+
 	//
 	// Attributes
 	//
@@ -232,4 +248,37 @@ public interface LanguageAdapter
 	 * @see ExecutionContext#getAttributes()
 	 */
 	public void releaseContext( ExecutionContext executionContext );
+
+	/**
+	 * Scrubs per-context state so that the execution context can be reused by
+	 * an unrelated execution, while keeping expensive engine state (runtimes,
+	 * scopes, interpreters) warm. User-visible state, such as global variables
+	 * and bound services, must not survive.
+	 * <p>
+	 * Adapters that cannot scrub their state should release it instead, as
+	 * in {@link #releaseContext(ExecutionContext)}, and return false.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @return True if the state was scrubbed and kept, false if it was released
+	 * @see ExecutionContext#reset()
+	 * @see #CONTEXT_ATTRIBUTES
+	 */
+	public boolean resetContext( ExecutionContext executionContext );
+
+	/**
+	 * Called from another thread when an execution in the context has passed
+	 * its deadline. The executing thread has already been interrupted, and
+	 * will also check the deadline between segments. Adapters whose engines
+	 * respond to neither should stop the execution by their own means here.
+	 * <p>
+	 * Must not block.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param thread
+	 *        The executing thread
+	 * @see ExecutionContext#setTimeout(long)
+	 */
+	public void interruptExecution( ExecutionContext executionContext, Thread thread );
 }
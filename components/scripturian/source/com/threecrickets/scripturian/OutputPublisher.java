@@ -0,0 +1,289 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the output of an execution as chunks of encoded bytes, with
+ * backpressure: the execution starts when a subscriber subscribes, and blocks
+ * whenever it has a chunk ready that the subscriber has not yet requested.
+ * This allows streaming the beginning of a large output while the rest is
+ * still being generated, without buffering the entire output in memory.
+ * <p>
+ * The execution context's standard output is set to a byte sink (see
+ * {@link ExecutionContext#setOutputStream(OutputStream, Charset)}). Chunks are
+ * sent when the sink's buffer is full or when the writer is flushed.
+ * <p>
+ * Only a single subscriber is allowed.
+ *
+ * @author Tal Liron
+ * @see Executable#publish(ExecutionContext, Object, ExecutionController,
+ *      Charset, Executor)
+ */
+public class OutputPublisher
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executable
+	 *        The executable
+	 * @param executionContext
+	 *        The execution context
+	 * @param containerService
+	 *        The optional container service
+	 * @param executionController
+	 *        The optional {@link ExecutionController} to be applied to the
+	 *        execution context
+	 * @param charset
+	 *        The charset for encoding the output
+	 * @param executor
+	 *        The executor on which to execute
+	 */
+	public OutputPublisher( Executable executable, ExecutionContext executionContext, Object containerService, ExecutionController executionController, Charset charset, Executor executor )
+	{
+		this.executable = executable;
+		this.executionContext = executionContext;
+		this.containerService = containerService;
+		this.executionController = executionController;
+		this.charset = charset;
+		this.executor = executor;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The charset for encoding the output.
+	 *
+	 * @return The charset
+	 */
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Subscribes and starts the execution.
+	 *
+	 * @param subscriber
+	 *        The subscriber
+	 */
+	public void subscribe( OutputSubscriber subscriber )
+	{
+		if( !subscribed.compareAndSet( false, true ) )
+		{
+			subscriber.onSubscribe( new OutputSubscription()
+			{
+				public void request( long n )
+				{
+				}
+
+				public void cancel()
+				{
+				}
+			} );
+			subscriber.onError( new IllegalStateException( "Output publisher allows only a single subscriber" ) );
+			return;
+		}
+
+		Emitter emitter = new Emitter( subscriber );
+		subscriber.onSubscribe( emitter );
+		executor.execute( emitter );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The executable.
+	 */
+	private final Executable executable;
+
+	/**
+	 * The execution context.
+	 */
+	private final ExecutionContext executionContext;
+
+	/**
+	 * The optional container service.
+	 */
+	private final Object containerService;
+
+	/**
+	 * The optional execution controller.
+	 */
+	private final ExecutionController executionController;
+
+	/**
+	 * The charset for encoding the output.
+	 */
+	private final Charset charset;
+
+	/**
+	 * The executor on which to execute.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Whether we have a subscriber.
+	 */
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	/**
+	 * Runs the execution, sending its output to the subscriber as demanded.
+	 */
+	private class Emitter extends OutputStream implements OutputSubscription, Runnable
+	{
+		public Emitter( OutputSubscriber subscriber )
+		{
+			this.subscriber = subscriber;
+		}
+
+		//
+		// OutputSubscription
+		//
+
+		public synchronized void request( long n )
+		{
+			if( cancelled )
+				return;
+
+			if( n <= 0 )
+			{
+				error = new IllegalArgumentException( "Must request a positive number of chunks" );
+				cancelled = true;
+			}
+			else
+			{
+				demand += n;
+				if( demand < 0 )
+					// Overflow
+					demand = Long.MAX_VALUE;
+			}
+
+			notifyAll();
+		}
+
+		public synchronized void cancel()
+		{
+			cancelled = true;
+			notifyAll();
+		}
+
+		//
+		// OutputStream
+		//
+
+		@Override
+		public void write( int b ) throws IOException
+		{
+			write( new byte[]
+			{
+				(byte) b
+			}, 0, 1 );
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			if( len == 0 )
+				return;
+
+			synchronized( this )
+			{
+				try
+				{
+					while( ( demand == 0 ) && !cancelled )
+						wait();
+				}
+				catch( InterruptedException x )
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+
+				if( cancelled )
+					throw new IOException( "Output subscription cancelled" );
+
+				demand--;
+			}
+
+			byte[] chunk = new byte[len];
+			System.arraycopy( b, off, chunk, 0, len );
+			subscriber.onNext( ByteBuffer.wrap( chunk ) );
+		}
+
+		//
+		// Runnable
+		//
+
+		public void run()
+		{
+			Throwable failure = null;
+			try
+			{
+				executionContext.setOutputStream( this, charset );
+				executable.execute( executionContext, containerService, executionController );
+				executionContext.getWriter().flush();
+			}
+			catch( Throwable x )
+			{
+				failure = x;
+			}
+
+			Throwable error;
+			boolean cancelled;
+			synchronized( this )
+			{
+				error = this.error;
+				cancelled = this.cancelled;
+			}
+
+			if( error != null )
+				subscriber.onError( error );
+			else if( cancelled )
+				return;
+			else if( failure != null )
+				subscriber.onError( failure );
+			else
+				subscriber.onComplete();
+		}
+
+		//
+		// Private
+		//
+
+		private final OutputSubscriber subscriber;
+
+		private long demand;
+
+		private boolean cancelled;
+
+		private Throwable error;
+	}
+}
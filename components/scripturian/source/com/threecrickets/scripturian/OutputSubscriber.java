@@ -0,0 +1,58 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the output of an execution published by an {@link OutputPublisher}
+ * , in chunks. The contract follows that of Reactive Streams: no chunks are
+ * sent before they are requested via {@link OutputSubscription#request(long)},
+ * and the calls are never concurrent.
+ *
+ * @author Tal Liron
+ * @see Executable#publish(ExecutionContext, Object, ExecutionController,
+ *      java.nio.charset.Charset, java.util.concurrent.Executor)
+ */
+public interface OutputSubscriber
+{
+	/**
+	 * Called once, before any other call.
+	 *
+	 * @param subscription
+	 *        The subscription
+	 */
+	public void onSubscribe( OutputSubscription subscription );
+
+	/**
+	 * Called for each requested chunk of output. The buffer belongs to the
+	 * subscriber.
+	 *
+	 * @param chunk
+	 *        The encoded output
+	 */
+	public void onNext( ByteBuffer chunk );
+
+	/**
+	 * Called once if the execution failed. No further calls will be made.
+	 *
+	 * @param throwable
+	 *        The failure
+	 */
+	public void onError( Throwable throwable );
+
+	/**
+	 * Called once when the execution is done and all output has been sent. No
+	 * further calls will be made.
+	 */
+	public void onComplete();
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian;
+
+/**
+ * Links an {@link OutputSubscriber} to an {@link OutputPublisher}. Both methods
+ * may be called from any thread.
+ *
+ * @author Tal Liron
+ */
+public interface OutputSubscription
+{
+	/**
+	 * Allows the publisher to send more chunks. Until chunks are requested, the
+	 * execution blocks when it has output ready.
+	 *
+	 * @param n
+	 *        The number of additional chunks, must be positive
+	 */
+	public void request( long n );
+
+	/**
+	 * Stops sending chunks. The execution fails with an
+	 * {@link java.io.IOException} the next time it writes output.
+	 */
+	public void cancel();
+}
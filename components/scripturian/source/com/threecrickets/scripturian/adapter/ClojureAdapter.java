@@ -28,6 +28,7 @@ import clojure.lang.RT;
 import clojure.lang.Symbol;
 import clojure.lang.Var;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -68,6 +69,12 @@ public class ClojureAdapter extends LanguageAdapterBase
 	 */
 	public static final String CLOJURE_NAMESPACE = ClojureAdapter.class.getCanonicalName() + ".namespace";
 
+	/**
+	 * Execution context attribute for the version of the services interned in
+	 * the namespace.
+	 */
+	public static final String CLOJURE_SERVICES_VERSION = ClojureAdapter.class.getCanonicalName() + ".servicesVersion";
+
 	/**
 	 * Prefix prepended to all namespace names created by this adapter.
 	 */
@@ -172,14 +179,15 @@ public class ClojureAdapter extends LanguageAdapterBase
 	 */
 	public static Namespace getClojureNamespace( ExecutionContext executionContext )
 	{
-		Namespace ns = (Namespace) executionContext.getAttributes().get( CLOJURE_NAMESPACE );
+		Namespace ns = executionContext.getAttribute( CLOJURE_NAMESPACE_KEY );
 		if( ns == null )
 		{
 			// We need to create a fresh namespace for each execution context.
 
 			String name = NAMESPACE_PREFIX + namespaceCounter.getAndIncrement();
 			ns = Namespace.findOrCreate( Symbol.intern( name ) );
-			executionContext.getAttributes().put( CLOJURE_NAMESPACE, ns );
+			executionContext.putAttribute( CLOJURE_NAMESPACE_KEY, ns );
+			executionContext.removeAttribute( CLOJURE_SERVICES_VERSION_KEY );
 		}
 
 		return ns;
@@ -227,6 +235,8 @@ public class ClojureAdapter extends LanguageAdapterBase
 	public ClojureAdapter() throws LanguageAdapterException
 	{
 		super( "Clojure", getVersion(), "Clojure", getVersion(), Arrays.asList( "clj" ), "clj", Arrays.asList( "clojure", "clj" ), "clojure" );
+
+		getAttributes().put( CONTEXT_STATE_ATTRIBUTES, Arrays.asList( CLOJURE_NAMESPACE ) );
 	}
 
 	//
@@ -295,7 +305,7 @@ public class ClojureAdapter extends LanguageAdapterBase
 	public void releaseContext( ExecutionContext executionContext )
 	{
 		// Remove our namespace
-		Namespace ns = (Namespace) executionContext.getAttributes().get( CLOJURE_NAMESPACE );
+		Namespace ns = executionContext.getAttribute( CLOJURE_NAMESPACE_KEY );
 		if( ns != null )
 			Namespace.remove( ns.getName() );
 	}
@@ -326,6 +336,16 @@ public class ClojureAdapter extends LanguageAdapterBase
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #CLOJURE_NAMESPACE}.
+	 */
+	private static final ContextKey<Namespace> CLOJURE_NAMESPACE_KEY = ContextKey.register( CLOJURE_NAMESPACE );
+
+	/**
+	 * Slot for {@link #CLOJURE_SERVICES_VERSION}.
+	 */
+	static final ContextKey<Long> CLOJURE_SERVICES_VERSION_KEY = ContextKey.register( CLOJURE_SERVICES_VERSION );
+
 	/**
 	 * Counter for generating unique namespace names.
 	 */
@@ -226,8 +226,9 @@ public class ClojureProgram extends ProgramBase<ClojureAdapter>
 				// Refer to clojure.core
 				ClojureAdapter.REFER.invoke( ClojureAdapter.CLOJURE_CORE );
 
-				// Expose context variables as vars in namespace
-				for( Map.Entry<String, Object> entry : executionContext.getServices().entrySet() )
+				// Expose new or changed context variables as vars in namespace
+				// (the thread bindings above cover this execution)
+				for( Map.Entry<String, Object> entry : ClojureAdapter.getServicesToBind( executionContext, ClojureAdapter.CLOJURE_SERVICES_VERSION_KEY ).entrySet() )
 					Var.intern( ns, Symbol.intern( entry.getKey() ), entry.getValue() );
 
 				Collection<ClojureProgram.Form> forms = this.forms;
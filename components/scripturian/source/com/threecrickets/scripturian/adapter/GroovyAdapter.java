@@ -17,16 +17,20 @@ import groovy.lang.GroovyClassLoader;
 import groovy.lang.GroovyRuntimeException;
 import groovy.lang.GroovySystem;
 import groovy.lang.MissingPropertyException;
+import groovy.transform.ThreadInterrupt;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
 
+import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
 import org.codehaus.groovy.syntax.SyntaxException;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -41,6 +45,16 @@ import com.threecrickets.scripturian.internal.ScripturianUtil;
 /**
  * A {@link LanguageAdapter} that supports the <a
  * href="http://groovy.codehaus.org/">Groovy</a> language.
+ * <p>
+ * If the {@value #GROOVY_INTERRUPTIBLE_PROPERTY} system property is "true",
+ * scripts are compiled to check the interrupted status of the thread within
+ * loops and methods, so that executions can be stopped in the middle of a
+ * program when their deadline passes (see
+ * {@link ExecutionContext#getTimeout()}). Interrupting the thread then throws
+ * an {@link InterruptedException} in the script, for whatever reason it was
+ * interrupted. Otherwise, deadlines are only checked between program
+ * segments. Cached compiled scripts keep the setting they were compiled
+ * with.
  * 
  * @author Tal Liron
  */
@@ -55,11 +69,22 @@ public class GroovyAdapter extends LanguageAdapterBase
 	 */
 	public static final String GROOVY_BINDING = GroovyAdapter.class.getCanonicalName() + ".binding";
 
+	/**
+	 * Execution context attribute for the version of the services bound in the
+	 * binding.
+	 */
+	public static final String GROOVY_SERVICES_VERSION = GroovyAdapter.class.getCanonicalName() + ".servicesVersion";
+
 	/**
 	 * The default base directory for cached executables.
 	 */
 	public static final String GROOVY_CACHE_DIR = "groovy";
 
+	/**
+	 * System property for compiling scripts to be interruptible.
+	 */
+	public static final String GROOVY_INTERRUPTIBLE_PROPERTY = "com.threecrickets.scripturian.groovy.interruptible";
+
 	//
 	// Static operations
 	//
@@ -143,6 +168,8 @@ public class GroovyAdapter extends LanguageAdapterBase
 	{
 		super( "Groovy", GroovySystem.getVersion(), "Groovy", GroovySystem.getVersion(), Arrays.asList( "groovy", "gv" ), "groovy", Arrays.asList( "groovy", "gv" ), "groovy" );
 
+		getAttributes().put( CONTEXT_ATTRIBUTES, Arrays.asList( GROOVY_BINDING ) );
+
 		// This will allow the class loader to load our auxiliary classes (see
 		// GroovyProgram.prepare)
 		groovyClassLoader.addClasspath( getCacheDir().getPath() );
@@ -164,20 +191,21 @@ public class GroovyAdapter extends LanguageAdapterBase
 	 */
 	public Binding getBinding( ExecutionContext executionContext )
 	{
-		Binding binding = (Binding) executionContext.getAttributes().get( GROOVY_BINDING );
+		Binding binding = executionContext.getAttribute( GROOVY_BINDING_KEY );
 
 		if( binding == null )
 		{
 			binding = new Binding();
-			executionContext.getAttributes().put( GROOVY_BINDING, binding );
+			executionContext.putAttribute( GROOVY_BINDING_KEY, binding );
+			executionContext.removeAttribute( GROOVY_SERVICES_VERSION_KEY );
 		}
 
 		// Set out/err
 		binding.setVariable( "out", executionContext.getWriterOrDefault() );
 		binding.setVariable( "err", executionContext.getErrorWriterOrDefault() );
 
-		// Expose services in binding
-		for( Map.Entry<String, Object> entry : executionContext.getServices().entrySet() )
+		// Expose new or changed services in binding
+		for( Map.Entry<String, Object> entry : getServicesToBind( executionContext, GROOVY_SERVICES_VERSION_KEY ).entrySet() )
 			binding.setVariable( entry.getKey(), entry.getValue() );
 
 		return binding;
@@ -249,8 +277,56 @@ public class GroovyAdapter extends LanguageAdapterBase
 		}
 	}
 
+	@Override
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		Binding binding = executionContext.getAttribute( GROOVY_BINDING_KEY );
+		if( binding == null )
+			return false;
+
+		Map<?, ?> variables = binding.getVariables();
+		if( variables != null )
+			variables.clear();
+
+		return true;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
-	protected final GroovyClassLoader groovyClassLoader = new GroovyClassLoader();
+	/**
+	 * The compiler configuration.
+	 * 
+	 * @see #GROOVY_INTERRUPTIBLE_PROPERTY
+	 */
+	protected final CompilerConfiguration compilerConfiguration = createCompilerConfiguration();
+
+	protected final GroovyClassLoader groovyClassLoader = new GroovyClassLoader( Thread.currentThread().getContextClassLoader(), compilerConfiguration );
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Creates the compiler configuration.
+	 * 
+	 * @return The compiler configuration
+	 */
+	private static CompilerConfiguration createCompilerConfiguration()
+	{
+		CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+		if( Boolean.getBoolean( GROOVY_INTERRUPTIBLE_PROPERTY ) )
+			compilerConfiguration.addCompilationCustomizers( new ASTTransformationCustomizer( ThreadInterrupt.class ) );
+		return compilerConfiguration;
+	}
+
+	/**
+	 * Slot for {@link #GROOVY_BINDING}.
+	 */
+	private static final ContextKey<Binding> GROOVY_BINDING_KEY = ContextKey.register( GROOVY_BINDING );
+
+	/**
+	 * Slot for {@link #GROOVY_SERVICES_VERSION}.
+	 */
+	private static final ContextKey<Long> GROOVY_SERVICES_VERSION_KEY = ContextKey.register( GROOVY_SERVICES_VERSION );
+
 }
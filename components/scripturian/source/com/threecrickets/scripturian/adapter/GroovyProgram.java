@@ -101,7 +101,7 @@ class GroovyProgram extends ProgramBase<GroovyAdapter>
 				}
 				else
 				{
-					CompilationUnit compilationUnit = new CompilationUnit( adapter.groovyClassLoader );
+					CompilationUnit compilationUnit = new CompilationUnit( adapter.compilerConfiguration, null, adapter.groovyClassLoader );
 
 					// We're adding an extension to the classname, because
 					// Groovy expects one and will remove it. Note that it
@@ -12,9 +12,11 @@
 package com.threecrickets.scripturian.adapter;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -23,6 +25,7 @@ import org.jruby.Ruby;
 import org.jruby.RubyException;
 import org.jruby.RubyInstanceConfig;
 import org.jruby.RubyInstanceConfig.CompileMode;
+import org.jruby.RubyThread;
 import org.jruby.ast.executable.Script;
 import org.jruby.embed.io.WriterOutputStream;
 import org.jruby.exceptions.RaiseException;
@@ -33,6 +36,7 @@ import org.jruby.runtime.backtrace.RubyStackTraceElement;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ClassCache;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -77,6 +81,12 @@ public class JRubyAdapter extends LanguageAdapterBase
 	 */
 	public static final String JRUBY_ERR = JRubyAdapter.class.getCanonicalName() + ".err";
 
+	/**
+	 * Execution context attribute for the version of the services bound in the
+	 * runtime.
+	 */
+	public static final String JRUBY_SERVICES_VERSION = JRubyAdapter.class.getCanonicalName() + ".servicesVersion";
+
 	/**
 	 * The default base directory for cached executables.
 	 */
@@ -149,6 +159,8 @@ public class JRubyAdapter extends LanguageAdapterBase
 	{
 		super( "JRuby", Constants.VERSION, "Ruby", Constants.RUBY_VERSION, Arrays.asList( "rb" ), "rb", Arrays.asList( "ruby", "rb", "jruby" ), "jruby" );
 
+		getAttributes().put( CONTEXT_ATTRIBUTES, Arrays.asList( JRUBY_RUNTIME, JRUBY_OUT, JRUBY_ERR ) );
+
 		RubyInstanceConfig config = new RubyInstanceConfig();
 		config.setClassCache( getRubyClassCache() );
 		config.setCompileMode( CompileMode.OFF );
@@ -191,9 +203,9 @@ public class JRubyAdapter extends LanguageAdapterBase
 	 */
 	public Ruby getRubyRuntime( ExecutionContext executionContext )
 	{
-		Ruby rubyRuntime = (Ruby) executionContext.getAttributes().get( JRUBY_RUNTIME );
-		SwitchableOutputStream switchableOut = (SwitchableOutputStream) executionContext.getAttributes().get( JRUBY_OUT );
-		SwitchableOutputStream switchableErr = (SwitchableOutputStream) executionContext.getAttributes().get( JRUBY_ERR );
+		Ruby rubyRuntime = executionContext.getAttribute( JRUBY_RUNTIME_KEY );
+		SwitchableOutputStream switchableOut = executionContext.getAttribute( JRUBY_OUT_KEY );
+		SwitchableOutputStream switchableErr = executionContext.getAttribute( JRUBY_ERR_KEY );
 
 		if( rubyRuntime == null )
 		{
@@ -201,7 +213,7 @@ public class JRubyAdapter extends LanguageAdapterBase
 			// because it's impossible to have the same runtime support multiple
 			// threads running with different standard outs.
 
-			switchableOut = new SwitchableOutputStream( new WriterOutputStream( executionContext.getWriterOrDefault() ) );
+			switchableOut = new SwitchableOutputStream( getOutputStream( executionContext ) );
 			switchableErr = new SwitchableOutputStream( new WriterOutputStream( executionContext.getErrorWriterOrDefault() ) );
 
 			// System.setProperty( "jruby.jit.cache", "true" );
@@ -213,9 +225,10 @@ public class JRubyAdapter extends LanguageAdapterBase
 			config.setOutput( new PrintStream( switchableOut ) );
 			config.setError( new PrintStream( switchableErr ) );
 			rubyRuntime = Ruby.newInstance( config );
-			executionContext.getAttributes().put( JRUBY_RUNTIME, rubyRuntime );
-			executionContext.getAttributes().put( JRUBY_OUT, switchableOut );
-			executionContext.getAttributes().put( JRUBY_ERR, switchableErr );
+			executionContext.putAttribute( JRUBY_RUNTIME_KEY, rubyRuntime );
+			executionContext.putAttribute( JRUBY_OUT_KEY, switchableOut );
+			executionContext.putAttribute( JRUBY_ERR_KEY, switchableErr );
+			executionContext.removeAttribute( JRUBY_SERVICES_VERSION_KEY );
 		}
 		else
 		{
@@ -225,7 +238,7 @@ public class JRubyAdapter extends LanguageAdapterBase
 			// Our switchable output stream lets us change the Ruby runtime's
 			// standard output/error after it's been created.
 
-			switchableOut.use( new WriterOutputStream( executionContext.getWriterOrDefault() ) );
+			switchableOut.use( getOutputStream( executionContext ) );
 			switchableErr.use( new WriterOutputStream( executionContext.getErrorWriterOrDefault() ) );
 		}
 
@@ -246,8 +259,8 @@ public class JRubyAdapter extends LanguageAdapterBase
 			}
 		}
 
-		// Expose services as Ruby globals
-		for( Map.Entry<String, Object> entry : executionContext.getServices().entrySet() )
+		// Expose new or changed services as Ruby globals
+		for( Map.Entry<String, Object> entry : getServicesToBind( executionContext, JRUBY_SERVICES_VERSION_KEY ).entrySet() )
 		{
 			// Note that we're using the shared compilerRuntime to do the
 			// conversions, so that we can cache Java proxies. It's very, very
@@ -327,6 +340,38 @@ public class JRubyAdapter extends LanguageAdapterBase
 		}
 	}
 
+	@Override
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		// A Ruby runtime cannot be scrubbed: global variables, constants,
+		// methods and changes to core classes would all survive it, so we
+		// release it and let the next execution create a new one
+		Ruby rubyRuntime = executionContext.getAttribute( JRUBY_RUNTIME_KEY );
+		if( rubyRuntime != null )
+		{
+			rubyRuntime.getOut().flush();
+			rubyRuntime.getErr().flush();
+			executionContext.removeAttribute( JRUBY_RUNTIME_KEY );
+			rubyRuntime.tearDown();
+		}
+
+		return false;
+	}
+
+	@Override
+	public void interruptExecution( ExecutionContext executionContext, Thread thread )
+	{
+		// JRuby ignores the interrupted status of the thread, but will handle a
+		// kill at its next safe point
+		Ruby rubyRuntime = executionContext.getAttribute( JRUBY_RUNTIME_KEY );
+		if( rubyRuntime != null )
+		{
+			RubyThread rubyThread = rubyRuntime.getThreadService().getRubyThreadMap().get( thread );
+			if( rubyThread != null )
+				rubyThread.kill();
+		}
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
@@ -338,6 +383,48 @@ public class JRubyAdapter extends LanguageAdapterBase
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #JRUBY_RUNTIME}.
+	 */
+	private static final ContextKey<Ruby> JRUBY_RUNTIME_KEY = ContextKey.register( JRUBY_RUNTIME );
+
+	/**
+	 * Slot for {@link #JRUBY_OUT}.
+	 */
+	private static final ContextKey<SwitchableOutputStream> JRUBY_OUT_KEY = ContextKey.register( JRUBY_OUT );
+
+	/**
+	 * Slot for {@link #JRUBY_ERR}.
+	 */
+	private static final ContextKey<SwitchableOutputStream> JRUBY_ERR_KEY = ContextKey.register( JRUBY_ERR );
+
+	/**
+	 * Slot for {@link #JRUBY_SERVICES_VERSION}.
+	 */
+	private static final ContextKey<Long> JRUBY_SERVICES_VERSION_KEY = ContextKey.register( JRUBY_SERVICES_VERSION );
+
+	/**
+	 * The output stream for Ruby's standard output. Ruby strings are UTF-8, so
+	 * if the context has a UTF-8 byte sink we write to it directly without
+	 * decoding.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @return The output stream
+	 */
+	private static OutputStream getOutputStream( ExecutionContext executionContext )
+	{
+		OutputStream outputStream = executionContext.getOutputStream();
+		if( ( outputStream != null ) && UTF8.equals( executionContext.getCharset() ) )
+			return outputStream;
+		return new WriterOutputStream( executionContext.getWriterOrDefault() );
+	}
+
+	/**
+	 * UTF-8.
+	 */
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
 	/**
 	 * From somethingLikeThis to something_like_this.
 	 * 
@@ -19,6 +19,7 @@ import java.util.Map;
 import jep.Jep;
 import jep.JepException;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -46,6 +47,12 @@ public class JeppAdapter extends LanguageAdapterBase
 	 */
 	public static final String JEPP_RUNTIME = JeppAdapter.class.getCanonicalName() + ".runtime";
 
+	/**
+	 * Execution context attribute for the version of the services bound in the
+	 * runtime.
+	 */
+	public static final String JEPP_SERVICES_VERSION = JeppAdapter.class.getCanonicalName() + ".servicesVersion";
+
 	/**
 	 * The default base directory for cached executables.
 	 */
@@ -71,11 +78,12 @@ public class JeppAdapter extends LanguageAdapterBase
 	 */
 	public static Jep getJeppRuntime( Executable executable, ExecutionContext executionContext ) throws JepException
 	{
-		Jep jeppRuntime = (Jep) executionContext.getAttributes().get( JEPP_RUNTIME );
+		Jep jeppRuntime = executionContext.getAttribute( JEPP_RUNTIME_KEY );
 		if( jeppRuntime == null )
 		{
 			jeppRuntime = new Jep();
-			executionContext.getAttributes().put( JEPP_RUNTIME, jeppRuntime );
+			executionContext.putAttribute( JEPP_RUNTIME_KEY, jeppRuntime );
+			executionContext.removeAttribute( JEPP_SERVICES_VERSION_KEY );
 
 			// Enable imports that were disabled in Jepp 2.4
 			jeppRuntime.eval( "from jep import *;__builtins__.__import__=jep.jimport" );
@@ -97,8 +105,8 @@ public class JeppAdapter extends LanguageAdapterBase
 			}
 		}
 
-		// Expose services in runtime
-		for( Map.Entry<String, Object> entry : executionContext.getServices().entrySet() )
+		// Expose new or changed services in runtime
+		for( Map.Entry<String, Object> entry : getServicesToBind( executionContext, JEPP_SERVICES_VERSION_KEY ).entrySet() )
 			jeppRuntime.set( entry.getKey(), entry.getValue() );
 
 		// Connect writers to sys
@@ -120,6 +128,8 @@ public class JeppAdapter extends LanguageAdapterBase
 	public JeppAdapter() throws LanguageAdapterException
 	{
 		super( "Jepp", "", "Python", "", Arrays.asList( "py", "jepp" ), "py", Arrays.asList( "python", "py", "jepp" ), "jepp" );
+
+		getAttributes().put( CONTEXT_STATE_ATTRIBUTES, Arrays.asList( JEPP_RUNTIME ) );
 	}
 
 	//
@@ -183,7 +193,7 @@ public class JeppAdapter extends LanguageAdapterBase
 	@Override
 	public void releaseContext( ExecutionContext executionContext )
 	{
-		Jep jep = (Jep) executionContext.getAttributes().get( JEPP_RUNTIME );
+		Jep jep = executionContext.getAttribute( JEPP_RUNTIME_KEY );
 		if( jep != null )
 			jep.close();
 	}
@@ -191,6 +201,16 @@ public class JeppAdapter extends LanguageAdapterBase
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #JEPP_RUNTIME}.
+	 */
+	private static final ContextKey<Jep> JEPP_RUNTIME_KEY = ContextKey.register( JEPP_RUNTIME );
+
+	/**
+	 * Slot for {@link #JEPP_SERVICES_VERSION}.
+	 */
+	private static final ContextKey<Long> JEPP_SERVICES_VERSION_KEY = ContextKey.register( JEPP_SERVICES_VERSION );
+
 	/**
 	 * From somethingLikeThis to something_like_this.
 	 * 
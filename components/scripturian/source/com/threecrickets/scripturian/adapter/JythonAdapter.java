@@ -16,6 +16,7 @@ import java.net.URI;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import org.python.Version;
 import org.python.compiler.LegacyCompiler;
@@ -26,11 +27,13 @@ import org.python.core.PyBaseException;
 import org.python.core.PyException;
 import org.python.core.PyFileWriter;
 import org.python.core.PyObject;
+import org.python.core.PyStringMap;
 import org.python.core.PySystemState;
 import org.python.core.PyTraceback;
 import org.python.core.PythonCompiler;
 import org.python.util.PythonInterpreter;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -40,6 +43,7 @@ import com.threecrickets.scripturian.exception.ExecutionException;
 import com.threecrickets.scripturian.exception.LanguageAdapterException;
 import com.threecrickets.scripturian.exception.ParsingException;
 import com.threecrickets.scripturian.exception.StackFrame;
+import com.threecrickets.scripturian.internal.CurrentExecutionContext;
 import com.threecrickets.scripturian.internal.ExecutionContextPyFileErrorWriter;
 import com.threecrickets.scripturian.internal.ExecutionContextPyFileWriter;
 import com.threecrickets.scripturian.internal.ScripturianUtil;
@@ -61,6 +65,12 @@ public class JythonAdapter extends LanguageAdapterBase
 	 */
 	public static final String JYTHON_INTERPRETER = JythonAdapter.class.getCanonicalName() + ".interpreter";
 
+	/**
+	 * Execution context attribute for the version of the services bound in the
+	 * interpreter.
+	 */
+	public static final String JYTHON_SERVICES_VERSION = JythonAdapter.class.getCanonicalName() + ".servicesVersion";
+
 	/**
 	 * The Python home property.
 	 */
@@ -143,6 +153,9 @@ public class JythonAdapter extends LanguageAdapterBase
 	{
 		super( "Jython", Version.getBuildInfo(), "Python", Version.PY_VERSION, Arrays.asList( "py" ), "py", Arrays.asList( "python", "py", "jython" ), "jython" );
 
+		getAttributes().put( CONTEXT_ATTRIBUTES, Arrays.asList( JYTHON_INTERPRETER ) );
+		getAttributes().put( CONTEXT_STATE_ATTRIBUTES, Arrays.asList( ExecutionContextPyFileWriter.WRITER, ExecutionContextPyFileErrorWriter.WRITER ) );
+
 		if( PySystemState.registry == null )
 		{
 			String homePath = System.getProperty( PYTHON_HOME );
@@ -201,7 +214,7 @@ public class JythonAdapter extends LanguageAdapterBase
 	 */
 	public PythonInterpreter getPythonInterpreter( ExecutionContext executionContext, Executable executable )
 	{
-		PythonInterpreter pythonInterpreter = (PythonInterpreter) executionContext.getAttributes().get( JYTHON_INTERPRETER );
+		PythonInterpreter pythonInterpreter = executionContext.getAttribute( JYTHON_INTERPRETER_KEY );
 
 		if( pythonInterpreter == null )
 		{
@@ -223,7 +236,8 @@ public class JythonAdapter extends LanguageAdapterBase
 
 			pythonInterpreter.exec( "import sys,site" );
 
-			executionContext.getAttributes().put( JYTHON_INTERPRETER, pythonInterpreter );
+			executionContext.putAttribute( JYTHON_INTERPRETER_KEY, pythonInterpreter );
+			executionContext.removeAttribute( JYTHON_SERVICES_VERSION_KEY );
 		}
 		else
 		{
@@ -246,8 +260,8 @@ public class JythonAdapter extends LanguageAdapterBase
 			}
 		}
 
-		// Expose services as Python globals
-		for( Map.Entry<String, Object> entry : executionContext.getServices().entrySet() )
+		// Expose new or changed services as Python globals
+		for( Map.Entry<String, Object> entry : getServicesToBind( executionContext, JYTHON_SERVICES_VERSION_KEY ).entrySet() )
 			pythonInterpreter.set( entry.getKey(), entry.getValue() );
 
 		return pythonInterpreter;
@@ -300,7 +314,7 @@ public class JythonAdapter extends LanguageAdapterBase
 	public Object enter( String entryPointName, Executable executable, ExecutionContext executionContext, Object... arguments ) throws NoSuchMethodException, ParsingException, ExecutionException
 	{
 		entryPointName = toPythonStyle( entryPointName );
-		PythonInterpreter pythonInterpreter = (PythonInterpreter) executionContext.getAttributes().get( JYTHON_INTERPRETER );
+		PythonInterpreter pythonInterpreter = executionContext.getAttribute( JYTHON_INTERPRETER_KEY );
 		Py.setSystemState( pythonInterpreter.getSystemState() );
 		PyObject method = pythonInterpreter.get( entryPointName );
 		if( method == null )
@@ -321,6 +335,22 @@ public class JythonAdapter extends LanguageAdapterBase
 		}
 	}
 
+	@Override
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		PythonInterpreter pythonInterpreter = executionContext.getAttribute( JYTHON_INTERPRETER_KEY );
+		if( pythonInterpreter == null )
+			return false;
+
+		flush( pythonInterpreter, executionContext );
+
+		// Fresh globals (imported modules stay warm in the shared system state)
+		pythonInterpreter.setLocals( new PyStringMap() );
+		pythonInterpreter.exec( "import sys,site" );
+
+		return true;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
@@ -342,33 +372,54 @@ public class JythonAdapter extends LanguageAdapterBase
 	 * @param executionContext
 	 *        The execution context
 	 */
-	protected static void flush( PythonInterpreter pythonInterpreter, ExecutionContext executionContext )
+	protected static void flush( final PythonInterpreter pythonInterpreter, ExecutionContext executionContext )
 	{
-		ExecutionContext oldExecutionContext = executionContext.makeCurrent();
 		try
 		{
-			PyObject stdout = pythonInterpreter.getSystemState().stdout;
-			if( stdout instanceof PyFileWriter )
-				( (PyFileWriter) stdout ).flush();
-			else
-				pythonInterpreter.exec( "sys.stdout.flush()" );
-
-			PyObject stderr = pythonInterpreter.getSystemState().stderr;
-			if( stderr instanceof PyFileWriter )
-				( (PyFileWriter) stderr ).flush();
-			else
-				pythonInterpreter.exec( "sys.stderr.flush()" );
+			CurrentExecutionContext.current.call( executionContext, new Callable<Void>()
+			{
+				public Void call()
+				{
+					PyObject stdout = pythonInterpreter.getSystemState().stdout;
+					if( stdout instanceof PyFileWriter )
+						( (PyFileWriter) stdout ).flush();
+					else
+						pythonInterpreter.exec( "sys.stdout.flush()" );
+
+					PyObject stderr = pythonInterpreter.getSystemState().stderr;
+					if( stderr instanceof PyFileWriter )
+						( (PyFileWriter) stderr ).flush();
+					else
+						pythonInterpreter.exec( "sys.stderr.flush()" );
+
+					return null;
+				}
+			} );
 		}
-		finally
+		catch( RuntimeException x )
+		{
+			throw x;
+		}
+		catch( Exception x )
 		{
-			if( oldExecutionContext != null )
-				oldExecutionContext.makeCurrent();
+			// Our callable does not throw checked exceptions
+			throw new RuntimeException( x );
 		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #JYTHON_INTERPRETER}.
+	 */
+	private static final ContextKey<PythonInterpreter> JYTHON_INTERPRETER_KEY = ContextKey.register( JYTHON_INTERPRETER );
+
+	/**
+	 * Slot for {@link #JYTHON_SERVICES_VERSION}.
+	 */
+	private static final ContextKey<Long> JYTHON_SERVICES_VERSION_KEY = ContextKey.register( JYTHON_SERVICES_VERSION );
+
 	/**
 	 * Shared system state. We need this ensure that code is only loaded once.
 	 */
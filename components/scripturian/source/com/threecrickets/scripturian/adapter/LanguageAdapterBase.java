@@ -12,12 +12,14 @@
 package com.threecrickets.scripturian.adapter;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -115,6 +117,16 @@ public abstract class LanguageAdapterBase implements LanguageAdapter
 	{
 	}
 
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		releaseContext( executionContext );
+		return false;
+	}
+
+	public void interruptExecution( ExecutionContext executionContext, Thread thread )
+	{
+	}
+
 	public String getSourceCodeForLiteralOutput( String literal, Executable executable ) throws ParsingException
 	{
 		return null;
@@ -130,6 +142,48 @@ public abstract class LanguageAdapterBase implements LanguageAdapter
 		return null;
 	}
 
+	// //////////////////////////////////////////////////////////////////////////
+	// Protected
+
+	/**
+	 * The services that need to be bound into an engine: all services the
+	 * first time, and afterwards only those that were added or changed since
+	 * the last call. The version that was bound is stored in a context
+	 * attribute, which should be removed whenever the engine state is
+	 * recreated.
+	 * <p>
+	 * Immutable contexts cannot have their services changed, so they keep the
+	 * version that was bound while they were mutable.
+	 * 
+	 * @param executionContext
+	 *        The execution context
+	 * @param versionKey
+	 *        The execution context attribute in which to store the bound
+	 *        version
+	 * @return The services to bind
+	 * @see ExecutionContext#getServicesModifiedSince(long)
+	 */
+	protected static Map<String, Object> getServicesToBind( ExecutionContext executionContext, ContextKey<Long> versionKey )
+	{
+		long version = executionContext.getServicesVersion();
+		Long boundVersion = executionContext.getAttribute( versionKey );
+
+		Map<String, Object> services;
+		if( boundVersion != null )
+		{
+			if( boundVersion == version )
+				return Collections.emptyMap();
+			services = executionContext.getServicesModifiedSince( boundVersion );
+		}
+		else
+			services = executionContext.getServices();
+
+		if( !executionContext.isImmutable() )
+			executionContext.putAttribute( versionKey, version );
+
+		return services;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
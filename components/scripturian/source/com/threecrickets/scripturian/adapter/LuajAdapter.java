@@ -12,19 +12,28 @@
 package com.threecrickets.scripturian.adapter;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.DebugLib;
 import org.luaj.vm2.lib.TwoArgFunction;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
 import org.luaj.vm2.lib.jse.JsePlatform;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -33,6 +42,7 @@ import com.threecrickets.scripturian.Program;
 import com.threecrickets.scripturian.exception.ExecutionException;
 import com.threecrickets.scripturian.exception.LanguageAdapterException;
 import com.threecrickets.scripturian.exception.ParsingException;
+import com.threecrickets.scripturian.internal.ExecutionDeadline;
 import com.threecrickets.scripturian.internal.ScripturianUtil;
 import com.threecrickets.scripturian.internal.WriterOutputStream;
 
@@ -53,6 +63,12 @@ public class LuajAdapter extends LanguageAdapterBase
 	 */
 	public static final String LUAJ_GLOBALS = LuajAdapter.class.getCanonicalName() + ".globals";
 
+	/**
+	 * The Luaj baseline context attribute. Holds the contents of the globals
+	 * instance and of the tables reachable from it after initialization.
+	 */
+	public static final String LUAJ_BASELINE = LuajAdapter.class.getCanonicalName() + ".baseline";
+
 	/**
 	 * The default base directory for cached executables.
 	 */
@@ -92,6 +108,8 @@ public class LuajAdapter extends LanguageAdapterBase
 	public LuajAdapter() throws LanguageAdapterException
 	{
 		super( "Luaj", getImplementationVersion(), "Lua", "", Arrays.asList( "lua" ), "lua", Arrays.asList( "lua", "luaj" ), "luaj" );
+
+		getAttributes().put( CONTEXT_ATTRIBUTES, Arrays.asList( LUAJ_GLOBALS, LUAJ_BASELINE ) );
 	}
 
 	//
@@ -110,16 +128,36 @@ public class LuajAdapter extends LanguageAdapterBase
 	 */
 	public Globals getGlobals( ExecutionContext executionContext )
 	{
-		Globals globals = (Globals) executionContext.getAttributes().get( LUAJ_GLOBALS );
+		Globals globals = executionContext.getAttribute( LUAJ_GLOBALS_KEY );
 
 		if( globals == null )
 		{
 			globals = JsePlatform.standardGlobals();
-			executionContext.getAttributes().put( LUAJ_GLOBALS, globals );
+			executionContext.putAttribute( LUAJ_GLOBALS_KEY, globals );
+
+			// Remember the baseline for resetting
+			executionContext.putAttribute( LUAJ_BASELINE_KEY, new Baseline( globals ) );
 		}
 
+		// Check the execution deadline between instructions (the hook slows
+		// down execution, so we only install it while there is a deadline; note
+		// that it is not loaded as a library, so scripts do not get the debug
+		// table)
+		if( ExecutionDeadline.getCurrent() != null )
+		{
+			if( globals.debuglib == null )
+				globals.debuglib = new DeadlineHook();
+		}
+		else if( globals.debuglib instanceof DeadlineHook )
+			globals.debuglib = null;
+
 		// Standard output and error
-		globals.STDOUT = new PrintStream( new WriterOutputStream( executionContext.getWriterOrDefault() ), true );
+		// (Lua strings are UTF-8, so a UTF-8 byte sink can be used directly)
+		OutputStream outputStream = executionContext.getOutputStream();
+		if( ( outputStream != null ) && UTF8.equals( executionContext.getCharset() ) )
+			globals.STDOUT = new PrintStream( outputStream, false );
+		else
+			globals.STDOUT = new PrintStream( new WriterOutputStream( executionContext.getWriterOrDefault() ), true );
 		globals.STDERR = new PrintStream( new WriterOutputStream( executionContext.getErrorWriterOrDefault() ), true );
 
 		// Append library locations to the Ruby class loader
@@ -220,9 +258,51 @@ public class LuajAdapter extends LanguageAdapterBase
 		}
 	}
 
+	@Override
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		Globals globals = executionContext.getAttribute( LUAJ_GLOBALS_KEY );
+		Baseline baseline = executionContext.getAttribute( LUAJ_BASELINE_KEY );
+		if( ( globals == null ) || ( baseline == null ) )
+			return false;
+
+		globals.STDOUT.flush();
+		globals.STDERR.flush();
+		globals.STDOUT = null;
+		globals.STDERR = null;
+
+		// Undo all changes to the globals and to the standard libraries,
+		// including package.loaded (this also unbinds the services, which are
+		// in the globals metatable)
+		baseline.restore();
+
+		return true;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #LUAJ_GLOBALS}.
+	 */
+	private static final ContextKey<Globals> LUAJ_GLOBALS_KEY = ContextKey.register( LUAJ_GLOBALS );
+
+	/**
+	 * Slot for {@link #LUAJ_BASELINE}.
+	 */
+	private static final ContextKey<Baseline> LUAJ_BASELINE_KEY = ContextKey.register( LUAJ_BASELINE );
+
+	/**
+	 * How many instructions Luaj executes between checks of the execution
+	 * deadline.
+	 */
+	private static final int INSTRUCTION_OBSERVER_THRESHOLD = 10000;
+
+	/**
+	 * UTF-8.
+	 */
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
 	/**
 	 * Luaj implementation version.
 	 * 
@@ -257,6 +337,48 @@ public class LuajAdapter extends LanguageAdapterBase
 		private final ExecutionContext executionContext;
 	}
 
+	/**
+	 * A Luaj debug hook that checks the execution deadline. Unlike the debug
+	 * library, it does not track the call stack, so that it can be installed
+	 * and removed between executions.
+	 */
+	private static class DeadlineHook extends DebugLib
+	{
+		@Override
+		public void onCall( LuaFunction function )
+		{
+		}
+
+		@Override
+		public void onCall( LuaClosure closure, Varargs varargs, LuaValue[] stack )
+		{
+		}
+
+		@Override
+		public void onReturn()
+		{
+		}
+
+		@Override
+		public void onInstruction( int pc, Varargs v, int top )
+		{
+			if( ( ++instructions % INSTRUCTION_OBSERVER_THRESHOLD ) == 0 )
+			{
+				ExecutionDeadline deadline = ExecutionDeadline.getCurrent();
+				if( deadline != null )
+					deadline.checkFromEngine();
+			}
+		}
+
+		@Override
+		public String traceback( int level )
+		{
+			return "stack traceback: (not tracked)";
+		}
+
+		private int instructions;
+	}
+
 	/**
 	 * From somethingLikeThis to something_like_this.
 	 * 
@@ -285,4 +407,64 @@ public class LuajAdapter extends LanguageAdapterBase
 		}
 		return r.toString();
 	}
+
+	/**
+	 * The contents and metatables of the globals instance and of all the
+	 * tables reachable from it (the standard libraries, package.loaded, etc.)
+	 * at one point in time.
+	 */
+	private static class Baseline
+	{
+		private Baseline( LuaTable globals )
+		{
+			snapshot( globals, new IdentityHashMap<LuaTable, Boolean>() );
+		}
+
+		/**
+		 * Returns all the tables to their snapshotted contents and metatables.
+		 */
+		private void restore()
+		{
+			for( int t = tables.size() - 1; t >= 0; t-- )
+			{
+				LuaTable table = tables.get( t );
+				LuaValue[] keys = this.keys.get( t );
+				LuaValue[] values = this.values.get( t );
+
+				for( LuaValue key : table.keys() )
+					table.rawset( key, LuaValue.NIL );
+				for( int i = 0; i < keys.length; i++ )
+					table.rawset( keys[i], values[i] );
+
+				table.setmetatable( metatables.get( t ) );
+			}
+		}
+
+		private final ArrayList<LuaTable> tables = new ArrayList<LuaTable>();
+
+		private final ArrayList<LuaValue[]> keys = new ArrayList<LuaValue[]>();
+
+		private final ArrayList<LuaValue[]> values = new ArrayList<LuaValue[]>();
+
+		private final ArrayList<LuaValue> metatables = new ArrayList<LuaValue>();
+
+		private void snapshot( LuaTable table, IdentityHashMap<LuaTable, Boolean> visited )
+		{
+			if( visited.put( table, Boolean.TRUE ) != null )
+				return;
+
+			LuaValue[] keys = table.keys();
+			LuaValue[] values = new LuaValue[keys.length];
+			for( int i = 0; i < keys.length; i++ )
+				values[i] = table.rawget( keys[i] );
+			tables.add( table );
+			this.keys.add( keys );
+			this.values.add( values );
+			metatables.add( table.getmetatable() );
+
+			for( LuaValue value : values )
+				if( value.istable() )
+					snapshot( (LuaTable) value, visited );
+		}
+	}
 }
@@ -29,6 +29,7 @@ import jdk.nashorn.internal.runtime.Source;
 import jdk.nashorn.internal.runtime.Version;
 import jdk.nashorn.internal.runtime.options.Options;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -59,6 +60,12 @@ public class NashornAdapter extends LanguageAdapterBase
 	 */
 	public static final String NASHORN_GLOBAL_SCOPE = NashornAdapter.class.getCanonicalName() + ".globalScope";
 
+	/**
+	 * Execution context attribute for the version of the services bound in the
+	 * global scope.
+	 */
+	public static final String NASHORN_SERVICES_VERSION = NashornAdapter.class.getCanonicalName() + ".servicesVersion";
+
 	/**
 	 * The default base directory for cached executables.
 	 */
@@ -116,6 +123,8 @@ public class NashornAdapter extends LanguageAdapterBase
 		super( "Nashorn", Version.version(), "JavaScript", new NashornScriptEngineFactory().getLanguageVersion(), Arrays.asList( "js", "javascript", "nashorn" ), "js", Arrays.asList( "javascript", "js", "nashorn" ),
 			"nashorn" );
 
+		getAttributes().put( CONTEXT_ATTRIBUTES, Arrays.asList( NASHORN_GLOBAL_SCOPE ) );
+
 		try
 		{
 			System.setProperty( "nashorn.persistent.code.cache", getCacheDir().getCanonicalPath() );
@@ -152,27 +161,28 @@ public class NashornAdapter extends LanguageAdapterBase
 	 */
 	public ScriptObject getGlobalScope( ExecutionContext executionContext )
 	{
-		ScriptObject globalScope = (ScriptObject) executionContext.getAttributes().get( NASHORN_GLOBAL_SCOPE );
+		ScriptObject globalScope = executionContext.getAttribute( NASHORN_GLOBAL_SCOPE_KEY );
 
 		boolean init = false;
 		if( globalScope == null )
 		{
 			globalScope = context.createGlobal();
-			executionContext.getAttributes().put( NASHORN_GLOBAL_SCOPE, globalScope );
+			executionContext.putAttribute( NASHORN_GLOBAL_SCOPE_KEY, globalScope );
+			executionContext.removeAttribute( NASHORN_SERVICES_VERSION_KEY );
 			init = true;
 		}
 
 		Context.setGlobal( globalScope );
 
-		// Define services as properties in scope
-		globalScope.putAll( executionContext.getServices(), false );
-
 		if( init )
 		{
 			ScriptFunction script = context.compileScript( Source.sourceFor( getClass().getCanonicalName() + ".getGlobalScope", INIT_SOURCE ), globalScope );
 			ScriptRuntime.apply( script, globalScope );
 		}
 
+		// Define new or changed services as properties in scope
+		globalScope.putAll( getServicesToBind( executionContext, NASHORN_SERVICES_VERSION_KEY ), false );
+
 		return globalScope;
 	}
 
@@ -256,6 +266,17 @@ public class NashornAdapter extends LanguageAdapterBase
 		}
 	}
 
+	@Override
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		// A global scope cannot be scrubbed: changes to builtins, to their
+		// prototypes and to the mozilla_compat functions would all survive it,
+		// so we drop it and let the next execution create a new one
+		executionContext.removeAttribute( NASHORN_GLOBAL_SCOPE_KEY );
+		executionContext.removeAttribute( NASHORN_SERVICES_VERSION_KEY );
+		return false;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
@@ -264,6 +285,16 @@ public class NashornAdapter extends LanguageAdapterBase
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #NASHORN_GLOBAL_SCOPE}.
+	 */
+	private static final ContextKey<ScriptObject> NASHORN_GLOBAL_SCOPE_KEY = ContextKey.register( NASHORN_GLOBAL_SCOPE );
+
+	/**
+	 * Slot for {@link #NASHORN_SERVICES_VERSION}.
+	 */
+	private static final ContextKey<Long> NASHORN_SERVICES_VERSION_KEY = ContextKey.register( NASHORN_SERVICES_VERSION );
+
 	private static final String MOZILLA_COMPAT_SOURCE = "load('nashorn:mozilla_compat.js')";
 
 	private static final String PRINTLN_SOURCE = "function println(s){if(undefined!==s){print(s)};if(undefined===println.separator){println.separator=String(java.lang.System.getProperty('line.separator'))}print(println.separator)}";
@@ -32,6 +32,7 @@ import com.caucho.quercus.env.Var;
 import com.caucho.quercus.parser.QuercusParseException;
 import com.caucho.vfs.WriteStream;
 import com.caucho.vfs.WriterStreamImpl;
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -174,6 +175,8 @@ public class QuercusAdapter extends LanguageAdapterBase
 	{
 		super( "Quercus", staticQuercusRuntime.getVersion(), "PHP", staticQuercusRuntime.getPhpVersion(), Arrays.asList( "php" ), "php", Arrays.asList( "php", "quercus" ), "quercus" );
 
+		getAttributes().put( CONTEXT_STATE_ATTRIBUTES, Arrays.asList( QUERCUS_ENVIRONMENT, QUERCUS_WRITER_STREAM ) );
+
 		quercusRuntime = new Quercus();
 		quercusRuntime.init();
 		quercusRuntime.start();
@@ -195,8 +198,8 @@ public class QuercusAdapter extends LanguageAdapterBase
 	 */
 	public Env getEnvironment( ExecutionContext executionContext )
 	{
-		Env environment = (Env) executionContext.getAttributes().get( QUERCUS_ENVIRONMENT );
-		WriterStreamImpl writerStream = (WriterStreamImpl) executionContext.getAttributes().get( QUERCUS_WRITER_STREAM );
+		Env environment = executionContext.getAttribute( QUERCUS_ENVIRONMENT_KEY );
+		WriterStreamImpl writerStream = executionContext.getAttribute( QUERCUS_WRITER_STREAM_KEY );
 
 		if( environment == null )
 		{
@@ -210,8 +213,8 @@ public class QuercusAdapter extends LanguageAdapterBase
 			{
 			}
 			environment = new Env( quercusRuntime, null, writeStream, null, null );
-			executionContext.getAttributes().put( QUERCUS_ENVIRONMENT, environment );
-			executionContext.getAttributes().put( QUERCUS_WRITER_STREAM, writerStream );
+			executionContext.putAttribute( QUERCUS_ENVIRONMENT_KEY, environment );
+			executionContext.putAttribute( QUERCUS_WRITER_STREAM_KEY, writerStream );
 		}
 		else
 		{
@@ -352,7 +355,7 @@ public class QuercusAdapter extends LanguageAdapterBase
 	@Override
 	public void releaseContext( ExecutionContext executionContext )
 	{
-		Env environment = (Env) executionContext.getAttributes().get( QUERCUS_ENVIRONMENT );
+		Env environment = executionContext.getAttribute( QUERCUS_ENVIRONMENT_KEY );
 		if( environment != null )
 		{
 			try
@@ -378,6 +381,16 @@ public class QuercusAdapter extends LanguageAdapterBase
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #QUERCUS_ENVIRONMENT}.
+	 */
+	private static final ContextKey<Env> QUERCUS_ENVIRONMENT_KEY = ContextKey.register( QUERCUS_ENVIRONMENT );
+
+	/**
+	 * Slot for {@link #QUERCUS_WRITER_STREAM}.
+	 */
+	private static final ContextKey<WriterStreamImpl> QUERCUS_WRITER_STREAM_KEY = ContextKey.register( QUERCUS_WRITER_STREAM );
+
 	/**
 	 * A static Quercus runtime used for version information.
 	 */
@@ -385,7 +398,7 @@ public class QuercusAdapter extends LanguageAdapterBase
 
 	private Env getClonedEnvironment( ExecutionContext executionContext )
 	{
-		Env environment = (Env) executionContext.getAttributes().get( QUERCUS_ENVIRONMENT );
+		Env environment = executionContext.getAttribute( QUERCUS_ENVIRONMENT_KEY );
 		Env clonedEnvironment = new Env( quercusRuntime, null, environment.getOut(), null, null );
 		clonedEnvironment.restoreState( environment.saveState() );
 		clonedEnvironment.start();
@@ -15,6 +15,7 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.Map;
 
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.ClassCache;
 import org.mozilla.javascript.CompilerEnvirons;
 import org.mozilla.javascript.Context;
@@ -22,12 +23,16 @@ import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.GeneratedClassLoader;
 import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.NativeJavaClass;
 import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.WrappedException;
 import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.optimizer.ClassCompiler;
 
+import com.threecrickets.scripturian.ContextKey;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -37,6 +42,7 @@ import com.threecrickets.scripturian.exception.ExecutionException;
 import com.threecrickets.scripturian.exception.LanguageAdapterException;
 import com.threecrickets.scripturian.exception.ParsingException;
 import com.threecrickets.scripturian.exception.StackFrame;
+import com.threecrickets.scripturian.internal.ExecutionDeadline;
 import com.threecrickets.scripturian.internal.ScripturianUtil;
 
 /**
@@ -61,6 +67,20 @@ public class RhinoAdapter extends LanguageAdapterBase
 	 */
 	public static final String RHINO_SCOPE = RhinoAdapter.class.getCanonicalName() + ".scope";
 
+	/**
+	 * The Rhino shared scope attribute. Holds the standard objects, and is the
+	 * prototype of the scope. The standard objects are sealed, so that scripts
+	 * cannot change them (for example, by adding to builtin prototypes), and
+	 * the shared scope is kept when the execution context is reset.
+	 */
+	public static final String RHINO_SHARED_SCOPE = RhinoAdapter.class.getCanonicalName() + ".sharedScope";
+
+	/**
+	 * Execution context attribute for the version of the services bound in the
+	 * scope.
+	 */
+	public static final String RHINO_SERVICES_VERSION = RhinoAdapter.class.getCanonicalName() + ".servicesVersion";
+
 	/**
 	 * The Rhino optimization level language manager attribute.
 	 */
@@ -81,6 +101,14 @@ public class RhinoAdapter extends LanguageAdapterBase
 	 */
 	public static int DEFAULT_OPTIMIZATION_LEVEL = 9; // -1 = interpreted mode;
 
+	/**
+	 * How many instructions Rhino executes between checks of the execution
+	 * deadline.
+	 * 
+	 * @see ExecutionContext#getTimeout()
+	 */
+	public static final int INSTRUCTION_OBSERVER_THRESHOLD = 10000;
+
 	//
 	// Static operations
 	//
@@ -137,8 +165,12 @@ public class RhinoAdapter extends LanguageAdapterBase
 	{
 		super( "Rhino", getImplementationVersion(), "JavaScript", getLanguageVersion(), Arrays.asList( "js", "javascript", "rhino" ), "js", Arrays.asList( "javascript", "js", "rhino" ), "rhino" );
 
+		getAttributes().put( CONTEXT_ATTRIBUTES, Arrays.asList( RHINO_CONTEXT, RHINO_SHARED_SCOPE ) );
+		getAttributes().put( CONTEXT_STATE_ATTRIBUTES, Arrays.asList( RHINO_SCOPE ) );
+
 		CompilerEnvirons compilerEnvirons = new CompilerEnvirons();
 		compilerEnvirons.setOptimizationLevel( getOptimizationLevel() );
+		compilerEnvirons.setGenerateObserverCount( true );
 		classCompiler = new ClassCompiler( compilerEnvirons );
 		Context context = enterContext();
 		try
@@ -160,6 +192,10 @@ public class RhinoAdapter extends LanguageAdapterBase
 	 * context, creating it if it doesn't exist. Each execution context is
 	 * guaranteed to have its own Rhino scope. The scope is updated to match the
 	 * writers and services in the execution context.
+	 * <p>
+	 * The standard objects live in a shared scope, which is the prototype of
+	 * the scope, so that the scope can be cheaply replaced when the execution
+	 * context is reset.
 	 * 
 	 * @param executable
 	 *        The executable
@@ -174,14 +210,29 @@ public class RhinoAdapter extends LanguageAdapterBase
 	 */
 	public ScriptableObject getScope( Executable executable, ExecutionContext executionContext, Context context, int startLineNumber )
 	{
-		ScriptableObject scope = (ScriptableObject) executionContext.getAttributes().get( RHINO_SCOPE );
+		ScriptableObject scope = executionContext.getAttribute( RHINO_SCOPE_KEY );
 
 		if( scope == null )
 		{
-			scope = new ImporterTopLevel( context );
-			context.initStandardObjects( scope );
-			classChache.associate( scope );
-			executionContext.getAttributes().put( RHINO_SCOPE, scope );
+			ScriptableObject sharedScope = executionContext.getAttribute( RHINO_SHARED_SCOPE_KEY );
+			if( sharedScope == null )
+			{
+				sharedScope = new ImporterTopLevel( context, true );
+				classChache.associate( sharedScope );
+				sharedScope.sealObject();
+				executionContext.putAttribute( RHINO_SHARED_SCOPE_KEY, sharedScope );
+			}
+
+			// The shared scope's importClass and importPackage would import
+			// into the shared scope, so the scope is an importer of its own
+			ImporterTopLevel importer = new ImporterTopLevel();
+			importer.setPrototype( sharedScope );
+			importer.setParentScope( null );
+			importer.defineProperty( "importClass", new ImportFunction( importer, false ), ScriptableObject.DONTENUM );
+			importer.defineProperty( "importPackage", new ImportFunction( importer, true ), ScriptableObject.DONTENUM );
+			scope = importer;
+			executionContext.putAttribute( RHINO_SCOPE_KEY, scope );
+			executionContext.removeAttribute( RHINO_SERVICES_VERSION_KEY );
 
 			String source = PRINT_SOURCE1 + executable.getExecutableServiceName() + PRINT_SOURCE2 + executable.getExecutableServiceName() + PRINT_SOURCE3;
 			Function function = context.compileFunction( scope, source, null, 0, null );
@@ -191,8 +242,8 @@ public class RhinoAdapter extends LanguageAdapterBase
 			scope.defineProperty( "println", function, 0 );
 		}
 
-		// Define services as properties in scope
-		for( Map.Entry<String, Object> entry : executionContext.getServices().entrySet() )
+		// Define new or changed services as properties in scope
+		for( Map.Entry<String, Object> entry : getServicesToBind( executionContext, RHINO_SERVICES_VERSION_KEY ).entrySet() )
 			scope.defineProperty( entry.getKey(), entry.getValue(), ScriptableObject.PERMANENT | ScriptableObject.READONLY );
 
 		return scope;
@@ -223,12 +274,12 @@ public class RhinoAdapter extends LanguageAdapterBase
 	 */
 	public Context enterContext( ExecutionContext executionContext )
 	{
-		Context context = (Context) executionContext.getAttributes().get( RHINO_CONTEXT );
+		Context context = executionContext.getAttribute( RHINO_CONTEXT_KEY );
 
 		if( context == null )
 		{
 			context = enterContext();
-			executionContext.getAttributes().put( RHINO_CONTEXT, context );
+			executionContext.putAttribute( RHINO_CONTEXT_KEY, context );
 		}
 		else
 			contextFactory.enterContext( context );
@@ -297,6 +348,15 @@ public class RhinoAdapter extends LanguageAdapterBase
 		}
 	}
 
+	@Override
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		// Scripts cannot change the sealed shared scope, so only the scope
+		// holding their globals is dropped
+		executionContext.removeAttribute( RHINO_SCOPE_KEY );
+		return true;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
@@ -313,6 +373,26 @@ public class RhinoAdapter extends LanguageAdapterBase
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Slot for {@link #RHINO_SCOPE}.
+	 */
+	private static final ContextKey<ScriptableObject> RHINO_SCOPE_KEY = ContextKey.register( RHINO_SCOPE );
+
+	/**
+	 * Slot for {@link #RHINO_SHARED_SCOPE}.
+	 */
+	private static final ContextKey<ScriptableObject> RHINO_SHARED_SCOPE_KEY = ContextKey.register( RHINO_SHARED_SCOPE );
+
+	/**
+	 * Slot for {@link #RHINO_CONTEXT}.
+	 */
+	private static final ContextKey<Context> RHINO_CONTEXT_KEY = ContextKey.register( RHINO_CONTEXT );
+
+	/**
+	 * Slot for {@link #RHINO_SERVICES_VERSION}.
+	 */
+	private static final ContextKey<Long> RHINO_SERVICES_VERSION_KEY = ContextKey.register( RHINO_SERVICES_VERSION );
+
 	private static final String PRINT_SOURCE1 = "function print(s){if(undefined===s){return}";
 
 	private static final String PRINT_SOURCE2 = ".context.writerOrDefault.write(String(s));";
@@ -322,9 +402,19 @@ public class RhinoAdapter extends LanguageAdapterBase
 	private static final String PRINTLN_SOURCE = "function println(s){print(s);if(undefined===println.separator){println.separator=String(java.lang.System.getProperty('line.separator'))}print(println.separator)}";
 
 	/**
-	 * Used to generate and enter Rhino contexts.
+	 * Used to generate and enter Rhino contexts. Checks the execution deadline
+	 * when observing instructions.
 	 */
-	private final ContextFactory contextFactory = new ContextFactory();
+	private final ContextFactory contextFactory = new ContextFactory()
+	{
+		@Override
+		protected void observeInstructionCount( Context context, int instructionCount )
+		{
+			ExecutionDeadline deadline = ExecutionDeadline.getCurrent();
+			if( deadline != null )
+				deadline.checkFromEngine();
+		}
+	};
 
 	/**
 	 * Class cache shared by all Rhino contexts.
@@ -341,6 +431,8 @@ public class RhinoAdapter extends LanguageAdapterBase
 		Context context = contextFactory.enterContext();
 		context.setLanguageVersion( LANGUAGE_VERSION );
 		context.setOptimizationLevel( getOptimizationLevel() );
+		context.setGenerateObserverCount( true );
+		context.setInstructionObserverThreshold( INSTRUCTION_OBSERVER_THRESHOLD );
 		return context;
 	}
 
@@ -356,6 +448,55 @@ public class RhinoAdapter extends LanguageAdapterBase
 		return level != null ? ( (Number) level ).intValue() : DEFAULT_OPTIMIZATION_LEVEL;
 	}
 
+	/**
+	 * Imports Java classes or packages into a scope.
+	 */
+	private static class ImportFunction extends BaseFunction
+	{
+		private ImportFunction( ImporterTopLevel importer, boolean packages )
+		{
+			this.importer = importer;
+			this.packages = packages;
+			ScriptRuntime.setFunctionProtoAndParent( this, importer );
+		}
+
+		@Override
+		public Object call( Context context, Scriptable scope, Scriptable thisObj, Object[] arguments )
+		{
+			if( packages )
+				importer.importPackage( context, importer, arguments, this );
+			else
+			{
+				for( Object argument : arguments )
+				{
+					if( !( argument instanceof NativeJavaClass ) )
+						throw Context.reportRuntimeError( ScriptRuntime.getMessage1( "msg.not.class", Context.toString( argument ) ) );
+
+					NativeJavaClass javaClass = (NativeJavaClass) argument;
+					String name = javaClass.getClassObject().getName();
+					name = name.substring( name.lastIndexOf( '.' ) + 1 );
+					Object existing = importer.get( name, importer );
+					if( ( existing != NOT_FOUND ) && ( existing != javaClass ) )
+						throw Context.reportRuntimeError( ScriptRuntime.getMessage1( "msg.prop.defined", name ) );
+					importer.put( name, importer, javaClass );
+				}
+			}
+			return Context.getUndefinedValue();
+		}
+
+		@Override
+		public String getFunctionName()
+		{
+			return packages ? "importPackage" : "importClass";
+		}
+
+		private final ImporterTopLevel importer;
+
+		private final boolean packages;
+
+		private static final long serialVersionUID = 1L;
+	}
+
 	/**
 	 * Rhino implementation version.
 	 * 
@@ -64,6 +64,8 @@ public class SuccinctAdapter extends LanguageAdapterBase
 	public SuccinctAdapter() throws LanguageAdapterException
 	{
 		super( "Succinct", "", "Succinct", "", Arrays.asList( "succint", "template" ), "succinct", Arrays.asList( "succinct" ), "succinct" );
+
+		getAttributes().put( CONTEXT_STATE_ATTRIBUTES, Arrays.asList( FILLER_ATTRIBUTE ) );
 	}
 
 	//
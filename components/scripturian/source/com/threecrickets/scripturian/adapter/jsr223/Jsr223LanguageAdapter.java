@@ -194,6 +194,7 @@ public abstract class Jsr223LanguageAdapter implements LanguageAdapter
 		attributes.put( DEFAULT_TAG, factory.getNames().get( 0 ) );
 
 		attributes.put( JSR223_SCRIPT_ENGINE_NAME, scriptEngineName );
+		attributes.put( CONTEXT_STATE_ATTRIBUTES, Arrays.asList( JSR223_SCRIPT_CONTEXT, JSR223_SCRIPT_ENGINES ) );
 	}
 
 	//
@@ -602,6 +603,16 @@ public abstract class Jsr223LanguageAdapter implements LanguageAdapter
 	{
 	}
 
+	public boolean resetContext( ExecutionContext executionContext )
+	{
+		releaseContext( executionContext );
+		return false;
+	}
+
+	public void interruptExecution( ExecutionContext executionContext, Thread thread )
+	{
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
@@ -12,28 +12,59 @@
 package com.threecrickets.scripturian.document;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.threecrickets.scripturian.exception.DocumentException;
 import com.threecrickets.scripturian.exception.DocumentNotFoundException;
 
 /**
  * Chains one or more document sources in order.
+ * <p>
+ * Optionally, the chain can remember which source resolved a name, or that
+ * none did, so that it does not have to try each source in turn. Routes are
+ * forgotten when sources report changes (see {@link DocumentSourceListener}),
+ * when the chain itself is changed, and after
+ * {@link #getMinimumTimeBetweenValidityChecks()}. A route is not remembered at
+ * all if it skips a source that cannot report changes, such as a
+ * {@link DocumentFileSource} that is neither watching nor sealed, because
+ * that source might resolve the name the next time it is asked.
  * 
  * @author Tal Liron
  * @param <D>
  *        The document type
  */
-public class ChainDocumentSource<D> implements DocumentSource<D>
+public class ChainDocumentSource<D> implements DocumentSource<D>, DocumentSourceListener
 {
 	//
 	// Construction
+	//
 
 	public ChainDocumentSource( String identifier )
+	{
+		this( identifier, 0 );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param identifier
+	 *        The identifier
+	 * @param minimumTimeBetweenValidityChecks
+	 *        See {@link #getMinimumTimeBetweenValidityChecks()}
+	 */
+	public ChainDocumentSource( String identifier, long minimumTimeBetweenValidityChecks )
 	{
 		this.identifier = identifier;
+		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
 	}
 
 	//
@@ -45,33 +76,132 @@ public class ChainDocumentSource<D> implements DocumentSource<D>
 		return sources;
 	}
 
+	/**
+	 * How long to remember which source resolved a name. A value of -1 means
+	 * to remember until a source reports a change, and 0 (the default) disables
+	 * remembering, so that all sources are tried every time.
+	 * <p>
+	 * While remembering is enabled, the chain listens to those of its sources
+	 * that can report changes.
+	 * 
+	 * @return The minimum time between validity checks in milliseconds
+	 * @see #setMinimumTimeBetweenValidityChecks(long)
+	 */
+	public long getMinimumTimeBetweenValidityChecks()
+	{
+		return minimumTimeBetweenValidityChecks;
+	}
+
+	/**
+	 * @param minimumTimeBetweenValidityChecks
+	 *        The minimum time between validity checks in milliseconds
+	 * @see #getMinimumTimeBetweenValidityChecks()
+	 */
+	public void setMinimumTimeBetweenValidityChecks( long minimumTimeBetweenValidityChecks )
+	{
+		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
+		sourcesChanged();
+	}
+
+	/**
+	 * Adds a listener to be notified when documents might have been added to
+	 * or removed from the chain.
+	 * 
+	 * @param listener
+	 *        The listener
+	 * @see #removeListener(DocumentSourceListener)
+	 */
+	public void addListener( DocumentSourceListener listener )
+	{
+		listeners.addIfAbsent( listener );
+	}
+
+	/**
+	 * @param listener
+	 *        The listener
+	 * @see #addListener(DocumentSourceListener)
+	 */
+	public void removeListener( DocumentSourceListener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Forgets which sources resolved which names.
+	 */
+	public void clearRoutes()
+	{
+		routeGeneration.incrementAndGet();
+		routes.clear();
+	}
+
 	//
 	// DocumentSource
 	//
 
 	public DocumentDescriptor<D> getDocument( String documentName ) throws DocumentException
 	{
+		Route<D> route = routes.get( documentName );
+		if( route != null )
+		{
+			long minimumTimeBetweenValidityChecks = this.minimumTimeBetweenValidityChecks;
+			if( ( minimumTimeBetweenValidityChecks == -1 ) || ( ( System.currentTimeMillis() - route.timestamp ) <= minimumTimeBetweenValidityChecks ) )
+			{
+				if( route.documentSource == null )
+					throw new DocumentNotFoundException( documentName );
+
+				try
+				{
+					return route.documentSource.getDocument( documentName );
+				}
+				catch( DocumentNotFoundException x )
+				{
+					// The source no longer has it
+				}
+			}
+			routes.remove( documentName, route );
+		}
+
+		long generation = routeGeneration.get();
+		boolean remember = minimumTimeBetweenValidityChecks != 0;
 		for( DocumentSource<D> documentSource : sources )
 		{
 			try
 			{
-				return documentSource.getDocument( documentName );
+				DocumentDescriptor<D> documentDescriptor = documentSource.getDocument( documentName );
+				if( remember )
+					route( documentName, documentSource, generation );
+				return documentDescriptor;
 			}
 			catch( DocumentNotFoundException x )
 			{
+				// We cannot skip this source next time if it won't tell us
+				// when it has the document
+				if( remember && !reportsChanges( documentSource ) )
+					remember = false;
 			}
 		}
+		if( remember )
+			route( documentName, null, generation );
 		throw new DocumentNotFoundException( documentName );
 	}
 
 	public DocumentDescriptor<D> setDocument( String documentName, String sourceCode, String tag, D document ) throws DocumentException
 	{
-		return sources.iterator().next().setDocument( documentName, sourceCode, tag, document );
+		DocumentDescriptor<D> last = sources.iterator().next().setDocument( documentName, sourceCode, tag, document );
+		routes.remove( documentName );
+		return last;
 	}
 
 	public DocumentDescriptor<D> setDocumentIfAbsent( String documentName, String sourceCode, String tag, D document ) throws DocumentException
 	{
-		return sources.iterator().next().setDocumentIfAbsent( documentName, sourceCode, tag, document );
+		DocumentDescriptor<D> existing = sources.iterator().next().setDocumentIfAbsent( documentName, sourceCode, tag, document );
+		routes.remove( documentName );
+		return existing;
 	}
 
 	public Collection<DocumentDescriptor<D>> getDocuments()
@@ -87,10 +217,288 @@ public class ChainDocumentSource<D> implements DocumentSource<D>
 		return identifier;
 	}
 
+	//
+	// DocumentSourceListener
+	//
+
+	public void documentsChanged( DocumentSource<?> documentSource )
+	{
+		clearRoutes();
+		for( DocumentSourceListener listener : listeners )
+			listener.documentsChanged( this );
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Routes are forgotten when there are more than this.
+	 */
+	private static final int MAXIMUM_ROUTES = 10000;
+
 	private final String identifier;
 
-	private final CopyOnWriteArrayList<DocumentSource<D>> sources = new CopyOnWriteArrayList<DocumentSource<D>>();
+	private final CopyOnWriteArrayList<DocumentSource<D>> sources = new Sources();
+
+	/**
+	 * See {@link #getMinimumTimeBetweenValidityChecks()}
+	 */
+	private volatile long minimumTimeBetweenValidityChecks;
+
+	/**
+	 * The routes by document name.
+	 */
+	private final ConcurrentMap<String, Route<D>> routes = new ConcurrentHashMap<String, Route<D>>();
+
+	/**
+	 * Incremented whenever the routes are cleared.
+	 */
+	private final AtomicLong routeGeneration = new AtomicLong();
+
+	/**
+	 * The listeners.
+	 */
+	private final CopyOnWriteArrayList<DocumentSourceListener> listeners = new CopyOnWriteArrayList<DocumentSourceListener>();
+
+	/**
+	 * The sources we are listening to.
+	 */
+	private final Set<DocumentSource<D>> listeningTo = Collections.newSetFromMap( new IdentityHashMap<DocumentSource<D>, Boolean>() );
+
+	/**
+	 * The source that resolved a name, or null if none did.
+	 */
+	private static class Route<D>
+	{
+		private Route( DocumentSource<D> documentSource )
+		{
+			this.documentSource = documentSource;
+		}
+
+		private final DocumentSource<D> documentSource;
+
+		private final long timestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * The sources, which clears the routes and updates our listening whenever
+	 * changed.
+	 */
+	private class Sources extends CopyOnWriteArrayList<DocumentSource<D>>
+	{
+		@Override
+		public boolean add( DocumentSource<D> documentSource )
+		{
+			boolean added = super.add( documentSource );
+			sourcesChanged();
+			return added;
+		}
+
+		@Override
+		public void add( int index, DocumentSource<D> documentSource )
+		{
+			super.add( index, documentSource );
+			sourcesChanged();
+		}
+
+		@Override
+		public boolean addAll( Collection<? extends DocumentSource<D>> documentSources )
+		{
+			boolean added = super.addAll( documentSources );
+			sourcesChanged();
+			return added;
+		}
+
+		@Override
+		public boolean addAll( int index, Collection<? extends DocumentSource<D>> documentSources )
+		{
+			boolean added = super.addAll( index, documentSources );
+			sourcesChanged();
+			return added;
+		}
+
+		@Override
+		public boolean addIfAbsent( DocumentSource<D> documentSource )
+		{
+			boolean added = super.addIfAbsent( documentSource );
+			sourcesChanged();
+			return added;
+		}
+
+		@Override
+		public int addAllAbsent( Collection<? extends DocumentSource<D>> documentSources )
+		{
+			int added = super.addAllAbsent( documentSources );
+			sourcesChanged();
+			return added;
+		}
+
+		@Override
+		public DocumentSource<D> set( int index, DocumentSource<D> documentSource )
+		{
+			DocumentSource<D> last = super.set( index, documentSource );
+			sourcesChanged();
+			return last;
+		}
+
+		@Override
+		public DocumentSource<D> remove( int index )
+		{
+			DocumentSource<D> removed = super.remove( index );
+			sourcesChanged();
+			return removed;
+		}
+
+		@Override
+		public boolean remove( Object o )
+		{
+			boolean removed = super.remove( o );
+			sourcesChanged();
+			return removed;
+		}
+
+		@Override
+		public boolean removeAll( Collection<?> c )
+		{
+			boolean removed = super.removeAll( c );
+			sourcesChanged();
+			return removed;
+		}
+
+		@Override
+		public boolean retainAll( Collection<?> c )
+		{
+			boolean removed = super.retainAll( c );
+			sourcesChanged();
+			return removed;
+		}
+
+		@Override
+		public void clear()
+		{
+			super.clear();
+			sourcesChanged();
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Remembers a route, unless routes were cleared since we started looking
+	 * for it.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @param documentSource
+	 *        The source that resolved the name, or null if none did
+	 * @param generation
+	 *        The route generation when we started looking
+	 */
+	private void route( String documentName, DocumentSource<D> documentSource, long generation )
+	{
+		if( routes.size() >= MAXIMUM_ROUTES )
+			routes.clear();
+
+		Route<D> route = new Route<D>( documentSource );
+		if( routeGeneration.get() == generation )
+		{
+			routes.put( documentName, route );
+
+			// Cleared while we were putting?
+			if( routeGeneration.get() != generation )
+				routes.remove( documentName, route );
+		}
+	}
+
+	/**
+	 * Listens to the sources that can report changes while remembering routes
+	 * is enabled, and forgets all routes.
+	 */
+	private synchronized void sourcesChanged()
+	{
+		boolean listening = minimumTimeBetweenValidityChecks != 0;
+
+		for( Iterator<DocumentSource<D>> i = listeningTo.iterator(); i.hasNext(); )
+		{
+			DocumentSource<D> documentSource = i.next();
+			if( !listening || !sources.contains( documentSource ) )
+			{
+				removeListener( documentSource, this );
+				i.remove();
+			}
+		}
+
+		if( listening )
+			for( DocumentSource<D> documentSource : sources )
+				if( !listeningTo.contains( documentSource ) && addListener( documentSource, this ) )
+					listeningTo.add( documentSource );
+
+		documentsChanged( this );
+	}
+
+	/**
+	 * Whether a source reports to its listeners whenever it might have gained
+	 * or lost documents.
+	 * 
+	 * @param documentSource
+	 *        The source
+	 * @return True if the source reports changes
+	 */
+	private static boolean reportsChanges( DocumentSource<?> documentSource )
+	{
+		if( documentSource instanceof DocumentFileSource<?> )
+		{
+			DocumentFileSource<?> documentFileSource = (DocumentFileSource<?>) documentSource;
+			return documentFileSource.isWatching() || documentFileSource.isSealed();
+		}
+		else if( documentSource instanceof ChainDocumentSource<?> )
+		{
+			// A chain reports changes only while it is listening to all its
+			// sources
+			ChainDocumentSource<?> chainDocumentSource = (ChainDocumentSource<?>) documentSource;
+			if( chainDocumentSource.minimumTimeBetweenValidityChecks == 0 )
+				return false;
+			for( DocumentSource<?> source : chainDocumentSource.sources )
+				if( !reportsChanges( source ) )
+					return false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a listener to a source, if it supports listeners.
+	 * 
+	 * @param documentSource
+	 *        The source
+	 * @param listener
+	 *        The listener
+	 * @return True if added
+	 */
+	private static boolean addListener( DocumentSource<?> documentSource, DocumentSourceListener listener )
+	{
+		if( documentSource instanceof DocumentFileSource<?> )
+			( (DocumentFileSource<?>) documentSource ).addListener( listener );
+		else if( documentSource instanceof ChainDocumentSource<?> )
+			( (ChainDocumentSource<?>) documentSource ).addListener( listener );
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Removes a listener from a source, if it supports listeners.
+	 * 
+	 * @param documentSource
+	 *        The source
+	 * @param listener
+	 *        The listener
+	 */
+	private static void removeListener( DocumentSource<?> documentSource, DocumentSourceListener listener )
+	{
+		if( documentSource instanceof DocumentFileSource<?> )
+			( (DocumentFileSource<?>) documentSource ).removeListener( listener );
+		else if( documentSource instanceof ChainDocumentSource<?> )
+			( (ChainDocumentSource<?>) documentSource ).removeListener( listener );
+	}
 }
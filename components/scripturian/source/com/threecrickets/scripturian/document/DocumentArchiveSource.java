@@ -0,0 +1,717 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.document;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.threecrickets.scripturian.exception.DocumentException;
+import com.threecrickets.scripturian.exception.DocumentNotFoundException;
+import com.threecrickets.scripturian.internal.ArchivedDocumentDescriptor;
+
+/**
+ * Reads documents stored in a zip or jar archive. The archive's central
+ * directory is read once into an index, and the archive is memory-mapped, so
+ * that retrieving a document involves neither file system lookups nor system
+ * calls. Source code is decoded on demand, directly from the mapped archive
+ * for stored entries.
+ * <p>
+ * Document names are resolved as they are by {@link DocumentFileSource}:
+ * directories resolve to the document with the default name in them, and
+ * extensions may be omitted.
+ * <p>
+ * The archive is assumed not to change while in use. To pick up a new
+ * version, create a new document source. Documents added to the archive
+ * source exist only in memory.
+ * <p>
+ * Only stored and deflated entries are supported, and the archive must be
+ * smaller than 2 GB and not use the ZIP64 format.
+ * 
+ * @author Tal Liron
+ * @param <D>
+ *        The document type
+ */
+public class DocumentArchiveSource<D> implements DocumentSource<D>
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructs a document archive source. The identifier will be the
+	 * archive's path.
+	 * 
+	 * @param archiveFile
+	 *        The zip or jar file
+	 * @param defaultName
+	 *        If the name used in {@link #getDocument(String)} points to a
+	 *        directory, then this name in that directory will be used instead
+	 * @param preferredExtension
+	 *        An extension to prefer if more than one entry with the same name is
+	 *        in a directory
+	 * @throws DocumentException
+	 *         In case the archive could not be read
+	 */
+	public DocumentArchiveSource( File archiveFile, String defaultName, String preferredExtension ) throws DocumentException
+	{
+		this( archiveFile.getPath(), archiveFile, defaultName, preferredExtension, null );
+	}
+
+	/**
+	 * Constructs a document archive source.
+	 * 
+	 * @param identifier
+	 *        The identifier
+	 * @param archiveFile
+	 *        The zip or jar file
+	 * @param defaultName
+	 *        If the name used in {@link #getDocument(String)} points to a
+	 *        directory, then this name in that directory will be used instead
+	 * @param preferredExtension
+	 *        An extension to prefer if more than one entry with the same name is
+	 *        in a directory
+	 * @param charset
+	 *        The charset to use for decoding entries, or null for UTF-8
+	 * @throws DocumentException
+	 *         In case the archive could not be read
+	 */
+	public DocumentArchiveSource( String identifier, File archiveFile, String defaultName, String preferredExtension, Charset charset ) throws DocumentException
+	{
+		this.identifier = identifier;
+		this.archiveFile = archiveFile;
+		this.defaultName = defaultName;
+		this.preferredExtension = preferredExtension == null || preferredExtension.length() == 0 ? null : '.' + preferredExtension;
+		this.charset = charset != null ? charset : UTF8;
+
+		try
+		{
+			RandomAccessFile randomAccessFile = new RandomAccessFile( archiveFile, "r" );
+			try
+			{
+				FileChannel channel = randomAccessFile.getChannel();
+				long size = channel.size();
+				if( size > Integer.MAX_VALUE )
+					throw new DocumentException( "Archive is too large: " + archiveFile );
+
+				// The mapping remains valid after the channel is closed
+				archive = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+				archive.order( ByteOrder.LITTLE_ENDIAN );
+			}
+			finally
+			{
+				randomAccessFile.close();
+			}
+		}
+		catch( IOException x )
+		{
+			throw new DocumentException( "Could not read archive " + archiveFile, x );
+		}
+
+		readCentralDirectory();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The zip or jar file.
+	 * 
+	 * @return The archive file
+	 */
+	public File getArchiveFile()
+	{
+		return archiveFile;
+	}
+
+	/**
+	 * If the name used in {@link #getDocument(String)} points to a directory,
+	 * then this name in that directory will be used instead.
+	 * 
+	 * @return The default name
+	 */
+	public String getDefaultName()
+	{
+		return defaultName;
+	}
+
+	/**
+	 * An extension to prefer if more than one entry with the same name is in a
+	 * directory.
+	 * 
+	 * @return The preferred extension
+	 */
+	public String getPreferredExtension()
+	{
+		return preferredExtension != null ? preferredExtension.substring( 1 ) : null;
+	}
+
+	/**
+	 * The charset used for decoding entries.
+	 * 
+	 * @return The charset
+	 */
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Decodes an entry of the archive.
+	 * 
+	 * @param entryName
+	 *        The entry name
+	 * @return The text
+	 * @throws DocumentException
+	 *         In case the entry does not exist or could not be decoded
+	 */
+	public String readEntry( String entryName ) throws DocumentException
+	{
+		Entry entry = entries.get( entryName );
+		if( entry == null )
+			throw new DocumentNotFoundException( "Entry does not exist in archive " + archiveFile + ": " + entryName );
+
+		// Absolute reads do not change the shared buffer, but slicing needs a
+		// private position
+		ByteBuffer archive = this.archive.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+		int size = archive.limit();
+		int localHeader = entry.localHeaderOffset;
+		if( ( localHeader > size - LOCAL_HEADER_SIZE ) || ( archive.getInt( localHeader ) != LOCAL_HEADER_SIGNATURE ) )
+			throw new DocumentException( "Bad local header in archive " + archiveFile + ": " + entryName );
+		long dataOffset = (long) localHeader + LOCAL_HEADER_SIZE + ( archive.getShort( localHeader + 26 ) & 0xffff ) + ( archive.getShort( localHeader + 28 ) & 0xffff );
+		if( dataOffset + entry.compressedSize > size )
+			throw new DocumentException( "Truncated entry in archive " + archiveFile + ": " + entryName );
+
+		archive.position( (int) dataOffset );
+		archive.limit( (int) dataOffset + entry.compressedSize );
+		ByteBuffer data = archive.slice();
+
+		if( entry.method == METHOD_DEFLATED )
+		{
+			// (Inflater cannot read from a buffer directly on older JVMs)
+			byte[] compressed = new byte[entry.compressedSize];
+			data.get( compressed );
+			byte[] uncompressed = new byte[entry.size];
+			Inflater inflater = new Inflater( true );
+			try
+			{
+				inflater.setInput( compressed );
+				int length = 0;
+				boolean padded = false;
+				while( length < uncompressed.length )
+				{
+					int inflated = inflater.inflate( uncompressed, length, uncompressed.length - length );
+					if( inflated == 0 )
+					{
+						// Without the zlib wrapper, the inflater might need an
+						// extra dummy byte
+						if( inflater.needsInput() && !padded )
+						{
+							inflater.setInput( new byte[1] );
+							padded = true;
+						}
+						else
+							break;
+					}
+					length += inflated;
+				}
+				if( length != uncompressed.length )
+					throw new DocumentException( "Truncated entry in archive " + archiveFile + ": " + entryName );
+			}
+			catch( DataFormatException x )
+			{
+				throw new DocumentException( "Could not inflate entry in archive " + archiveFile + ": " + entryName, x );
+			}
+			finally
+			{
+				inflater.end();
+			}
+			data = ByteBuffer.wrap( uncompressed );
+		}
+		else if( entry.method != METHOD_STORED )
+			throw new DocumentException( "Unsupported compression method " + entry.method + " in archive " + archiveFile + ": " + entryName );
+
+		try
+		{
+			CharBuffer text = charset.newDecoder().onMalformedInput( CodingErrorAction.REPLACE ).onUnmappableCharacter( CodingErrorAction.REPLACE ).decode( data );
+			return text.toString();
+		}
+		catch( CharacterCodingException x )
+		{
+			throw new DocumentException( "Could not decode entry in archive " + archiveFile + ": " + entryName, x );
+		}
+	}
+
+	//
+	// DocumentSource
+	//
+
+	/**
+	 * @see DocumentSource#getDocument(String)
+	 */
+	public DocumentDescriptor<D> getDocument( String documentName ) throws DocumentException
+	{
+		// See if we already have a descriptor for this name
+		ArchivedDocumentDescriptor<D> archivedDocumentDescriptor = archivedDocumentDescriptorsByAlias.get( documentName );
+		if( archivedDocumentDescriptor != null )
+		{
+			if( archivedDocumentDescriptor.isValid() )
+				return archivedDocumentDescriptor;
+			archivedDocumentDescriptorsByAlias.remove( documentName, archivedDocumentDescriptor );
+		}
+
+		Entry entry = getEntryForDocumentName( documentName );
+
+		// See if we already have a descriptor for this entry
+		archivedDocumentDescriptor = getDocumentDescriptor( entry );
+		archivedDocumentDescriptorsByAlias.put( documentName, archivedDocumentDescriptor );
+		return archivedDocumentDescriptor;
+	}
+
+	/**
+	 * @see DocumentSource#setDocument(String, String, String, Object)
+	 */
+	public DocumentDescriptor<D> setDocument( String documentName, String sourceCode, String tag, D document ) throws DocumentException
+	{
+		return archivedDocumentDescriptorsByAlias.put( documentName, new ArchivedDocumentDescriptor<D>( this, documentName, sourceCode, tag, document ) );
+	}
+
+	/**
+	 * @see DocumentSource#setDocumentIfAbsent(String, String, String, Object)
+	 */
+	public DocumentDescriptor<D> setDocumentIfAbsent( String documentName, String sourceCode, String tag, D document ) throws DocumentException
+	{
+		return archivedDocumentDescriptorsByAlias.putIfAbsent( documentName, new ArchivedDocumentDescriptor<D>( this, documentName, sourceCode, tag, document ) );
+	}
+
+	/**
+	 * @see DocumentSource#getDocuments()
+	 */
+	public Collection<DocumentDescriptor<D>> getDocuments()
+	{
+		ArrayList<DocumentDescriptor<D>> list = new ArrayList<DocumentDescriptor<D>>( entryList.size() );
+		for( Entry entry : entryList )
+			list.add( getDocumentDescriptor( entry ) );
+		return list;
+	}
+
+	/**
+	 * @see DocumentSource#getIdentifier()
+	 */
+	public String getIdentifier()
+	{
+		return identifier;
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "DocumentArchiveSource: " + identifier + ", " + archiveFile + ", " + defaultName + ", " + preferredExtension;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * End of central directory record signature.
+	 */
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	/**
+	 * Central directory file header signature.
+	 */
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+	/**
+	 * Local file header signature.
+	 */
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+	/**
+	 * Size of the end of central directory record, without the comment.
+	 */
+	private static final int END_SIZE = 22;
+
+	/**
+	 * Size of a central directory file header, without the variable fields.
+	 */
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	/**
+	 * Size of a local file header, without the variable fields.
+	 */
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	/**
+	 * Stored (uncompressed) entries.
+	 */
+	private static final int METHOD_STORED = 0;
+
+	/**
+	 * Deflated entries.
+	 */
+	private static final int METHOD_DEFLATED = 8;
+
+	/**
+	 * The charset for entry names.
+	 */
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	/**
+	 * The source identifier.
+	 */
+	private final String identifier;
+
+	/**
+	 * The zip or jar file.
+	 */
+	private final File archiveFile;
+
+	/**
+	 * The default name.
+	 */
+	private final String defaultName;
+
+	/**
+	 * The preferred extension, including the period.
+	 */
+	private final String preferredExtension;
+
+	/**
+	 * The charset to use for decoding entries.
+	 */
+	private final Charset charset;
+
+	/**
+	 * The memory-mapped archive.
+	 */
+	private final ByteBuffer archive;
+
+	/**
+	 * The entries by name.
+	 */
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * The entries in archive order.
+	 */
+	private final ArrayList<Entry> entryList = new ArrayList<Entry>();
+
+	/**
+	 * The entries for each name they would match while ignoring their
+	 * extension.
+	 */
+	private final HashMap<String, ArrayList<Entry>> candidates = new HashMap<String, ArrayList<Entry>>();
+
+	/**
+	 * The directories, including implicit ones, without trailing slashes. The
+	 * root is the empty string.
+	 */
+	private final HashSet<String> directories = new HashSet<String>();
+
+	/**
+	 * The document descriptors.
+	 */
+	private final ConcurrentMap<String, ArchivedDocumentDescriptor<D>> archivedDocumentDescriptorsByAlias = new ConcurrentHashMap<String, ArchivedDocumentDescriptor<D>>();
+
+	/**
+	 * The document descriptors.
+	 */
+	private final ConcurrentMap<String, ArchivedDocumentDescriptor<D>> archivedDocumentDescriptorsByEntry = new ConcurrentHashMap<String, ArchivedDocumentDescriptor<D>>();
+
+	/**
+	 * An entry in the central directory.
+	 */
+	private static class Entry
+	{
+		private Entry( String name, int method, int compressedSize, int size, int localHeaderOffset, long timestamp )
+		{
+			this.name = name;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+			this.timestamp = timestamp;
+		}
+
+		private final String name;
+
+		private final int method;
+
+		private final int compressedSize;
+
+		private final int size;
+
+		private final int localHeaderOffset;
+
+		private final long timestamp;
+	}
+
+	/**
+	 * Reads the central directory into the index.
+	 * 
+	 * @throws DocumentException
+	 *         In case of a malformed or unsupported archive
+	 */
+	private void readCentralDirectory() throws DocumentException
+	{
+		ByteBuffer archive = this.archive;
+		int size = archive.limit();
+
+		// Find the end of central directory record (it might be followed by a
+		// comment)
+		int end = -1;
+		for( int i = size - END_SIZE, stop = Math.max( 0, size - END_SIZE - 0xffff ); i >= stop; i-- )
+		{
+			if( archive.getInt( i ) == END_SIGNATURE )
+			{
+				end = i;
+				break;
+			}
+		}
+		if( end == -1 )
+			throw new DocumentException( "Not a zip archive: " + archiveFile );
+
+		int count = archive.getShort( end + 10 ) & 0xffff;
+		long offset = archive.getInt( end + 16 ) & 0xffffffffL;
+		if( ( count == 0xffff ) || ( offset == 0xffffffffL ) )
+			throw new DocumentException( "ZIP64 archives are not supported: " + archiveFile );
+
+		Calendar calendar = Calendar.getInstance();
+		directories.add( "" );
+		byte[] nameBytes = new byte[256];
+		int position = (int) offset;
+		for( int i = 0; i < count; i++ )
+		{
+			if( ( position + CENTRAL_HEADER_SIZE > size ) || ( archive.getInt( position ) != CENTRAL_HEADER_SIGNATURE ) )
+				throw new DocumentException( "Bad central directory in archive: " + archiveFile );
+
+			int flags = archive.getShort( position + 8 ) & 0xffff;
+			int method = archive.getShort( position + 10 ) & 0xffff;
+			int dosTime = archive.getShort( position + 12 ) & 0xffff;
+			int dosDate = archive.getShort( position + 14 ) & 0xffff;
+			long compressedSize = archive.getInt( position + 20 ) & 0xffffffffL;
+			long uncompressedSize = archive.getInt( position + 24 ) & 0xffffffffL;
+			int nameLength = archive.getShort( position + 28 ) & 0xffff;
+			int extraLength = archive.getShort( position + 30 ) & 0xffff;
+			int commentLength = archive.getShort( position + 32 ) & 0xffff;
+			long localHeaderOffset = archive.getInt( position + 42 ) & 0xffffffffL;
+
+			if( position + CENTRAL_HEADER_SIZE + nameLength > size )
+				throw new DocumentException( "Bad central directory in archive: " + archiveFile );
+
+			if( nameBytes.length < nameLength )
+				nameBytes = new byte[nameLength];
+			for( int n = 0; n < nameLength; n++ )
+				nameBytes[n] = archive.get( position + CENTRAL_HEADER_SIZE + n );
+			// (Without flag bit 11 names are officially CP437, but in practice
+			// tools use UTF-8, as does java.util.zip)
+			String name = new String( nameBytes, 0, nameLength, UTF8 );
+
+			position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+			if( name.endsWith( "/" ) )
+			{
+				addDirectories( name.substring( 0, name.length() - 1 ) );
+				continue;
+			}
+
+			if( ( flags & 1 ) != 0 )
+				// Encrypted
+				continue;
+
+			if( ( compressedSize > Integer.MAX_VALUE ) || ( uncompressedSize > Integer.MAX_VALUE ) || ( localHeaderOffset >= size ) )
+				throw new DocumentException( "ZIP64 archives are not supported: " + archiveFile );
+
+			calendar.clear();
+			calendar.set( ( ( dosDate >> 9 ) & 0x7f ) + 1980, ( ( dosDate >> 5 ) & 0x0f ) - 1, dosDate & 0x1f, ( dosTime >> 11 ) & 0x1f, ( dosTime >> 5 ) & 0x3f, ( dosTime << 1 ) & 0x3e );
+
+			Entry entry = new Entry( name, method, (int) compressedSize, (int) uncompressedSize, (int) localHeaderOffset, calendar.getTimeInMillis() );
+			if( entries.put( name, entry ) != null )
+				continue;
+			entryList.add( entry );
+
+			int slash = name.lastIndexOf( '/' );
+			if( slash != -1 )
+				addDirectories( name.substring( 0, slash ) );
+
+			// Every name that the entry would match, ignoring its extension
+			addCandidate( name, entry );
+			for( int dot = name.indexOf( '.', slash + 2 ); dot != -1; dot = name.indexOf( '.', dot + 1 ) )
+				addCandidate( name.substring( 0, dot ), entry );
+		}
+	}
+
+	/**
+	 * Adds a directory and its parents.
+	 * 
+	 * @param directory
+	 *        The directory, without a trailing slash
+	 */
+	private void addDirectories( String directory )
+	{
+		while( ( directory.length() > 0 ) && directories.add( directory ) )
+		{
+			int slash = directory.lastIndexOf( '/' );
+			directory = slash != -1 ? directory.substring( 0, slash ) : "";
+		}
+	}
+
+	/**
+	 * Adds an entry for a name.
+	 * 
+	 * @param name
+	 *        The name
+	 * @param entry
+	 *        The entry
+	 */
+	private void addCandidate( String name, Entry entry )
+	{
+		ArrayList<Entry> entries = candidates.get( name );
+		if( entries == null )
+		{
+			entries = new ArrayList<Entry>( 1 );
+			candidates.put( name, entries );
+		}
+		entries.add( entry );
+	}
+
+	/**
+	 * Finds the entry for a name ignoring its extension, preferring the
+	 * preferred extension.
+	 * 
+	 * @param name
+	 *        The name
+	 * @return The entry or null
+	 */
+	private Entry getCandidate( String name )
+	{
+		ArrayList<Entry> entries = candidates.get( name );
+		if( entries == null )
+			return null;
+
+		if( preferredExtension != null )
+			for( Entry entry : entries )
+				if( entry.name.endsWith( preferredExtension ) )
+					return entry;
+
+		// Default to first found
+		return entries.get( 0 );
+	}
+
+	/**
+	 * Returns an entry, treating the document name as if it were a path in the
+	 * archive. If the path specifies a directory, the entry with default name
+	 * under that directory is used.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @return The entry
+	 * @throws DocumentNotFoundException
+	 */
+	private Entry getEntryForDocumentName( String documentName ) throws DocumentNotFoundException
+	{
+		// Normalize
+		ArrayList<String> segments = new ArrayList<String>();
+		for( String segment : documentName.replace( File.separatorChar, '/' ).split( "/" ) )
+		{
+			if( ( segment.length() == 0 ) || segment.equals( "." ) )
+				continue;
+			if( segment.equals( ".." ) )
+			{
+				if( segments.isEmpty() )
+					throw new DocumentNotFoundException( "Outside of archive " + archiveFile + ": " + documentName );
+				segments.remove( segments.size() - 1 );
+			}
+			else
+				segments.add( segment );
+		}
+		StringBuilder path = new StringBuilder();
+		for( String segment : segments )
+		{
+			if( path.length() > 0 )
+				path.append( '/' );
+			path.append( segment );
+		}
+		String name = path.toString();
+
+		if( directories.contains( name ) )
+		{
+			// Return an entry with the default name
+			Entry entry = defaultName != null ? getCandidate( name.length() > 0 ? name + '/' + defaultName : defaultName ) : null;
+			if( entry != null )
+				return entry;
+			else
+				throw new DocumentNotFoundException( "No default entry in archive directory " + archiveFile + ": " + name );
+		}
+
+		Entry entry = entries.get( name );
+		if( entry == null )
+			entry = getCandidate( name );
+		if( entry != null )
+			return entry;
+		else
+			throw new DocumentNotFoundException( "Entry does not exist in archive " + archiveFile + ": " + name );
+	}
+
+	/**
+	 * Gets the document descriptor for an entry, creating it if necessary.
+	 * 
+	 * @param entry
+	 *        The entry
+	 * @return The document descriptor
+	 */
+	private ArchivedDocumentDescriptor<D> getDocumentDescriptor( Entry entry )
+	{
+		ArchivedDocumentDescriptor<D> archivedDocumentDescriptor = archivedDocumentDescriptorsByEntry.get( entry.name );
+		if( ( archivedDocumentDescriptor != null ) && !archivedDocumentDescriptor.isValid() )
+		{
+			archivedDocumentDescriptorsByEntry.remove( entry.name, archivedDocumentDescriptor );
+			archivedDocumentDescriptor = null;
+		}
+
+		if( archivedDocumentDescriptor == null )
+		{
+			archivedDocumentDescriptor = new ArchivedDocumentDescriptor<D>( this, entry.name, entry.timestamp );
+			ArchivedDocumentDescriptor<D> existing = archivedDocumentDescriptorsByEntry.putIfAbsent( entry.name, archivedDocumentDescriptor );
+			if( existing != null )
+				archivedDocumentDescriptor = existing;
+		}
+
+		return archivedDocumentDescriptor;
+	}
+}
@@ -90,6 +90,10 @@ public interface DocumentDescriptor<D>
 	 * recompiled, etc.) if documents it depends on are affected. The exact
 	 * effect depends on the implementation of the document, the document
 	 * source, or other mechanisms.
+	 * <p>
+	 * Documents executed via the
+	 * {@link com.threecrickets.scripturian.service.DocumentService} are added
+	 * automatically.
 	 * 
 	 * @return The dependent document descriptors
 	 */
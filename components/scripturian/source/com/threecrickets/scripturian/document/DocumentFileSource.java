@@ -11,18 +11,35 @@
 
 package com.threecrickets.scripturian.document;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
+import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.exception.DocumentDependencyLoopException;
 import com.threecrickets.scripturian.exception.DocumentException;
 import com.threecrickets.scripturian.exception.DocumentNotFoundException;
+import com.threecrickets.scripturian.internal.DirectoryWatcherListener;
 import com.threecrickets.scripturian.internal.FiledDocumentDescriptor;
 import com.threecrickets.scripturian.internal.ScripturianUtil;
 
@@ -34,6 +51,20 @@ import com.threecrickets.scripturian.internal.ScripturianUtil;
  * <p>
  * Documents added to the file source exist only in memory, and are not actually
  * saved to a file.
+ * <p>
+ * The cache can be bounded by number of documents and by estimated retained
+ * size, in which case the least recently used documents are evicted.
+ * <p>
+ * Instead of checking modification timestamps, the file source can be set to
+ * {@link #setWatching(boolean) watch} the base directory for changes.
+ * <p>
+ * Document names are resolved to files via an in-memory index of the
+ * directories, which is likewise checked for validity according to the
+ * directories' modification timestamps. Names are thus matched
+ * case-sensitively, even on file systems that are not.
+ * <p>
+ * For production, the file source can be {@link #seal() sealed}, after which
+ * it does not access the file system at all.
  * 
  * @author Tal Liron
  * @param <D>
@@ -175,6 +206,7 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	{
 		this.defaultName = defaultName;
 		defaultNameFilter = new DocumentFilter( defaultName, preExtension );
+		fireDocumentsChanged();
 	}
 
 	/**
@@ -197,6 +229,7 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	public void setPreferredExtension( String preferredExtension )
 	{
 		this.preferredExtension = preferredExtension == null || preferredExtension.length() == 0 ? null : '.' + preferredExtension;
+		fireDocumentsChanged();
 	}
 
 	/**
@@ -219,6 +252,8 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	{
 		this.preExtension = preExtension == null || preExtension.length() == 0 ? null : '.' + preExtension;
 		defaultNameFilter = new DocumentFilter( defaultName, preExtension );
+		directoryIndex = null;
+		fireDocumentsChanged();
 	}
 
 	/**
@@ -235,7 +270,8 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 * Attempts to call {@link #getDocument(String)} for a specific name within
 	 * less than this time from the previous call will return the cached
 	 * descriptor without checking if it is valid. A value of -1 disables all
-	 * validity checking.
+	 * validity checking of cached descriptors. Names that are not cached are
+	 * always resolved against the current files.
 	 * 
 	 * @return The minimum time between validity checks in milliseconds
 	 * @see #setMinimumTimeBetweenValidityChecks(long)
@@ -255,6 +291,100 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
 	}
 
+	/**
+	 * Whether the base directory and its subdirectories are watched for
+	 * changes. When watching, cached documents are invalidated as soon as the
+	 * file system reports that their files have changed, and validity checks
+	 * do not access the file system at all, so that
+	 * {@link #getMinimumTimeBetweenValidityChecks()} is ignored.
+	 * <p>
+	 * Note that some file systems (remote ones in particular) do not report
+	 * changes, and that some JVMs implement watching by polling. Watching
+	 * requires JVM 7 or later.
+	 * 
+	 * @return True if watching
+	 * @see #setWatching(boolean)
+	 */
+	public boolean isWatching()
+	{
+		return watcher != null;
+	}
+
+	/**
+	 * Starts or stops watching. Watching uses a daemon thread, which should be
+	 * stopped when the file source is no longer used.
+	 * 
+	 * @param watching
+	 *        True to watch
+	 * @throws IOException
+	 *         In case the base directory could not be watched, or if watching
+	 *         is not supported by the JVM
+	 * @see #isWatching()
+	 */
+	public synchronized void setWatching( boolean watching ) throws IOException
+	{
+		if( watching )
+		{
+			if( sealedDocumentDescriptors != null )
+				throw new IllegalStateException( "Cannot watch a sealed document source" );
+
+			if( watcher != null )
+				return;
+
+			watcher = createWatcher();
+			directoryIndex = null;
+
+			// Catch up with changes that happened before we started watching
+			for( FiledDocumentDescriptor<D> filedDocumentDescriptor : filedDocumentDescriptorsByFile.values() )
+				if( filedDocumentDescriptor.file.lastModified() > filedDocumentDescriptor.getTimestamp() )
+					invalidate( filedDocumentDescriptor );
+		}
+		else if( watcher != null )
+		{
+			watcher.close();
+			watcher = null;
+
+			// Listeners can no longer rely on us to report changes
+			fireDocumentsChanged();
+		}
+	}
+
+	/**
+	 * Adds a listener to be notified when documents might have been added or
+	 * removed. This is reported when the watcher sees files created or
+	 * deleted, when a directory is found to have changed while resolving a
+	 * name, and when documents are added in memory.
+	 * 
+	 * @param listener
+	 *        The listener
+	 * @see #removeListener(DocumentSourceListener)
+	 */
+	public void addListener( DocumentSourceListener listener )
+	{
+		listeners.addIfAbsent( listener );
+	}
+
+	/**
+	 * @param listener
+	 *        The listener
+	 * @see #addListener(DocumentSourceListener)
+	 */
+	public void removeListener( DocumentSourceListener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	/**
+	 * Whether the file source has been sealed.
+	 * 
+	 * @return True if sealed
+	 * @see #seal()
+	 */
+	public boolean isSealed()
+	{
+		return sealedDocumentDescriptors != null;
+	}
+
 	/**
 	 * The charset to use for reading files.
 	 * <p>
@@ -280,6 +410,67 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 		this.charset = charset;
 	}
 
+	/**
+	 * The maximum number of file documents to cache. When exceeded, the least
+	 * recently used documents are evicted. A value of -1 means no limit.
+	 * <p>
+	 * Documents added via {@link #setDocument(String, String, String, Object)}
+	 * exist only in memory, and are never evicted.
+	 * 
+	 * @return The maximum number of documents
+	 * @see #setMaximumDocuments(int)
+	 */
+	public int getMaximumDocuments()
+	{
+		return maximumDocuments;
+	}
+
+	/**
+	 * @param maximumDocuments
+	 *        The maximum number of documents or -1
+	 * @see #getMaximumDocuments()
+	 */
+	public void setMaximumDocuments( int maximumDocuments )
+	{
+		this.maximumDocuments = maximumDocuments;
+		evict();
+	}
+
+	/**
+	 * The maximum estimated number of bytes retained by cached file documents.
+	 * When exceeded, the least recently used documents are evicted. A value of
+	 * -1 means no limit.
+	 * 
+	 * @return The maximum retained size in bytes
+	 * @see #setMaximumRetainedSize(long)
+	 * @see #getRetainedSize()
+	 */
+	public long getMaximumRetainedSize()
+	{
+		return maximumRetainedSize;
+	}
+
+	/**
+	 * @param maximumRetainedSize
+	 *        The maximum retained size in bytes or -1
+	 * @see #getMaximumRetainedSize()
+	 */
+	public void setMaximumRetainedSize( long maximumRetainedSize )
+	{
+		this.maximumRetainedSize = maximumRetainedSize;
+		evict();
+	}
+
+	/**
+	 * The estimated number of bytes retained by cached file documents.
+	 * 
+	 * @return The retained size in bytes
+	 */
+	public long getRetainedSize()
+	{
+		return retainedSize.get();
+	}
+
 	/**
 	 * Gets the file's path relative to the base path.
 	 * 
@@ -307,6 +498,10 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 		if( filedDocumentDescriptor != null )
 			return filedDocumentDescriptor;
 
+		Map<String, FiledDocumentDescriptor<D>> sealedDocumentDescriptors = this.sealedDocumentDescriptors;
+		if( sealedDocumentDescriptors != null )
+			return getSealedDocumentDescriptor( sealedDocumentDescriptors, documentName );
+
 		try
 		{
 			File file = getFileForDocumentName( documentName );
@@ -336,6 +531,20 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 */
 	public DocumentDescriptor<D> getDocument( String documentName, boolean read ) throws DocumentException
 	{
+		Map<String, FiledDocumentDescriptor<D>> sealedDocumentDescriptors = this.sealedDocumentDescriptors;
+		if( sealedDocumentDescriptors != null )
+		{
+			// In-memory documents can still be added
+			FiledDocumentDescriptor<D> filedDocumentDescriptor = filedDocumentDescriptorsByAlias.get( documentName );
+			if( filedDocumentDescriptor == null )
+			{
+				filedDocumentDescriptor = getSealedDocumentDescriptor( sealedDocumentDescriptors, documentName );
+				if( filedDocumentDescriptor == null )
+					throw new DocumentNotFoundException( "File does not exist: " + new File( basePath, documentName ).getPath() );
+			}
+			return filedDocumentDescriptor;
+		}
+
 		// See if we already have a descriptor for this name
 		FiledDocumentDescriptor<D> filedDocumentDescriptor = filedDocumentDescriptorsByAlias.get( documentName );
 		if( filedDocumentDescriptor != null )
@@ -353,23 +562,161 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 			if( filedDocumentDescriptor == null )
 			{
 				// Create a new descriptor
+				long generation = watchGeneration.get();
 				filedDocumentDescriptor = new FiledDocumentDescriptor<D>( this, file, read, charset );
 				FiledDocumentDescriptor<D> existing = filedDocumentDescriptorsByFile.putIfAbsent( file, filedDocumentDescriptor );
 				if( existing != null )
 					filedDocumentDescriptor = existing;
 				else
+				{
 					// This is atomically safe, because we'll only get here once
 					// (due to the putIfAbsent above)
 					filedDocumentDescriptorsByAlias.put( documentName, filedDocumentDescriptor );
+					retainedSize.addAndGet( filedDocumentDescriptor.estimatedSize );
+					missedWatchEvents( filedDocumentDescriptor, generation );
+					evict();
+				}
 			}
 		}
 
-		if( filedDocumentDescriptor.validate && ( ( filedDocumentDescriptor.file == null ) || !filedDocumentDescriptor.file.exists() ) )
+		// (When watching, deleted files would have invalidated the descriptor)
+		if( filedDocumentDescriptor.validate && ( ( filedDocumentDescriptor.file == null ) || ( ( watcher == null ) && !filedDocumentDescriptor.file.exists() ) ) )
 			throw new DocumentNotFoundException( "Document descriptor's file does not exist: " + documentName );
 
+		filedDocumentDescriptor.touch();
 		return filedDocumentDescriptor;
 	}
 
+	/**
+	 * Reads all files under the base path, and from then on serves documents
+	 * only from an immutable table of all names that resolve to them (including
+	 * directories resolving to their default names, and names without
+	 * extensions). Meant for production, where files do not change: after
+	 * sealing, retrieving documents does not access the file system, does not
+	 * check validity, and does not modify the cache. Names that are not in the
+	 * table are not found.
+	 * <p>
+	 * Hidden files and directories are ignored. Descriptors that are already
+	 * cached and valid are kept, so that their documents need not be recreated.
+	 * Documents can still be added in memory via
+	 * {@link #setDocument(String, String, String, Object)}.
+	 * <p>
+	 * Stops {@link #setWatching(boolean) watching}. Sealing cannot be undone.
+	 * 
+	 * @throws DocumentException
+	 *         In case a file could not be read
+	 */
+	public synchronized void seal() throws DocumentException
+	{
+		if( sealedDocumentDescriptors != null )
+			return;
+
+		if( watcher != null )
+		{
+			try
+			{
+				watcher.close();
+			}
+			catch( IOException x )
+			{
+			}
+			watcher = null;
+		}
+
+		HashMap<String, FiledDocumentDescriptor<D>> sealedDocumentDescriptors = new HashMap<String, FiledDocumentDescriptor<D>>();
+		IdentityHashMap<File, FiledDocumentDescriptor<D>> byFile = new IdentityHashMap<File, FiledDocumentDescriptor<D>>();
+		seal( new DirectoryIndex( basePath ), "", sealedDocumentDescriptors, byFile );
+
+		long retainedSize = 0;
+		ArrayList<DocumentDescriptor<D>> sealedDocuments = new ArrayList<DocumentDescriptor<D>>( byFile.size() );
+		for( FiledDocumentDescriptor<D> filedDocumentDescriptor : byFile.values() )
+		{
+			sealedDocuments.add( filedDocumentDescriptor );
+			retainedSize += filedDocumentDescriptor.estimatedSize;
+		}
+		this.sealedDocuments = Collections.unmodifiableList( sealedDocuments );
+		this.sealedDocumentDescriptors = sealedDocumentDescriptors;
+
+		// The cache is no longer used for files
+		filedDocumentDescriptorsByFile.clear();
+		for( Iterator<FiledDocumentDescriptor<D>> i = filedDocumentDescriptorsByAlias.values().iterator(); i.hasNext(); )
+			if( i.next().file != null )
+				i.remove();
+		this.retainedSize.set( retainedSize );
+		directoryIndex = null;
+		fireDocumentsChanged();
+	}
+
+	/**
+	 * Evicts the least recently used file documents if the cache has grown
+	 * beyond {@link #getMaximumDocuments()} or
+	 * {@link #getMaximumRetainedSize()}. Eviction continues until the cache is
+	 * below 90% of the limits, so that it does not happen for every new
+	 * document.
+	 * <p>
+	 * Evicted documents are only dropped from the cache and from the dependency
+	 * graph, because other threads may still be using them. As with
+	 * invalidated documents, the enterable execution contexts of evicted
+	 * {@link Executable} documents are released once the executables are no
+	 * longer reachable.
+	 * <p>
+	 * Called automatically when documents are added to the cache.
+	 */
+	public void evict()
+	{
+		// Sealed documents are never evicted
+		if( sealedDocumentDescriptors != null )
+			return;
+
+		int maximumDocuments = this.maximumDocuments;
+		long maximumRetainedSize = this.maximumRetainedSize;
+		if( !isOverLimit( maximumDocuments, maximumRetainedSize, 1.0 ) )
+			return;
+
+		// Only one thread evicts at a time
+		if( !evicting.compareAndSet( false, true ) )
+			return;
+
+		try
+		{
+			ArrayList<FiledDocumentDescriptor<D>> lru = new ArrayList<FiledDocumentDescriptor<D>>( filedDocumentDescriptorsByFile.values() );
+			int size = lru.size();
+			long[] lastAccessTimestamps = new long[size];
+			Integer[] order = new Integer[size];
+			for( int i = 0; i < size; i++ )
+			{
+				lastAccessTimestamps[i] = lru.get( i ).getLastAccessTimestamp();
+				order[i] = i;
+			}
+			Arrays.sort( order, new LeastRecentlyUsed( lastAccessTimestamps ) );
+
+			Set<FiledDocumentDescriptor<D>> evicted = Collections.newSetFromMap( new IdentityHashMap<FiledDocumentDescriptor<D>, Boolean>() );
+			for( int i = 0; ( i < size ) && isOverLimit( maximumDocuments, maximumRetainedSize, LOW_WATER_MARK ); i++ )
+			{
+				FiledDocumentDescriptor<D> filedDocumentDescriptor = lru.get( order[i] );
+				if( removeByFile( filedDocumentDescriptor ) )
+					evicted.add( filedDocumentDescriptor );
+			}
+
+			if( evicted.isEmpty() )
+				return;
+
+			// Remove aliases
+			for( Iterator<FiledDocumentDescriptor<D>> i = filedDocumentDescriptorsByAlias.values().iterator(); i.hasNext(); )
+				if( evicted.contains( i.next() ) )
+					i.remove();
+
+			// Documents that depend on the evicted ones should not keep them
+			// reachable
+			for( FiledDocumentDescriptor<D> filedDocumentDescriptor : evicted )
+				filedDocumentDescriptor.detach();
+		}
+		finally
+		{
+			evicting.set( false );
+		}
+	}
+
 	//
 	// DocumentSource
 	//
@@ -387,7 +734,9 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 */
 	public DocumentDescriptor<D> setDocument( String documentName, String sourceCode, String tag, D document ) throws DocumentException
 	{
-		return filedDocumentDescriptorsByAlias.put( documentName, new FiledDocumentDescriptor<D>( this, documentName, sourceCode, tag, document, false ) );
+		DocumentDescriptor<D> last = filedDocumentDescriptorsByAlias.put( documentName, new FiledDocumentDescriptor<D>( this, documentName, sourceCode, tag, document, false ) );
+		fireDocumentsChanged();
+		return last;
 	}
 
 	/**
@@ -395,7 +744,10 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 */
 	public DocumentDescriptor<D> setDocumentIfAbsent( String documentName, String sourceCode, String tag, D document ) throws DocumentException
 	{
-		return filedDocumentDescriptorsByAlias.putIfAbsent( documentName, new FiledDocumentDescriptor<D>( this, documentName, sourceCode, tag, document, false ) );
+		DocumentDescriptor<D> existing = filedDocumentDescriptorsByAlias.putIfAbsent( documentName, new FiledDocumentDescriptor<D>( this, documentName, sourceCode, tag, document, false ) );
+		if( existing == null )
+			fireDocumentsChanged();
+		return existing;
 	}
 
 	/**
@@ -403,6 +755,10 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 */
 	public Collection<DocumentDescriptor<D>> getDocuments()
 	{
+		List<DocumentDescriptor<D>> sealedDocuments = this.sealedDocuments;
+		if( sealedDocuments != null )
+			return sealedDocuments;
+
 		return collectDocumentDescriptors( basePath );
 	}
 
@@ -437,6 +793,31 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 */
 	private final ConcurrentMap<File, FiledDocumentDescriptor<D>> filedDocumentDescriptorsByFile = new ConcurrentHashMap<File, FiledDocumentDescriptor<D>>();
 
+	/**
+	 * Eviction stops when the cache is below this fraction of the limits.
+	 */
+	private static final double LOW_WATER_MARK = 0.9;
+
+	/**
+	 * The estimated number of bytes retained by cached file documents.
+	 */
+	private final AtomicLong retainedSize = new AtomicLong();
+
+	/**
+	 * Whether a thread is currently evicting.
+	 */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * See {@link #getMaximumDocuments()}
+	 */
+	private volatile int maximumDocuments = -1;
+
+	/**
+	 * See {@link #getMaximumRetainedSize()}
+	 */
+	private volatile long maximumRetainedSize = -1;
+
 	/**
 	 * The filename postfixes to ignore.
 	 */
@@ -482,6 +863,267 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 */
 	private volatile long minimumTimeBetweenValidityChecks;
 
+	/**
+	 * The directory watcher class, which is loaded by name because it requires
+	 * JVM 7 or later.
+	 */
+	private static final String DIRECTORY_WATCHER_CLASS = "com.threecrickets.scripturian.internal.DirectoryWatcher";
+
+	/**
+	 * The directory watcher, or null if not watching.
+	 */
+	private volatile Closeable watcher;
+
+	/**
+	 * Incremented whenever the watcher handles events.
+	 */
+	private final AtomicLong watchGeneration = new AtomicLong();
+
+	/**
+	 * Whether the file system is case-insensitive, or null if not known yet.
+	 */
+	private volatile Boolean caseInsensitive;
+
+	/**
+	 * The index of the base directory, or null if it has to be recreated.
+	 */
+	private volatile DirectoryIndex directoryIndex;
+
+	/**
+	 * The listeners.
+	 */
+	private final CopyOnWriteArrayList<DocumentSourceListener> listeners = new CopyOnWriteArrayList<DocumentSourceListener>();
+
+	/**
+	 * The sealed document descriptors by name, or null if not sealed.
+	 */
+	private volatile Map<String, FiledDocumentDescriptor<D>> sealedDocumentDescriptors;
+
+	/**
+	 * The sealed document descriptors, or null if not sealed.
+	 */
+	private volatile List<DocumentDescriptor<D>> sealedDocuments;
+
+	/**
+	 * Whether the cache is over a fraction of the limits.
+	 * 
+	 * @param maximumDocuments
+	 *        The maximum number of documents or -1
+	 * @param maximumRetainedSize
+	 *        The maximum retained size in bytes or -1
+	 * @param fraction
+	 *        The fraction of the limits
+	 * @return True if over the limits
+	 */
+	private boolean isOverLimit( int maximumDocuments, long maximumRetainedSize, double fraction )
+	{
+		if( ( maximumDocuments != -1 ) && ( filedDocumentDescriptorsByFile.size() > maximumDocuments * fraction ) )
+			return true;
+		if( ( maximumRetainedSize != -1 ) && ( retainedSize.get() > maximumRetainedSize * fraction ) )
+			return true;
+		return false;
+	}
+
+	/**
+	 * Removes a file document descriptor from the cache, keeping track of the
+	 * retained size.
+	 * 
+	 * @param filedDocumentDescriptor
+	 *        The document descriptor
+	 * @return True if removed
+	 */
+	private boolean removeByFile( FiledDocumentDescriptor<D> filedDocumentDescriptor )
+	{
+		if( ( filedDocumentDescriptor.file != null ) && filedDocumentDescriptorsByFile.remove( filedDocumentDescriptor.file, filedDocumentDescriptor ) )
+		{
+			retainedSize.addAndGet( -filedDocumentDescriptor.estimatedSize );
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Notifies the listeners that documents might have been added or removed.
+	 */
+	private void fireDocumentsChanged()
+	{
+		for( DocumentSourceListener listener : listeners )
+			listener.documentsChanged( this );
+	}
+
+	/**
+	 * Invalidates a file document descriptor and removes it from the cache.
+	 * Its aliases are removed when next accessed.
+	 * 
+	 * @param filedDocumentDescriptor
+	 *        The document descriptor
+	 */
+	private void invalidate( FiledDocumentDescriptor<D> filedDocumentDescriptor )
+	{
+		filedDocumentDescriptor.invalidate();
+		removeByFile( filedDocumentDescriptor );
+	}
+
+	/**
+	 * Invalidates the file document descriptors affected by a change.
+	 * 
+	 * @param directory
+	 *        The directory in which the change happened, or null to invalidate
+	 *        all descriptors
+	 * @param file
+	 *        The changed file or directory
+	 * @param created
+	 *        True if the file was created or deleted, in which case the names
+	 *        of other documents in the directory might now resolve to
+	 *        different files
+	 */
+	private void invalidate( File directory, File file, boolean created )
+	{
+		if( ( directory != null ) && !created )
+		{
+			// Only the file itself is affected
+			FiledDocumentDescriptor<D> filedDocumentDescriptor = filedDocumentDescriptorsByFile.get( file );
+			if( filedDocumentDescriptor == null )
+				filedDocumentDescriptor = filedDocumentDescriptorsByFile.get( ScripturianUtil.getNormalizedFile( file ) );
+			if( filedDocumentDescriptor != null )
+				invalidate( filedDocumentDescriptor );
+			return;
+		}
+
+		String prefix = file != null ? file.getPath() + File.separator : null;
+		for( FiledDocumentDescriptor<D> filedDocumentDescriptor : filedDocumentDescriptorsByFile.values() )
+		{
+			if( directory != null )
+			{
+				File descriptorFile = ScripturianUtil.getNormalizedFile( filedDocumentDescriptor.file );
+				if( !descriptorFile.equals( file ) && !descriptorFile.getPath().startsWith( prefix ) && ( !created || !directory.equals( descriptorFile.getParentFile() ) ) )
+					continue;
+			}
+
+			invalidate( filedDocumentDescriptor );
+		}
+	}
+
+	/**
+	 * If the watcher handled events while the descriptor was being created, it
+	 * might have missed a change to its file, so we play it safe.
+	 * 
+	 * @param filedDocumentDescriptor
+	 *        The new document descriptor
+	 * @param generation
+	 *        The watch generation before the descriptor was created
+	 */
+	private void missedWatchEvents( FiledDocumentDescriptor<D> filedDocumentDescriptor, long generation )
+	{
+		if( ( watcher != null ) && ( watchGeneration.get() != generation ) )
+			invalidate( filedDocumentDescriptor );
+	}
+
+	/**
+	 * Creates a directory watcher for the base directory.
+	 * 
+	 * @return The directory watcher
+	 * @throws IOException
+	 *         In case the base directory could not be watched, or if watching
+	 *         is not supported by the JVM
+	 * @see #DIRECTORY_WATCHER_CLASS
+	 */
+	private Closeable createWatcher() throws IOException
+	{
+		try
+		{
+			Class<?> watcherClass = Class.forName( DIRECTORY_WATCHER_CLASS );
+			return (Closeable) watcherClass.getConstructor( File.class, String.class, DirectoryWatcherListener.class ).newInstance( basePath, "Scripturian Document Watcher: " + identifier, new WatcherListener() );
+		}
+		catch( InvocationTargetException x )
+		{
+			Throwable cause = x.getCause();
+			if( cause instanceof IOException )
+				throw (IOException) cause;
+			else if( cause instanceof RuntimeException )
+				throw (RuntimeException) cause;
+			else
+				throw new IOException( "Could not watch " + basePath, cause );
+		}
+		catch( ClassNotFoundException x )
+		{
+			throw new IOException( "Watching requires JVM 7 or later", x );
+		}
+		catch( LinkageError x )
+		{
+			throw new IOException( "Watching requires JVM 7 or later", x );
+		}
+		catch( Exception x )
+		{
+			throw new IOException( "Could not watch " + basePath, x );
+		}
+	}
+
+	/**
+	 * Invalidates file document descriptors when the watcher reports that
+	 * their files have changed.
+	 */
+	private class WatcherListener implements DirectoryWatcherListener
+	{
+		public void changed( File directory, File file, boolean created )
+		{
+			watchGeneration.incrementAndGet();
+
+			if( created )
+			{
+				DirectoryIndex directoryIndex = getDirectoryIndex( directory );
+				if( directoryIndex != null )
+					directoryIndex.stale = true;
+				fireDocumentsChanged();
+			}
+
+			invalidate( directory, file, created );
+		}
+
+		public void lost()
+		{
+			watchGeneration.incrementAndGet();
+			directoryIndex = null;
+			invalidate( null, null, true );
+			fireDocumentsChanged();
+		}
+
+		public void failed( Closeable watcher )
+		{
+			synchronized( DocumentFileSource.this )
+			{
+				if( DocumentFileSource.this.watcher != watcher )
+					return;
+				DocumentFileSource.this.watcher = null;
+			}
+
+			// Validity checks will access the file system again, but
+			// descriptors that were valid when the watcher stopped must be
+			// checked, too
+			lost();
+		}
+	}
+
+	/**
+	 * Orders indexes by ascending last access timestamps.
+	 */
+	private static class LeastRecentlyUsed implements Comparator<Integer>
+	{
+		private LeastRecentlyUsed( long[] lastAccessTimestamps )
+		{
+			this.lastAccessTimestamps = lastAccessTimestamps;
+		}
+
+		public int compare( Integer index1, Integer index2 )
+		{
+			long timestamp1 = lastAccessTimestamps[index1];
+			long timestamp2 = lastAccessTimestamps[index2];
+			return timestamp1 < timestamp2 ? -1 : ( timestamp1 == timestamp2 ? 0 : 1 );
+		}
+
+		private final long[] lastAccessTimestamps;
+	}
+
 	/**
 	 * Recursively collects document descriptors for all files under a base
 	 * path.
@@ -512,10 +1154,16 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 					{
 						try
 						{
+							long generation = watchGeneration.get();
 							filedDocumentDescriptor = new FiledDocumentDescriptor<D>( this, file, true, charset );
 							FiledDocumentDescriptor<D> existing = filedDocumentDescriptorsByFile.putIfAbsent( file, filedDocumentDescriptor );
 							if( existing != null )
 								filedDocumentDescriptor = existing;
+							else
+							{
+								retainedSize.addAndGet( filedDocumentDescriptor.estimatedSize );
+								missedWatchEvents( filedDocumentDescriptor, generation );
+							}
 						}
 						catch( DocumentException x )
 						{
@@ -527,6 +1175,7 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 			}
 		}
 
+		evict();
 		return list;
 	}
 
@@ -546,9 +1195,8 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 
 		public boolean accept( File dir, String name )
 		{
-			for( String ignorePostix : ignorePostfixes )
-				if( name.endsWith( ignorePostix ) )
-					return false;
+			if( isIgnored( name ) )
+				return false;
 
 			return ( name.equals( this.name ) ) || ( name.startsWith( namePrefix ) );
 		}
@@ -567,6 +1215,9 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 * Returns a non-directory file, treating the document name as if it were a
 	 * path under our base path. If the path specifies a directory, the file
 	 * with default name under that directory is used.
+	 * <p>
+	 * Uses the directory index, so that the file system is not accessed unless
+	 * a directory has changed.
 	 * 
 	 * @param documentName
 	 *        The document name
@@ -574,6 +1225,468 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 	 * @throws DocumentNotFoundException
 	 */
 	private File getFileForDocumentName( String documentName ) throws DocumentNotFoundException
+	{
+		ArrayList<String> segments = new ArrayList<String>();
+		int start = 0;
+		int length = documentName.length();
+		for( int i = 0; i <= length; i++ )
+		{
+			if( ( i == length ) || ( documentName.charAt( i ) == '/' ) || ( documentName.charAt( i ) == File.separatorChar ) )
+			{
+				if( i > start )
+				{
+					String segment = documentName.substring( start, i );
+
+					// Relative segments could lead outside the index
+					if( segment.equals( "." ) || segment.equals( ".." ) )
+						return scanForDocumentName( documentName );
+
+					segments.add( segment );
+				}
+				start = i + 1;
+			}
+		}
+
+		DirectoryIndex directoryIndex = this.directoryIndex;
+		if( directoryIndex == null )
+			this.directoryIndex = directoryIndex = new DirectoryIndex( basePath );
+
+		// Walk down the directories
+		int last = segments.size() - 1;
+		for( int i = 0; i < last; i++ )
+		{
+			directoryIndex = directoryIndex.getListing().subdirectories.get( segments.get( i ) );
+			if( directoryIndex == null )
+				return notFound( documentName, "File does not exist: " + new File( basePath, documentName ).getPath() );
+		}
+
+		String name;
+		if( last == -1 )
+			// The base directory itself
+			name = null;
+		else
+		{
+			name = segments.get( last );
+			DirectoryIndex.Listing listing = directoryIndex.getListing();
+			DirectoryIndex subdirectoryIndex = listing.subdirectories.get( name );
+			if( ( defaultName != null ) && ( subdirectoryIndex != null ) )
+			{
+				directoryIndex = subdirectoryIndex;
+				name = null;
+			}
+			else
+			{
+				File file = listing.files.get( name );
+				if( file != null )
+					return file;
+			}
+		}
+
+		if( name == null )
+		{
+			// Without a default name, the directory itself is returned
+			if( defaultName == null )
+				return directoryIndex.directory;
+
+			// Return a file with the default name
+			File file = directoryIndex.getListing().getCandidate( defaultName );
+			if( file != null )
+				return file;
+			else
+				return notFound( documentName, "No default file in directory: " + directoryIndex.directory.getPath() );
+		}
+		else
+		{
+			// Return a file with our name
+			File file = directoryIndex.getListing().getCandidate( name );
+			if( file != null )
+				return file;
+			else
+				return notFound( documentName, "File does not exist: " + new File( directoryIndex.directory, name ).getPath() );
+		}
+	}
+
+	/**
+	 * Called when a document name is not in the directory index. On
+	 * case-insensitive file systems, the name might still differ from a file
+	 * only in case, so we let the file system resolve it.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @param message
+	 *        The message if the document is not found
+	 * @return The file
+	 * @throws DocumentNotFoundException
+	 */
+	private File notFound( String documentName, String message ) throws DocumentNotFoundException
+	{
+		if( isCaseInsensitive() )
+			return scanForDocumentName( documentName );
+		throw new DocumentNotFoundException( message );
+	}
+
+	/**
+	 * Whether the file system of the base directory is case-insensitive. This
+	 * is determined once, by looking for the base directory (or one of its
+	 * parents) under a name with different case.
+	 * 
+	 * @return True if case-insensitive
+	 */
+	private boolean isCaseInsensitive()
+	{
+		Boolean caseInsensitive = this.caseInsensitive;
+		if( caseInsensitive == null )
+		{
+			caseInsensitive = false;
+			for( File file = basePath; file != null; file = file.getParentFile() )
+			{
+				String name = file.getName();
+				String otherCase = name.toUpperCase();
+				if( otherCase.equals( name ) )
+					otherCase = name.toLowerCase();
+				if( !otherCase.equals( name ) )
+				{
+					if( file.exists() )
+					{
+						caseInsensitive = new File( file.getParentFile(), otherCase ).exists();
+						this.caseInsensitive = caseInsensitive;
+					}
+					break;
+				}
+			}
+		}
+		return caseInsensitive;
+	}
+
+	/**
+	 * Finds the index of a directory, if it has been created.
+	 * 
+	 * @param directory
+	 *        The directory
+	 * @return The directory index or null
+	 */
+	private DirectoryIndex getDirectoryIndex( File directory )
+	{
+		DirectoryIndex directoryIndex = this.directoryIndex;
+		if( directoryIndex == null )
+			return null;
+
+		String path = directory.getPath();
+		String basePath = this.basePath.getPath();
+		if( !path.startsWith( basePath ) )
+			return null;
+
+		for( String segment : path.substring( basePath.length() ).split( Pattern.quote( File.separator ) ) )
+		{
+			if( segment.length() == 0 )
+				continue;
+
+			DirectoryIndex.Listing listing = directoryIndex.listing;
+			directoryIndex = listing != null ? listing.subdirectories.get( segment ) : null;
+			if( directoryIndex == null )
+				return null;
+		}
+
+		return directoryIndex;
+	}
+
+	/**
+	 * An in-memory index of the entries of a directory, used to resolve
+	 * document names without accessing the file system. Missing names are
+	 * simply not in the index.
+	 * <p>
+	 * The listing is recreated if the directory's modification timestamp
+	 * changes (checked no more often than
+	 * {@link DocumentFileSource#getMinimumTimeBetweenValidityChecks()}), or,
+	 * when watching, if the watcher marks it as stale.
+	 */
+	private class DirectoryIndex
+	{
+		private DirectoryIndex( File directory )
+		{
+			this.directory = directory;
+		}
+
+		/**
+		 * An immutable listing of the directory.
+		 */
+		private class Listing
+		{
+			private Listing( Listing previous )
+			{
+				timestamp = directory.lastModified();
+				String preExtension = DocumentFileSource.this.preExtension;
+				String namePostfix = preExtension == null ? "." : preExtension + '.';
+
+				File[] files = directory.listFiles();
+				if( files != null )
+				{
+					for( File file : files )
+					{
+						String name = file.getName();
+						this.files.put( name, file );
+
+						if( file.isDirectory() )
+						{
+							DirectoryIndex subdirectoryIndex = previous != null ? previous.subdirectories.get( name ) : null;
+							if( subdirectoryIndex == null )
+								subdirectoryIndex = new DirectoryIndex( file );
+							subdirectories.put( name, subdirectoryIndex );
+						}
+
+						// Every name that the file would match, ignoring its
+						// extension (see DocumentFilter)
+						addCandidate( name, file );
+						for( int dot = name.indexOf( '.', 1 ); dot != -1; dot = name.indexOf( '.', dot + 1 ) )
+						{
+							String candidateName = name.substring( 0, dot );
+							if( name.startsWith( namePostfix, dot ) )
+								addCandidate( candidateName, file );
+						}
+					}
+				}
+			}
+
+			/**
+			 * Finds the file for a name, as would {@link DocumentFilter}, and
+			 * preferring the preferred extension.
+			 */
+			private File getCandidate( String name )
+			{
+				ArrayList<File> candidates = this.candidates.get( name );
+				if( candidates == null )
+					return null;
+
+				String preferredExtension = DocumentFileSource.this.preferredExtension;
+				File found = null;
+				for( File candidate : candidates )
+				{
+					if( isIgnored( candidate.getName() ) )
+						continue;
+
+					if( ( preferredExtension == null ) || candidate.getName().endsWith( preferredExtension ) )
+						return candidate;
+
+					if( found == null )
+						found = candidate;
+				}
+
+				return found;
+			}
+
+			private void addCandidate( String name, File file )
+			{
+				ArrayList<File> candidates = this.candidates.get( name );
+				if( candidates == null )
+				{
+					candidates = new ArrayList<File>( 1 );
+					this.candidates.put( name, candidates );
+				}
+				candidates.add( file );
+			}
+
+			private final long timestamp;
+
+			private final HashMap<String, File> files = new HashMap<String, File>();
+
+			private final HashMap<String, DirectoryIndex> subdirectories = new HashMap<String, DirectoryIndex>();
+
+			private final HashMap<String, ArrayList<File>> candidates = new HashMap<String, ArrayList<File>>();
+		}
+
+		private Listing getListing()
+		{
+			Listing listing = this.listing;
+			if( ( listing == null ) || stale )
+				return list( listing );
+
+			if( watcher == null )
+			{
+				// The index is only used for names that are not cached, so
+				// even when cached descriptors are never validated (-1) new
+				// files must be found
+				long minimumTimeBetweenValidityChecks = DocumentFileSource.this.minimumTimeBetweenValidityChecks;
+				long now = System.currentTimeMillis();
+				if( ( minimumTimeBetweenValidityChecks == -1 ) || ( ( now - lastValidityCheckTimestamp ) > minimumTimeBetweenValidityChecks ) )
+				{
+					lastValidityCheckTimestamp = now;
+					if( directory.lastModified() != listing.timestamp )
+						return list( listing );
+				}
+			}
+
+			return listing;
+		}
+
+		private Listing list( Listing previous )
+		{
+			// An event arriving while listing will mark us as stale again
+			stale = false;
+			lastValidityCheckTimestamp = System.currentTimeMillis();
+			Listing listing = new Listing( previous );
+			this.listing = listing;
+			if( previous != null )
+				fireDocumentsChanged();
+			return listing;
+		}
+
+		private final File directory;
+
+		private volatile Listing listing;
+
+		private volatile long lastValidityCheckTimestamp;
+
+		private volatile boolean stale;
+	}
+
+	/**
+	 * Recursively adds the names that resolve to documents in a directory to
+	 * the sealed table, resolving them as would
+	 * {@link #getFileForDocumentName(String)}.
+	 * 
+	 * @param directoryIndex
+	 *        The directory index
+	 * @param prefix
+	 *        The names' prefix for the directory
+	 * @param sealedDocumentDescriptors
+	 *        The table
+	 * @param byFile
+	 *        The descriptors by file
+	 * @throws DocumentException
+	 *         In case a file could not be read
+	 */
+	private void seal( DirectoryIndex directoryIndex, String prefix, Map<String, FiledDocumentDescriptor<D>> sealedDocumentDescriptors, Map<File, FiledDocumentDescriptor<D>> byFile ) throws DocumentException
+	{
+		DirectoryIndex.Listing listing = directoryIndex.getListing();
+
+		// Names of files
+		for( Map.Entry<String, File> entry : listing.files.entrySet() )
+		{
+			String name = entry.getKey();
+			File file = entry.getValue();
+			if( file.isHidden() )
+				continue;
+
+			DirectoryIndex subdirectoryIndex = listing.subdirectories.get( name );
+			if( subdirectoryIndex != null )
+				seal( subdirectoryIndex, prefix + name + '/', sealedDocumentDescriptors, byFile );
+			else
+				sealedDocumentDescriptors.put( prefix + name, getSealingDocumentDescriptor( file, byFile ) );
+		}
+
+		// Names without extensions
+		for( String name : listing.candidates.keySet() )
+		{
+			if( listing.files.containsKey( name ) )
+				continue;
+
+			File file = listing.getCandidate( name );
+			if( ( file != null ) && !file.isHidden() && !listing.subdirectories.containsKey( file.getName() ) )
+				sealedDocumentDescriptors.put( prefix + name, getSealingDocumentDescriptor( file, byFile ) );
+		}
+
+		// The directory itself
+		if( defaultName != null )
+		{
+			File file = listing.getCandidate( defaultName );
+			if( ( file != null ) && !file.isHidden() && !listing.subdirectories.containsKey( file.getName() ) )
+				sealedDocumentDescriptors.put( prefix.length() > 0 ? prefix.substring( 0, prefix.length() - 1 ) : prefix, getSealingDocumentDescriptor( file, byFile ) );
+		}
+	}
+
+	/**
+	 * Gets the document descriptor for a file while sealing, keeping valid
+	 * cached descriptors.
+	 * 
+	 * @param file
+	 *        The file
+	 * @param byFile
+	 *        The descriptors by file
+	 * @return The document descriptor
+	 * @throws DocumentException
+	 *         In case the file could not be read
+	 */
+	private FiledDocumentDescriptor<D> getSealingDocumentDescriptor( File file, Map<File, FiledDocumentDescriptor<D>> byFile ) throws DocumentException
+	{
+		FiledDocumentDescriptor<D> filedDocumentDescriptor = byFile.get( file );
+		if( filedDocumentDescriptor == null )
+		{
+			filedDocumentDescriptor = filedDocumentDescriptorsByFile.get( file );
+			if( ( filedDocumentDescriptor == null ) || !filedDocumentDescriptor.isValid() || ( filedDocumentDescriptor.getSourceCode() == null ) )
+				filedDocumentDescriptor = new FiledDocumentDescriptor<D>( this, file, true, charset );
+			byFile.put( file, filedDocumentDescriptor );
+		}
+		return filedDocumentDescriptor;
+	}
+
+	/**
+	 * Looks up a sealed document descriptor, normalizing the name if
+	 * necessary.
+	 * 
+	 * @param sealedDocumentDescriptors
+	 *        The table
+	 * @param documentName
+	 *        The document name
+	 * @return The document descriptor or null
+	 */
+	private FiledDocumentDescriptor<D> getSealedDocumentDescriptor( Map<String, FiledDocumentDescriptor<D>> sealedDocumentDescriptors, String documentName )
+	{
+		FiledDocumentDescriptor<D> filedDocumentDescriptor = sealedDocumentDescriptors.get( documentName );
+		if( filedDocumentDescriptor != null )
+			return filedDocumentDescriptor;
+
+		ArrayList<String> segments = new ArrayList<String>();
+		for( String segment : documentName.replace( File.separatorChar, '/' ).split( "/" ) )
+		{
+			if( ( segment.length() == 0 ) || segment.equals( "." ) )
+				continue;
+			if( segment.equals( ".." ) )
+			{
+				if( segments.isEmpty() )
+					// Outside the base path
+					return null;
+				segments.remove( segments.size() - 1 );
+			}
+			else
+				segments.add( segment );
+		}
+
+		StringBuilder name = new StringBuilder();
+		for( String segment : segments )
+		{
+			if( name.length() > 0 )
+				name.append( '/' );
+			name.append( segment );
+		}
+
+		return sealedDocumentDescriptors.get( name.toString() );
+	}
+
+	/**
+	 * Whether a filename ends with one of the ignored postfixes.
+	 * 
+	 * @param name
+	 *        The filename
+	 * @return True if ignored
+	 */
+	private boolean isIgnored( String name )
+	{
+		for( String ignorePostix : ignorePostfixes )
+			if( name.endsWith( ignorePostix ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Like {@link #getFileForDocumentName(String)}, but scans the file system
+	 * instead of using the directory index.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @return The file
+	 * @throws DocumentNotFoundException
+	 */
+	private File scanForDocumentName( String documentName ) throws DocumentNotFoundException
 	{
 		File file = new File( basePath, documentName );
 
@@ -643,8 +1756,7 @@ public class DocumentFileSource<D> implements DocumentSource<D>
 				filedDocumentDescriptorsByAlias.remove( documentName, filedDocumentDescriptor );
 
 			// Remove by file
-			if( filedDocumentDescriptor.file != null )
-				filedDocumentDescriptorsByFile.remove( filedDocumentDescriptor.file, filedDocumentDescriptor );
+			removeByFile( filedDocumentDescriptor );
 
 			filedDocumentDescriptor = null;
 		}
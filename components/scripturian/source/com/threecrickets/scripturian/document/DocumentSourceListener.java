@@ -0,0 +1,34 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.document;
+
+/**
+ * Notified when the documents that a {@link DocumentSource} can resolve, or
+ * the way it resolves names to them, might have changed.
+ * <p>
+ * Listeners are added via
+ * {@link DocumentFileSource#addListener(DocumentSourceListener)} or
+ * {@link ChainDocumentSource#addListener(DocumentSourceListener)}. They may be
+ * called in any thread, so they should return quickly.
+ * 
+ * @author Tal Liron
+ */
+public interface DocumentSourceListener
+{
+	/**
+	 * Called when documents might have been added or removed.
+	 * 
+	 * @param documentSource
+	 *        The document source
+	 */
+	public void documentsChanged( DocumentSource<?> documentSource );
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.exception;
+
+import com.threecrickets.scripturian.ExecutionContext;
+
+/**
+ * An execution was stopped because it ran longer than the timeout of its
+ * execution context.
+ *
+ * @author Tal Liron
+ * @see ExecutionContext#setTimeout(long)
+ */
+public class ExecutionTimeoutException extends ExecutionException
+{
+	//
+	// Construction
+	//
+
+	public ExecutionTimeoutException( String documentName, String message )
+	{
+		super( documentName, message );
+	}
+
+	public ExecutionTimeoutException( String documentName, String message, Throwable cause )
+	{
+		super( documentName, message, cause );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final long serialVersionUID = 1L;
+}
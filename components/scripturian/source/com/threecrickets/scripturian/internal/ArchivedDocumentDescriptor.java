@@ -0,0 +1,236 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.threecrickets.scripturian.document.DocumentArchiveSource;
+import com.threecrickets.scripturian.document.DocumentDescriptor;
+import com.threecrickets.scripturian.document.DocumentSource;
+import com.threecrickets.scripturian.exception.DocumentException;
+
+/**
+ * Document descriptor for {@link DocumentArchiveSource}. The source code is
+ * decoded from the archive the first time it is requested.
+ * 
+ * @author Tal Liron
+ */
+public class ArchivedDocumentDescriptor<D> implements DocumentDescriptor<D>
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor for an archive entry.
+	 * 
+	 * @param documentSource
+	 *        The document source
+	 * @param entryName
+	 *        The entry name
+	 * @param timestamp
+	 *        The entry's timestamp
+	 */
+	public ArchivedDocumentDescriptor( DocumentArchiveSource<D> documentSource, String entryName, long timestamp )
+	{
+		this.documentSource = documentSource;
+		this.entryName = entryName;
+		this.timestamp = timestamp;
+		inMemory = false;
+		int period = entryName.lastIndexOf( '.' );
+		tag = period > entryName.lastIndexOf( '/' ) ? entryName.substring( period + 1 ) : null;
+	}
+
+	/**
+	 * Constructor for an in-memory document.
+	 * 
+	 * @param documentSource
+	 *        The document source
+	 * @param defaultName
+	 *        The default name
+	 * @param sourceCode
+	 *        The source code
+	 * @param tag
+	 *        The descriptor tag
+	 * @param document
+	 *        The document
+	 */
+	public ArchivedDocumentDescriptor( DocumentArchiveSource<D> documentSource, String defaultName, String sourceCode, String tag, D document )
+	{
+		this.documentSource = documentSource;
+		entryName = defaultName;
+		timestamp = System.currentTimeMillis();
+		this.sourceCode = sourceCode;
+		this.tag = tag;
+		this.document = document;
+		inMemory = true;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * Whether the document exists only in memory.
+	 * 
+	 * @return True if in memory
+	 */
+	public boolean isInMemory()
+	{
+		return inMemory;
+	}
+
+	/**
+	 * Whether the descriptor has been invalidated.
+	 * 
+	 * @return True if valid
+	 */
+	public boolean isValid()
+	{
+		return !invalid;
+	}
+
+	//
+	// DocumentDescriptor
+	//
+
+	public String getDefaultName()
+	{
+		return entryName;
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *         If the entry could not be read from the archive
+	 */
+	public String getSourceCode()
+	{
+		String sourceCode = this.sourceCode;
+		if( ( sourceCode == null ) && !inMemory )
+		{
+			try
+			{
+				this.sourceCode = sourceCode = documentSource.readEntry( entryName );
+			}
+			catch( DocumentException x )
+			{
+				throw new IllegalStateException( x.getMessage(), x );
+			}
+		}
+		return sourceCode;
+	}
+
+	public String getTag()
+	{
+		return tag;
+	}
+
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	public D getDocument()
+	{
+		return document;
+	}
+
+	public synchronized D setDocument( D document )
+	{
+		D last = this.document;
+		this.document = document;
+		return last;
+	}
+
+	public synchronized D setDocumentIfAbsent( D document )
+	{
+		if( this.document != null )
+			return this.document;
+
+		this.document = document;
+		return null;
+	}
+
+	public DocumentSource<D> getSource()
+	{
+		return documentSource;
+	}
+
+	public Set<DocumentDescriptor<D>> getDependencies()
+	{
+		return dependencies;
+	}
+
+	public void invalidate()
+	{
+		invalid = true;
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "ArchivedDocumentDescriptor: " + entryName + ", " + tag + ", " + timestamp + ", " + inMemory;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The document source.
+	 */
+	private final DocumentArchiveSource<D> documentSource;
+
+	/**
+	 * The entry name.
+	 */
+	private final String entryName;
+
+	/**
+	 * The timestamp.
+	 */
+	private final long timestamp;
+
+	/**
+	 * The document tag.
+	 */
+	private final String tag;
+
+	/**
+	 * Whether the document exists only in memory.
+	 */
+	private final boolean inMemory;
+
+	/**
+	 * The dependencies.
+	 */
+	private final Set<DocumentDescriptor<D>> dependencies = new CopyOnWriteArraySet<DocumentDescriptor<D>>();
+
+	/**
+	 * The document source code, or null if not decoded yet.
+	 */
+	private volatile String sourceCode;
+
+	/**
+	 * The document.
+	 */
+	private volatile D document;
+
+	/**
+	 * Whether the descriptor has been invalidated.
+	 */
+	private volatile boolean invalid;
+}
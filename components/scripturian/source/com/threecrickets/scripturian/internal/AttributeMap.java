@@ -0,0 +1,229 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.threecrickets.scripturian.ContextKey;
+
+/**
+ * A map that mirrors the values of attributes that have a registered
+ * {@link ContextKey} in an array, indexed by the key's slot, so that they can
+ * be looked up without hashing.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Tal Liron
+ */
+public class AttributeMap extends AbstractMap<String, Object>
+{
+	//
+	// Operations
+	//
+
+	/**
+	 * Gets the value of an attribute via its slot.
+	 *
+	 * @param key
+	 *        The key
+	 * @return The value or null
+	 */
+	public Object get( ContextKey<?> key )
+	{
+		int index = key.getIndex();
+		Object[] slots = this.slots;
+		Object value = index < slots.length ? slots[index] : null;
+		if( value == null )
+		{
+			// The attribute might have been put before the key was registered
+			value = map.get( key.getName() );
+			if( ( value != null ) && !frozen )
+				slot( key.getName(), value );
+		}
+		return value;
+	}
+
+	/**
+	 * Fills the slots of all attributes that have a registered key, and stops
+	 * {@link #get(ContextKey)} from filling slots later, so that the map can
+	 * be safely read by concurrent threads as long as it is not modified.
+	 */
+	public void freeze()
+	{
+		for( Map.Entry<String, Object> entry : map.entrySet() )
+			slot( entry.getKey(), entry.getValue() );
+		frozen = true;
+	}
+
+	//
+	// Map
+	//
+
+	@Override
+	public int size()
+	{
+		return map.size();
+	}
+
+	@Override
+	public boolean containsKey( Object key )
+	{
+		return map.containsKey( key );
+	}
+
+	@Override
+	public Object get( Object key )
+	{
+		return map.get( key );
+	}
+
+	@Override
+	public Object put( String key, Object value )
+	{
+		Object old = map.put( key, value );
+		slot( key, value );
+		return old;
+	}
+
+	@Override
+	public Object remove( Object key )
+	{
+		if( !map.containsKey( key ) )
+			return null;
+		Object old = map.remove( key );
+		slot( key, null );
+		return old;
+	}
+
+	@Override
+	public void clear()
+	{
+		map.clear();
+		slots = EMPTY;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		return entrySet;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * No slots.
+	 */
+	private static final Object[] EMPTY = new Object[0];
+
+	/**
+	 * The attributes.
+	 */
+	private final HashMap<String, Object> map = new HashMap<String, Object>();
+
+	/**
+	 * The attribute values by slot index.
+	 */
+	private Object[] slots = EMPTY;
+
+	/**
+	 * Whether the map has been frozen.
+	 */
+	private boolean frozen;
+
+	/**
+	 * The entry set view.
+	 */
+	private final Set<Map.Entry<String, Object>> entrySet = new AbstractSet<Map.Entry<String, Object>>()
+	{
+		@Override
+		public int size()
+		{
+			return map.size();
+		}
+
+		@Override
+		public void clear()
+		{
+			AttributeMap.this.clear();
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, Object>> iterator()
+		{
+			final Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+			return new Iterator<Map.Entry<String, Object>>()
+			{
+				public boolean hasNext()
+				{
+					return iterator.hasNext();
+				}
+
+				public Map.Entry<String, Object> next()
+				{
+					final Map.Entry<String, Object> entry = current = iterator.next();
+					return new AbstractMap.SimpleEntry<String, Object>( entry )
+					{
+						@Override
+						public Object setValue( Object value )
+						{
+							super.setValue( value );
+							slot( entry.getKey(), value );
+							return entry.setValue( value );
+						}
+
+						private static final long serialVersionUID = 1L;
+					};
+				}
+
+				public void remove()
+				{
+					iterator.remove();
+					slot( current.getKey(), null );
+				}
+
+				private Map.Entry<String, Object> current;
+			};
+		}
+	};
+
+	/**
+	 * Updates the slot for an attribute, if it has one.
+	 *
+	 * @param name
+	 *        The attribute name
+	 * @param value
+	 *        The value or null
+	 */
+	private void slot( Object name, Object value )
+	{
+		ContextKey<?> key = name instanceof String ? ContextKey.get( (String) name ) : null;
+		if( key != null )
+		{
+			int index = key.getIndex();
+			if( index >= slots.length )
+			{
+				if( value == null )
+					return;
+				Object[] slots = new Object[Math.max( index + 1, ContextKey.getCount() )];
+				System.arraycopy( this.slots, 0, slots, 0, this.slots.length );
+				this.slots = slots;
+			}
+			slots[index] = value;
+		}
+	}
+}
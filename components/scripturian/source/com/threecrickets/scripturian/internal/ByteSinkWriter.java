@@ -0,0 +1,243 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * A writer that encodes characters into a byte sink with a fixed charset, and
+ * also accepts already-encoded bytes via {@link #getOutputStream()}. Characters
+ * and bytes are written to the sink in the order they were received.
+ * <p>
+ * Bytes are buffered, and reach the sink when the buffer is full or when the
+ * writer is flushed.
+ *
+ * @author Tal Liron
+ */
+public class ByteSinkWriter extends Writer
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 *
+	 * @param outputStream
+	 *        The byte sink
+	 * @param charset
+	 *        The charset
+	 */
+	public ByteSinkWriter( OutputStream outputStream, Charset charset )
+	{
+		this.charset = charset;
+		sink = new Sink( outputStream );
+		encoder = new OutputStreamWriter( sink, charset );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The charset.
+	 *
+	 * @return The charset
+	 */
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * An output stream for writing bytes already encoded in the charset.
+	 * Characters written before the bytes are encoded first.
+	 *
+	 * @return The output stream
+	 */
+	public OutputStream getOutputStream()
+	{
+		return bytes;
+	}
+
+	//
+	// Writer
+	//
+
+	@Override
+	public void write( int c ) throws IOException
+	{
+		encoder.write( c );
+	}
+
+	@Override
+	public void write( char[] cbuf, int off, int len ) throws IOException
+	{
+		encoder.write( cbuf, off, len );
+	}
+
+	@Override
+	public void write( String str, int off, int len ) throws IOException
+	{
+		encoder.write( str, off, len );
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		encoder.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		encoder.close();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The charset.
+	 */
+	private final Charset charset;
+
+	/**
+	 * The buffered byte sink.
+	 */
+	private final Sink sink;
+
+	/**
+	 * The character encoder.
+	 */
+	private final OutputStreamWriter encoder;
+
+	/**
+	 * The output stream for encoded bytes.
+	 */
+	private final OutputStream bytes = new OutputStream()
+	{
+		@Override
+		public void write( int b ) throws IOException
+		{
+			drainEncoder();
+			sink.write( b );
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			drainEncoder();
+			sink.write( b, off, len );
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			ByteSinkWriter.this.flush();
+		}
+	};
+
+	/**
+	 * Moves characters pending in the encoder into the sink's buffer, without
+	 * flushing the sink.
+	 *
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private void drainEncoder() throws IOException
+	{
+		sink.holdFlush = true;
+		try
+		{
+			encoder.flush();
+		}
+		finally
+		{
+			sink.holdFlush = false;
+		}
+	}
+
+	/**
+	 * A buffered byte sink.
+	 */
+	private static class Sink extends OutputStream
+	{
+		public Sink( OutputStream outputStream )
+		{
+			this.outputStream = outputStream;
+		}
+
+		@Override
+		public void write( int b ) throws IOException
+		{
+			if( count == buffer.length )
+				drain();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			if( len > buffer.length - count )
+			{
+				drain();
+				if( len >= buffer.length )
+				{
+					// Too big to buffer
+					outputStream.write( b, off, len );
+					return;
+				}
+			}
+			System.arraycopy( b, off, buffer, count, len );
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			if( !holdFlush )
+			{
+				drain();
+				outputStream.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			drain();
+			outputStream.close();
+		}
+
+		private void drain() throws IOException
+		{
+			if( count > 0 )
+			{
+				outputStream.write( buffer, 0, count );
+				count = 0;
+			}
+		}
+
+		private final OutputStream outputStream;
+
+		private final byte[] buffer = new byte[8192];
+
+		private int count;
+
+		private boolean holdFlush;
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.util.concurrent.Callable;
+
+import com.threecrickets.scripturian.ExecutionContext;
+
+/**
+ * The {@link ExecutionContext} bound to the current thread.
+ * <p>
+ * Bindings are scoped: {@link #call(ExecutionContext, Callable)} binds the
+ * context only for the duration of the call and always restores the previous
+ * binding afterwards, so that a pooled thread does not keep a released
+ * context (and its language engine state) reachable. An unscoped binding via
+ * {@link #set(ExecutionContext)}, as used by
+ * {@link ExecutionContext#makeCurrent()}, is likewise undone when the
+ * enclosing scope ends.
+ * <p>
+ * The binding remembers whether it was made by
+ * {@link #call(ExecutionContext, Callable)}, so that executions can tell
+ * whether they are nested within another execution in the same context
+ * (see {@link #isInScope(ExecutionContext)}), as opposed to merely running in
+ * a context made current by the caller.
+ * <p>
+ * The binding is a plain {@link ThreadLocal}, because it is read for every
+ * write to the context's writers.
+ *
+ * @author Tal Liron
+ */
+public class CurrentExecutionContext
+{
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The current execution context binding.
+	 */
+	public static final CurrentExecutionContext current = new CurrentExecutionContext();
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The execution context bound to the current thread.
+	 *
+	 * @return The execution context or null
+	 */
+	public ExecutionContext get()
+	{
+		Binding binding = this.binding.get();
+		return binding != null ? binding.executionContext : null;
+	}
+
+	/**
+	 * Whether we are within a call to
+	 * {@link #call(ExecutionContext, Callable)} for the execution context, and
+	 * it has not been unbound since.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 * @return True if in scope
+	 */
+	public boolean isInScope( ExecutionContext executionContext )
+	{
+		Binding binding = this.binding.get();
+		return ( binding != null ) && binding.scoped && ( binding.executionContext == executionContext );
+	}
+
+	/**
+	 * Binds an execution context to the current thread until it is removed,
+	 * or until the end of the enclosing scope if there is one.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 * @see #remove()
+	 */
+	public void set( ExecutionContext executionContext )
+	{
+		if( executionContext != null )
+			binding.set( new Binding( executionContext, false ) );
+		else
+			binding.remove();
+	}
+
+	/**
+	 * Removes the binding.
+	 *
+	 * @see #set(ExecutionContext)
+	 */
+	public void remove()
+	{
+		binding.remove();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Calls with an execution context bound to the current thread, restoring
+	 * the previous binding afterwards.
+	 *
+	 * @param <V>
+	 *        The return type
+	 * @param executionContext
+	 *        The execution context
+	 * @param callable
+	 *        The callable
+	 * @return The callable's return value
+	 * @throws Exception
+	 *         Any exception thrown by the callable
+	 */
+	public <V> V call( ExecutionContext executionContext, Callable<V> callable ) throws Exception
+	{
+		Binding oldBinding = binding.get();
+		binding.set( new Binding( executionContext, true ) );
+		try
+		{
+			return callable.call();
+		}
+		finally
+		{
+			if( oldBinding != null )
+				binding.set( oldBinding );
+			else
+				binding.remove();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The binding.
+	 */
+	private final ThreadLocal<Binding> binding = new ThreadLocal<Binding>();
+
+	/**
+	 * An execution context bound to a thread.
+	 */
+	private static class Binding
+	{
+		private Binding( ExecutionContext executionContext, boolean scoped )
+		{
+			this.executionContext = executionContext;
+			this.scoped = scoped;
+		}
+
+		private final ExecutionContext executionContext;
+
+		/**
+		 * True if bound by {@link CurrentExecutionContext#call(ExecutionContext, Callable)}.
+		 */
+		private final boolean scoped;
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Watches a directory and its subdirectories for changes, using a daemon
+ * thread.
+ * <p>
+ * This is the only class in Scripturian that requires JVM 7 or later. Other
+ * classes load it by name, so that it can be excluded when building for an
+ * older JVM.
+ *
+ * @author Tal Liron
+ * @see DirectoryWatcherListener
+ */
+public class DirectoryWatcher implements Runnable, Closeable
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor. Starts watching.
+	 *
+	 * @param directory
+	 *        The directory
+	 * @param threadName
+	 *        The name of the watcher's thread
+	 * @param listener
+	 *        The listener
+	 * @throws IOException
+	 *         In case the directory could not be watched
+	 */
+	public DirectoryWatcher( File directory, String threadName, DirectoryWatcherListener listener ) throws IOException
+	{
+		this.listener = listener;
+		watchService = directory.toPath().getFileSystem().newWatchService();
+		try
+		{
+			register( directory );
+		}
+		catch( IOException x )
+		{
+			close();
+			throw x;
+		}
+
+		Thread thread = new Thread( this, threadName );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	//
+	// Runnable
+	//
+
+	public void run()
+	{
+		boolean closed = false;
+		try
+		{
+			while( true )
+			{
+				WatchKey key;
+				try
+				{
+					key = watchService.take();
+				}
+				catch( InterruptedException x )
+				{
+					continue;
+				}
+				catch( ClosedWatchServiceException x )
+				{
+					closed = true;
+					return;
+				}
+
+				File directory = directories.get( key );
+				for( WatchEvent<?> event : key.pollEvents() )
+				{
+					WatchEvent.Kind<?> kind = event.kind();
+					if( ( kind == StandardWatchEventKinds.OVERFLOW ) || ( directory == null ) )
+					{
+						// We don't know what changed
+						lost();
+						continue;
+					}
+
+					File file = new File( directory, event.context().toString() );
+					if( ( kind == StandardWatchEventKinds.ENTRY_CREATE ) && file.isDirectory() )
+					{
+						try
+						{
+							register( file );
+						}
+						catch( IOException x )
+						{
+							// The directory might have been deleted already
+						}
+					}
+
+					changed( directory, file, kind != StandardWatchEventKinds.ENTRY_MODIFY );
+				}
+
+				if( !key.reset() )
+					directories.remove( key );
+			}
+		}
+		finally
+		{
+			if( !closed )
+			{
+				close();
+				listener.failed( this );
+			}
+		}
+	}
+
+	//
+	// Closeable
+	//
+
+	/**
+	 * Stops watching.
+	 */
+	public void close()
+	{
+		try
+		{
+			watchService.close();
+		}
+		catch( IOException x )
+		{
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The listener.
+	 */
+	private final DirectoryWatcherListener listener;
+
+	/**
+	 * The watch service.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * The watched directories.
+	 */
+	private final ConcurrentMap<WatchKey, File> directories = new ConcurrentHashMap<WatchKey, File>();
+
+	/**
+	 * Notifies the listener of a change. If the listener fails, it might not
+	 * have handled the change, so we notify it that changes were lost.
+	 *
+	 * @param directory
+	 *        The directory in which the change happened
+	 * @param file
+	 *        The changed file or directory
+	 * @param created
+	 *        True if the file was created or deleted
+	 */
+	private void changed( File directory, File file, boolean created )
+	{
+		try
+		{
+			listener.changed( directory, file, created );
+		}
+		catch( RuntimeException x )
+		{
+			lost();
+		}
+	}
+
+	/**
+	 * Notifies the listener that changes were lost.
+	 */
+	private void lost()
+	{
+		try
+		{
+			listener.lost();
+		}
+		catch( RuntimeException x )
+		{
+			// There is nothing more we can do
+		}
+	}
+
+	/**
+	 * Watches a directory and, recursively, its subdirectories.
+	 *
+	 * @param directory
+	 *        The directory
+	 * @throws IOException
+	 *         In case the directory could not be watched
+	 */
+	private void register( File directory ) throws IOException
+	{
+		WatchKey key = directory.toPath().register( watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY );
+		directories.put( key, directory );
+
+		File[] files = directory.listFiles();
+		if( files != null )
+			for( File file : files )
+				if( file.isDirectory() )
+					register( file );
+	}
+}
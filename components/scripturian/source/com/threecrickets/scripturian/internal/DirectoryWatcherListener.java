@@ -0,0 +1,50 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * Notified by a {@link DirectoryWatcher} of changes in the watched directory
+ * tree. Called from the watcher's thread.
+ *
+ * @author Tal Liron
+ */
+public interface DirectoryWatcherListener
+{
+	/**
+	 * A file or directory has been created, deleted or modified.
+	 *
+	 * @param directory
+	 *        The directory in which the change happened
+	 * @param file
+	 *        The changed file or directory
+	 * @param created
+	 *        True if the file was created or deleted
+	 */
+	public void changed( File directory, File file, boolean created );
+
+	/**
+	 * Changes have happened, but the watcher does not know which.
+	 */
+	public void lost();
+
+	/**
+	 * The watcher has stopped because of an error, and will report no more
+	 * changes.
+	 *
+	 * @param watcher
+	 *        The watcher
+	 */
+	public void failed( Closeable watcher );
+}
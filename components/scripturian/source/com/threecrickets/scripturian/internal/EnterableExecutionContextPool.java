@@ -0,0 +1,334 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threecrickets.scripturian.Executable;
+import com.threecrickets.scripturian.ExecutionContext;
+import com.threecrickets.scripturian.ExecutionController;
+
+/**
+ * The enterable execution contexts of an {@link Executable} for a single
+ * entering key.
+ * <p>
+ * Contexts are checked out for the duration of an entry, so that concurrent
+ * entries do not contend on the same engine state. When all contexts are
+ * checked out and the pool cannot grow, contexts are shared round-robin, which
+ * is safe because enterable contexts are immutable.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Tal Liron
+ */
+public class EnterableExecutionContextPool
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maximumSize
+	 *        The maximum number of contexts
+	 * @param containerService
+	 *        The container service used to make contexts enterable
+	 * @param executionController
+	 *        The execution controller used to make contexts enterable
+	 */
+	public EnterableExecutionContextPool( int maximumSize, Object containerService, ExecutionController executionController )
+	{
+		if( maximumSize < 1 )
+			throw new IllegalArgumentException( "Maximum size must be at least 1" );
+
+		this.maximumSize = maximumSize;
+		this.containerService = containerService;
+		this.executionController = executionController;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The maximum number of contexts.
+	 *
+	 * @return The maximum size
+	 */
+	public int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * The container service used to make contexts enterable.
+	 *
+	 * @return The container service or null
+	 */
+	public Object getContainerService()
+	{
+		return containerService;
+	}
+
+	/**
+	 * The execution controller used to make contexts enterable.
+	 *
+	 * @return The execution controller or null
+	 */
+	public ExecutionController getExecutionController()
+	{
+		return executionController;
+	}
+
+	/**
+	 * All contexts in the pool, whether checked out or not.
+	 *
+	 * @return The execution contexts
+	 */
+	public List<ExecutionContext> getExecutionContexts()
+	{
+		return executionContexts;
+	}
+
+	/**
+	 * The first context in the pool.
+	 *
+	 * @return The execution context or null if the pool is empty
+	 */
+	public ExecutionContext getFirst()
+	{
+		try
+		{
+			return executionContexts.get( 0 );
+		}
+		catch( IndexOutOfBoundsException x )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the pool has no contexts.
+	 *
+	 * @return True if empty
+	 */
+	public boolean isEmpty()
+	{
+		return executionContexts.isEmpty();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Marks the pool as in use by a thread. Must be followed by a call to
+	 * {@link #relinquish()}.
+	 *
+	 * @return True if acquired, false if the pool is being closed
+	 * @see #close()
+	 */
+	public boolean acquire()
+	{
+		users.incrementAndGet();
+		if( closed )
+		{
+			users.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the pool as no longer in use by a thread.
+	 *
+	 * @see #acquire()
+	 */
+	public void relinquish()
+	{
+		users.decrementAndGet();
+	}
+
+	/**
+	 * Closes the pool if it is not in use by any thread. Once closed, the pool
+	 * cannot be acquired.
+	 *
+	 * @return True if closed, false if in use
+	 */
+	public boolean close()
+	{
+		closed = true;
+		if( users.get() > 0 )
+		{
+			closed = false;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reserves room for one more context. Must be followed by a call to
+	 * {@link #add(ExecutionContext, boolean)} or {@link #cancelReservation()}.
+	 *
+	 * @return True if reserved, false if the pool is full
+	 */
+	public boolean reserve()
+	{
+		while( true )
+		{
+			int current = size.get();
+			if( current >= maximumSize )
+				return false;
+			if( size.compareAndSet( current, current + 1 ) )
+				return true;
+		}
+	}
+
+	/**
+	 * Cancels a reservation made by {@link #reserve()}.
+	 */
+	public void cancelReservation()
+	{
+		size.decrementAndGet();
+	}
+
+	/**
+	 * Adds a context for which room was reserved by {@link #reserve()}.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 * @param checkedOut
+	 *        True if the context is added in a checked out state
+	 */
+	public void add( ExecutionContext executionContext, boolean checkedOut )
+	{
+		executionContexts.add( executionContext );
+		if( !checkedOut )
+			available.offer( executionContext );
+	}
+
+	/**
+	 * Removes a context from the pool.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 * @return True if removed
+	 */
+	public boolean remove( ExecutionContext executionContext )
+	{
+		if( executionContexts.remove( executionContext ) )
+		{
+			available.remove( executionContext );
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks out an available context.
+	 *
+	 * @return The execution context or null if none is available
+	 */
+	public ExecutionContext checkout()
+	{
+		return available.poll();
+	}
+
+	/**
+	 * Picks a context to share when none is available.
+	 *
+	 * @return The execution context or null if the pool is empty
+	 */
+	public ExecutionContext share()
+	{
+		while( true )
+		{
+			int count = executionContexts.size();
+			if( count == 0 )
+				return null;
+			try
+			{
+				return executionContexts.get( ( next.getAndIncrement() & Integer.MAX_VALUE ) % count );
+			}
+			catch( IndexOutOfBoundsException x )
+			{
+				// A context was removed; try again
+			}
+		}
+	}
+
+	/**
+	 * Returns a context checked out by {@link #checkout()}.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 */
+	public void checkin( ExecutionContext executionContext )
+	{
+		if( executionContexts.contains( executionContext ) )
+			available.offer( executionContext );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The maximum number of contexts.
+	 */
+	private final int maximumSize;
+
+	/**
+	 * The container service used to make contexts enterable.
+	 */
+	private final Object containerService;
+
+	/**
+	 * The execution controller used to make contexts enterable.
+	 */
+	private final ExecutionController executionController;
+
+	/**
+	 * All contexts.
+	 */
+	private final CopyOnWriteArrayList<ExecutionContext> executionContexts = new CopyOnWriteArrayList<ExecutionContext>();
+
+	/**
+	 * Contexts that are not checked out.
+	 */
+	private final Queue<ExecutionContext> available = new ConcurrentLinkedQueue<ExecutionContext>();
+
+	/**
+	 * The number of contexts, including reservations.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Round-robin counter for sharing.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * The number of threads using the pool.
+	 */
+	private final AtomicInteger users = new AtomicInteger();
+
+	/**
+	 * Whether the pool was closed.
+	 */
+	private volatile boolean closed;
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.threecrickets.scripturian.Executable;
+import com.threecrickets.scripturian.ExecutionContext;
+
+/**
+ * Releases the enterable execution contexts of {@link Executable} instances,
+ * in a background daemon thread, when the executable is garbage collected or
+ * when it has not been used for longer than the maximum idle time.
+ * <p>
+ * Executables are tracked via weak references, which are also used by their
+ * enterable execution contexts to refer back to them, so that the contexts do
+ * not keep the executables reachable.
+ *
+ * @author Tal Liron
+ */
+public class EnterableExecutionContextReaper
+{
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The maximum time in milliseconds an executable may go unused before its
+	 * enterable execution contexts are released.
+	 *
+	 * @return The maximum idle time, or -1 to never release idle contexts
+	 * @see Executable#getLastUsedTimestamp()
+	 */
+	public static long getMaximumIdleTime()
+	{
+		return maximumIdleTime;
+	}
+
+	/**
+	 * @param maximumIdleTime
+	 *        The maximum idle time in milliseconds, or -1
+	 * @see #getMaximumIdleTime()
+	 */
+	public static void setMaximumIdleTime( long maximumIdleTime )
+	{
+		EnterableExecutionContextReaper.maximumIdleTime = maximumIdleTime;
+	}
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Starts tracking an executable.
+	 *
+	 * @param executable
+	 *        The executable
+	 * @param pools
+	 *        The executable's enterable execution context pools
+	 * @return A weak reference to the executable
+	 */
+	public static WeakReference<Executable> register( Executable executable, ConcurrentMap<Object, EnterableExecutionContextPool> pools )
+	{
+		ExecutableReference reference = new ExecutableReference( executable, pools );
+		references.add( reference );
+		startThread();
+		return reference;
+	}
+
+	/**
+	 * Releases all execution contexts in a pool, after removing the pool.
+	 *
+	 * @param pools
+	 *        The pools
+	 * @param enteringKey
+	 *        The entering key
+	 * @param pool
+	 *        The pool
+	 */
+	public static void release( ConcurrentMap<Object, EnterableExecutionContextPool> pools, Object enteringKey, EnterableExecutionContextPool pool )
+	{
+		pools.remove( enteringKey, pool );
+		for( ExecutionContext executionContext : pool.getExecutionContexts() )
+		{
+			try
+			{
+				executionContext.release();
+			}
+			catch( IllegalStateException x )
+			{
+				// Already released
+			}
+			catch( RuntimeException x )
+			{
+				// A language adapter failed to release its state; we still
+				// want to release the other contexts
+			}
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * How often to check for idle executables if there is no maximum idle time.
+	 */
+	private static final long DEFAULT_INTERVAL = 10000;
+
+	/**
+	 * Minimum time between checks for idle executables.
+	 */
+	private static final long MINIMUM_INTERVAL = 1000;
+
+	/**
+	 * See {@link #getMaximumIdleTime()}.
+	 */
+	private static volatile long maximumIdleTime = -1;
+
+	/**
+	 * Tracked executables.
+	 */
+	private static final Set<ExecutableReference> references = Collections.newSetFromMap( new ConcurrentHashMap<ExecutableReference, Boolean>() );
+
+	/**
+	 * Enqueues garbage-collected executables.
+	 */
+	private static final ReferenceQueue<Executable> queue = new ReferenceQueue<Executable>();
+
+	/**
+	 * The reaper thread.
+	 */
+	private static Thread thread;
+
+	/**
+	 * A weak reference to an executable that remembers its enterable execution
+	 * context pools.
+	 */
+	private static class ExecutableReference extends WeakReference<Executable>
+	{
+		public ExecutableReference( Executable executable, ConcurrentMap<Object, EnterableExecutionContextPool> pools )
+		{
+			super( executable, queue );
+			this.pools = pools;
+		}
+
+		public final ConcurrentMap<Object, EnterableExecutionContextPool> pools;
+	}
+
+	/**
+	 * Starts the reaper thread if it is not already running.
+	 */
+	private static synchronized void startThread()
+	{
+		if( thread != null )
+			return;
+
+		thread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					reap();
+				}
+				finally
+				{
+					// Let the next registration start a new thread
+					synchronized( EnterableExecutionContextReaper.class )
+					{
+						if( thread == Thread.currentThread() )
+							thread = null;
+					}
+				}
+			}
+		}, "Scripturian Enterable Execution Context Reaper" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * The reaper loop.
+	 */
+	private static void reap()
+	{
+		long lastIdleCheck = System.currentTimeMillis();
+		while( true )
+		{
+			long maximumIdleTime = EnterableExecutionContextReaper.maximumIdleTime;
+			long interval = maximumIdleTime > 0 ? Math.max( MINIMUM_INTERVAL, Math.min( DEFAULT_INTERVAL, maximumIdleTime / 4 ) ) : DEFAULT_INTERVAL;
+
+			try
+			{
+				Reference<? extends Executable> reference = queue.remove( interval );
+				while( reference != null )
+				{
+					ExecutableReference executableReference = (ExecutableReference) reference;
+					references.remove( executableReference );
+					for( Map.Entry<Object, EnterableExecutionContextPool> entry : executableReference.pools.entrySet() )
+						release( executableReference.pools, entry.getKey(), entry.getValue() );
+					reference = queue.poll();
+				}
+			}
+			catch( InterruptedException x )
+			{
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			if( ( maximumIdleTime > 0 ) && ( now - lastIdleCheck >= interval ) )
+			{
+				lastIdleCheck = now;
+				for( ExecutableReference reference : references )
+				{
+					Executable executable = reference.get();
+					if( ( executable == null ) || ( now - executable.getLastUsedTimestamp() <= maximumIdleTime ) )
+						continue;
+
+					for( Map.Entry<Object, EnterableExecutionContextPool> entry : reference.pools.entrySet() )
+					{
+						EnterableExecutionContextPool pool = entry.getValue();
+						// Only if no thread is using the pool
+						if( pool.close() )
+							release( reference.pools, entry.getKey(), pool );
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import com.threecrickets.scripturian.ExecutionContext;
+import com.threecrickets.scripturian.LanguageAdapter;
+import com.threecrickets.scripturian.exception.ExecutionTimeoutException;
+
+/**
+ * The deadline of an execution, according to the timeout of its
+ * {@link ExecutionContext}.
+ * <p>
+ * Deadlines are checked cooperatively, in the executing thread, at segment
+ * boundaries and by language engine hooks (such as instruction observers).
+ * Additionally, a background daemon thread interrupts the executing thread
+ * when the deadline passes, and gives the language adapter a chance to stop
+ * its engine via
+ * {@link LanguageAdapter#interruptExecution(ExecutionContext, Thread)}.
+ *
+ * @author Tal Liron
+ * @see ExecutionContext#setTimeout(long)
+ */
+public class ExecutionDeadline implements Delayed
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Starts a deadline for an execution in this thread, if the execution
+	 * context has a timeout. The deadline must be {@link #finish() finished}
+	 * in this thread when the execution ends.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 * @param documentName
+	 *        The document name, for exceptions
+	 * @return The deadline, or null if the execution context has no timeout
+	 */
+	public static ExecutionDeadline start( ExecutionContext executionContext, String documentName )
+	{
+		long timeout = executionContext.getTimeout();
+		if( timeout <= 0 )
+			return null;
+
+		ExecutionDeadline deadline = new ExecutionDeadline( executionContext, documentName, timeout, current.get() );
+		current.set( deadline );
+		queue.add( deadline );
+		startThread();
+		return deadline;
+	}
+
+	/**
+	 * The innermost ongoing deadline in this thread.
+	 *
+	 * @return The deadline or null
+	 */
+	public static ExecutionDeadline getCurrent()
+	{
+		return current.get();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The timeout in milliseconds.
+	 *
+	 * @return The timeout
+	 */
+	public long getTimeout()
+	{
+		return timeout;
+	}
+
+	/**
+	 * Whether the deadline has passed.
+	 *
+	 * @return True if expired
+	 */
+	public boolean isExpired()
+	{
+		return expired || ( System.nanoTime() - time >= 0 );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Throws an exception if the deadline has passed.
+	 *
+	 * @throws ExecutionTimeoutException
+	 *         If the deadline has passed
+	 */
+	public void check() throws ExecutionTimeoutException
+	{
+		if( isExpired() )
+			throw createException( null );
+	}
+
+	/**
+	 * Throws an {@link ExpiredError} if the deadline has passed. Meant for
+	 * language engine hooks that cannot throw checked exceptions.
+	 *
+	 * @throws ExpiredError
+	 *         If the deadline has passed
+	 */
+	public void checkFromEngine()
+	{
+		if( isExpired() )
+			throw new ExpiredError();
+	}
+
+	/**
+	 * Creates the exception that reports the expiration.
+	 *
+	 * @param cause
+	 *        The error with which the execution was stopped, or null
+	 * @return The exception
+	 */
+	public ExecutionTimeoutException createException( Throwable cause )
+	{
+		String message = "Execution timed out after " + timeout + " ms";
+		if( cause != null )
+			return new ExecutionTimeoutException( documentName, message, cause );
+		else
+			return new ExecutionTimeoutException( documentName, message );
+	}
+
+	/**
+	 * Ends the deadline. Must be called in the executing thread.
+	 */
+	public void finish()
+	{
+		synchronized( this )
+		{
+			finished = true;
+			executionContext = null;
+			thread = null;
+
+			// Don't leave a stray interrupt for the next user of this thread
+			if( interrupted )
+				Thread.interrupted();
+		}
+
+		// The queue only holds ongoing deadlines, so this is cheap
+		queue.remove( this );
+
+		if( previous != null )
+			current.set( previous );
+		else
+			current.remove();
+	}
+
+	//
+	// Delayed
+	//
+
+	public long getDelay( TimeUnit unit )
+	{
+		return unit.convert( time - System.nanoTime(), TimeUnit.NANOSECONDS );
+	}
+
+	public int compareTo( Delayed delayed )
+	{
+		if( delayed instanceof ExecutionDeadline )
+		{
+			long difference = time - ( (ExecutionDeadline) delayed ).time;
+			return difference < 0 ? -1 : ( difference > 0 ? 1 : 0 );
+		}
+		long difference = getDelay( TimeUnit.NANOSECONDS ) - delayed.getDelay( TimeUnit.NANOSECONDS );
+		return difference < 0 ? -1 : ( difference > 0 ? 1 : 0 );
+	}
+
+	//
+	// Classes
+	//
+
+	/**
+	 * Thrown by language engine hooks when the deadline has passed. It is an
+	 * error rather than an exception so that scripts cannot catch it.
+	 */
+	public static class ExpiredError extends Error
+	{
+		@Override
+		public synchronized Throwable fillInStackTrace()
+		{
+			// The stack trace is of no interest
+			return this;
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The innermost ongoing deadline per thread.
+	 */
+	private static final ThreadLocal<ExecutionDeadline> current = new ThreadLocal<ExecutionDeadline>();
+
+	/**
+	 * Ongoing deadlines. Deadlines are removed when finished.
+	 */
+	private static final DelayQueue<ExecutionDeadline> queue = new DelayQueue<ExecutionDeadline>();
+
+	/**
+	 * The watchdog thread.
+	 */
+	private static Thread watchdog;
+
+	/**
+	 * The timeout in milliseconds.
+	 */
+	private final long timeout;
+
+	/**
+	 * The deadline, in {@link System#nanoTime()} terms.
+	 */
+	private final long time;
+
+	/**
+	 * The document name.
+	 */
+	private final String documentName;
+
+	/**
+	 * The deadline that was current in the thread when this one started.
+	 */
+	private final ExecutionDeadline previous;
+
+	/**
+	 * The execution context, or null if finished.
+	 */
+	private ExecutionContext executionContext;
+
+	/**
+	 * The executing thread, or null if finished.
+	 */
+	private Thread thread;
+
+	/**
+	 * Whether the deadline has been finished.
+	 */
+	private boolean finished;
+
+	/**
+	 * Whether the watchdog has interrupted the executing thread.
+	 */
+	private boolean interrupted;
+
+	/**
+	 * Whether the watchdog has expired the deadline.
+	 */
+	private volatile boolean expired;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executionContext
+	 *        The execution context
+	 * @param documentName
+	 *        The document name
+	 * @param timeout
+	 *        The timeout in milliseconds
+	 * @param previous
+	 *        The previous deadline or null
+	 */
+	private ExecutionDeadline( ExecutionContext executionContext, String documentName, long timeout, ExecutionDeadline previous )
+	{
+		this.executionContext = executionContext;
+		this.documentName = documentName;
+		this.timeout = timeout;
+		this.previous = previous;
+		thread = Thread.currentThread();
+		time = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout );
+	}
+
+	/**
+	 * Starts the watchdog thread if it is not already running.
+	 */
+	private static synchronized void startThread()
+	{
+		if( watchdog != null )
+			return;
+
+		watchdog = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				watch();
+			}
+		}, "Scripturian Execution Watchdog" );
+		watchdog.setDaemon( true );
+		watchdog.start();
+	}
+
+	/**
+	 * The watchdog loop.
+	 */
+	private static void watch()
+	{
+		while( true )
+		{
+			try
+			{
+				queue.take().expire();
+			}
+			catch( InterruptedException x )
+			{
+				// Keep watching
+			}
+			catch( Throwable x )
+			{
+				// A misbehaving language adapter must not kill the watchdog
+			}
+		}
+	}
+
+	/**
+	 * Called by the watchdog when the deadline passes.
+	 */
+	private synchronized void expire()
+	{
+		if( finished )
+			return;
+
+		expired = true;
+		interrupted = true;
+		thread.interrupt();
+
+		LanguageAdapter languageAdapter;
+		try
+		{
+			languageAdapter = executionContext.getAdapter();
+		}
+		catch( IllegalStateException x )
+		{
+			// Released
+			return;
+		}
+
+		if( languageAdapter != null )
+			languageAdapter.interruptExecution( executionContext, thread );
+	}
+}
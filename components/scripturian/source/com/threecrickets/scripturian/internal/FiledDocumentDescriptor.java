@@ -15,12 +15,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.document.DocumentDescriptor;
 import com.threecrickets.scripturian.document.DocumentFileSource;
 import com.threecrickets.scripturian.document.DocumentSource;
@@ -29,6 +34,11 @@ import com.threecrickets.scripturian.exception.DocumentException;
 
 /**
  * Document descriptor for {@link DocumentFileSource}.
+ * <p>
+ * Adding a dependency also records the reverse edge in the dependency, so
+ * that invalidation is pushed to all transitive dependents at once. Validity
+ * checks thus do not need to walk the dependencies, except when polling for
+ * file modifications.
  * 
  * @author Tal Liron
  */
@@ -64,6 +74,7 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 		this.tag = tag;
 		this.document = document;
 		this.validate = validate;
+		estimatedSize = estimateSize( sourceCode );
 	}
 
 	/**
@@ -106,6 +117,7 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 
 		this.sourceCode = sourceCode;
 		tag = ScripturianUtil.getExtension( file );
+		estimatedSize = estimateSize( sourceCode );
 	}
 
 	//
@@ -122,6 +134,39 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 	 */
 	public final boolean validate;
 
+	/**
+	 * The estimated number of bytes retained by the descriptor, based on the
+	 * size of the source code. Compiled documents are assumed to be
+	 * proportional in size to their source code.
+	 */
+	public final long estimatedSize;
+
+	/**
+	 * The last time the descriptor was retrieved from the document source, or
+	 * the last time its document was used, whichever is later.
+	 * 
+	 * @return The timestamp
+	 * @see Executable#getLastUsedTimestamp()
+	 */
+	public long getLastAccessTimestamp()
+	{
+		long lastAccessTimestamp = this.lastAccessTimestamp;
+		D document = getDocument();
+		if( document instanceof Executable )
+			return Math.max( lastAccessTimestamp, ( (Executable) document ).getLastUsedTimestamp() );
+		return lastAccessTimestamp;
+	}
+
+	/**
+	 * Marks the descriptor as accessed now.
+	 * 
+	 * @see #getLastAccessTimestamp()
+	 */
+	public void touch()
+	{
+		lastAccessTimestamp = System.currentTimeMillis();
+	}
+
 	/**
 	 * Whether the document is valid. Calling this method will sometimes cause a
 	 * validity check.
@@ -130,12 +175,40 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 	 * 
 	 * @return Whether the document is valid
 	 * @see DocumentFileSource#getMinimumTimeBetweenValidityChecks()
+	 * @see DocumentFileSource#isWatching()
 	 * @see DocumentDescriptor#getDependencies()
 	 * @throws DocumentDependencyLoopException
 	 */
 	public boolean isValid() throws DocumentDependencyLoopException
 	{
-		return validate ? isValid( new HashSet<String>() ) : true;
+		// Sealed documents never change
+		if( !validate || documentSource.isSealed() )
+			return true;
+
+		// Invalidation is pushed to us by our dependencies
+		if( invalid )
+			return false;
+
+		if( ( file == null ) || documentSource.isWatching() )
+			return true;
+
+		// Avoid the allocation if we are not going to check
+		long minimumTimeBetweenValidityChecks = documentSource.getMinimumTimeBetweenValidityChecks();
+		if( ( minimumTimeBetweenValidityChecks == -1 ) || ( ( System.currentTimeMillis() - lastValidityCheckTimestamp ) <= minimumTimeBetweenValidityChecks ) )
+			return true;
+
+		return isValid( new HashSet<String>() );
+	}
+
+	/**
+	 * The descriptors of documents that depend on us. This is the reverse of
+	 * {@link #getDependencies()}.
+	 * 
+	 * @return The dependent document descriptors
+	 */
+	public Set<FiledDocumentDescriptor<?>> getDependents()
+	{
+		return Collections.unmodifiableSet( dependents );
 	}
 
 	//
@@ -231,9 +304,48 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 		return dependencies;
 	}
 
+	/**
+	 * Invalidates us and, transitively, all documents that depend on us. All
+	 * invalidated documents are {@link #detach() detached} from the dependency
+	 * graph.
+	 */
 	public void invalidate()
 	{
-		invalid = true;
+		ArrayList<FiledDocumentDescriptor<?>> pending = new ArrayList<FiledDocumentDescriptor<?>>();
+		pending.add( this );
+		while( !pending.isEmpty() )
+		{
+			FiledDocumentDescriptor<?> filedDocumentDescriptor = pending.remove( pending.size() - 1 );
+			if( filedDocumentDescriptor.invalid )
+				continue;
+
+			filedDocumentDescriptor.invalid = true;
+			pending.addAll( filedDocumentDescriptor.dependents );
+			filedDocumentDescriptor.detach();
+		}
+	}
+
+	/**
+	 * Removes us from the dependency graph, on both sides: we are removed from
+	 * the dependencies of the documents that depend on us, and from the
+	 * dependents of the documents we depend on. Dependencies added later are
+	 * ignored.
+	 * <p>
+	 * Called when we are invalidated or evicted from the cache, so that the
+	 * graph does not keep us reachable.
+	 */
+	public void detach()
+	{
+		detached = true;
+
+		for( FiledDocumentDescriptor<?> dependent : dependents )
+			dependent.dependencies.set.remove( this );
+		dependents.clear();
+
+		for( DocumentDescriptor<?> dependency : dependencies.set )
+			if( dependency instanceof FiledDocumentDescriptor<?> )
+				( (FiledDocumentDescriptor<?>) dependency ).dependents.remove( this );
+		dependencies.set.clear();
 	}
 
 	//
@@ -262,7 +374,12 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 	/**
 	 * The dependencies.
 	 */
-	private final Set<DocumentDescriptor<D>> dependencies = new CopyOnWriteArraySet<DocumentDescriptor<D>>();
+	private final Dependencies dependencies = new Dependencies();
+
+	/**
+	 * The dependents.
+	 */
+	private final Set<FiledDocumentDescriptor<?>> dependents = Collections.newSetFromMap( new ConcurrentHashMap<FiledDocumentDescriptor<?>, Boolean>() );
 
 	/**
 	 * The document.
@@ -291,6 +408,16 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 	 */
 	private final String tag;
 
+	/**
+	 * Fixed overhead per descriptor for {@link #estimatedSize}.
+	 */
+	private static final long OVERHEAD = 512;
+
+	/**
+	 * The timestamp of the last access.
+	 */
+	private volatile long lastAccessTimestamp = System.currentTimeMillis();
+
 	/**
 	 * The timestamp of the last validity check.
 	 */
@@ -301,6 +428,11 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 	 */
 	private volatile boolean invalid;
 
+	/**
+	 * Whether we have been removed from the dependency graph.
+	 */
+	private volatile boolean detached;
+
 	/**
 	 * Whether the document is valid. Calling this method will sometimes cause a
 	 * validity check.
@@ -320,10 +452,12 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 		if( invalid )
 			return false;
 
-		// If any of our dependencies is invalid, then so are we
+		// If any of our dependencies is invalid, then so are we (this would
+		// usually have been pushed to us, unless the dependency's file has
+		// changed and has not been checked yet)
 		if( !areAllDependenciesValid( testedDependencies ) )
 		{
-			invalid = true;
+			invalidate();
 			return false;
 		}
 
@@ -331,6 +465,10 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 		if( file == null )
 			return true;
 
+		// When watching, changes invalidate us directly
+		if( documentSource.isWatching() )
+			return true;
+
 		long minimumTimeBetweenValidityChecks = documentSource.getMinimumTimeBetweenValidityChecks();
 
 		// -1 means don't check for validity
@@ -355,7 +493,7 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 			else
 			{
 				// Invalid
-				invalid = true;
+				invalidate();
 				return false;
 			}
 		}
@@ -366,6 +504,110 @@ public class FiledDocumentDescriptor<D> implements DocumentDescriptor<D>
 		}
 	}
 
+	/**
+	 * The dependencies, which also records the reverse edges in the
+	 * dependencies.
+	 */
+	private class Dependencies extends AbstractSet<DocumentDescriptor<D>>
+	{
+		@Override
+		public int size()
+		{
+			return set.size();
+		}
+
+		@Override
+		public boolean contains( Object o )
+		{
+			return set.contains( o );
+		}
+
+		@Override
+		public boolean add( DocumentDescriptor<D> dependency )
+		{
+			// Detached descriptors might still be in use, but must not rejoin
+			// the graph
+			if( detached || ( dependency == FiledDocumentDescriptor.this ) )
+				return false;
+			FiledDocumentDescriptor<?> filedDependency = dependency instanceof FiledDocumentDescriptor<?> ? (FiledDocumentDescriptor<?>) dependency : null;
+			if( ( filedDependency != null ) && filedDependency.detached && !filedDependency.invalid )
+				return false;
+
+			if( !set.add( dependency ) )
+				return false;
+
+			if( filedDependency != null )
+			{
+				filedDependency.dependents.add( FiledDocumentDescriptor.this );
+
+				// In case it was invalidated before it knew about us
+				if( filedDependency.invalid )
+					invalidate();
+			}
+
+			// In case we were detached while adding
+			if( detached )
+				detach();
+
+			return true;
+		}
+
+		@Override
+		public boolean remove( Object o )
+		{
+			if( !set.remove( o ) )
+				return false;
+
+			if( o instanceof FiledDocumentDescriptor<?> )
+				( (FiledDocumentDescriptor<?>) o ).dependents.remove( FiledDocumentDescriptor.this );
+
+			return true;
+		}
+
+		@Override
+		public Iterator<DocumentDescriptor<D>> iterator()
+		{
+			final Iterator<DocumentDescriptor<D>> iterator = set.iterator();
+			return new Iterator<DocumentDescriptor<D>>()
+			{
+				public boolean hasNext()
+				{
+					return iterator.hasNext();
+				}
+
+				public DocumentDescriptor<D> next()
+				{
+					return current = iterator.next();
+				}
+
+				public void remove()
+				{
+					iterator.remove();
+					if( current instanceof FiledDocumentDescriptor<?> )
+						( (FiledDocumentDescriptor<?>) current ).dependents.remove( FiledDocumentDescriptor.this );
+				}
+
+				private DocumentDescriptor<D> current;
+			};
+		}
+
+		private final Set<DocumentDescriptor<D>> set = Collections.newSetFromMap( new ConcurrentHashMap<DocumentDescriptor<D>, Boolean>() );
+	}
+
+	/**
+	 * Estimates the retained size for source code: two bytes per character for
+	 * the source code itself, and as much again for the parsed and compiled
+	 * document.
+	 * 
+	 * @param sourceCode
+	 *        The source code or null
+	 * @return The estimated size in bytes
+	 */
+	private static long estimateSize( String sourceCode )
+	{
+		return OVERHEAD + ( sourceCode != null ? sourceCode.length() * 4L : 0 );
+	}
+
 	/**
 	 * Test whether are dependencies are valid, while avoiding circular
 	 * dependency loops.
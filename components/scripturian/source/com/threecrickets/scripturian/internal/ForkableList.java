@@ -0,0 +1,127 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.RandomAccess;
+
+/**
+ * A list that can be {@link #fork() forked} cheaply: the fork shares the
+ * elements with the original until either of them is modified.
+ * <p>
+ * This class is not thread-safe, though a list and its forks may be used by
+ * different threads.
+ *
+ * @author Tal Liron
+ * @param <E>
+ *        The element type
+ */
+public class ForkableList<E> extends AbstractList<E> implements RandomAccess
+{
+	//
+	// Operations
+	//
+
+	/**
+	 * Creates a copy of this list, which shares the elements until either list
+	 * is modified.
+	 *
+	 * @return The copy
+	 */
+	public ForkableList<E> fork()
+	{
+		ForkableList<E> fork = new ForkableList<E>();
+		fork.elements = elements;
+		fork.shared = true;
+		shared = true;
+		return fork;
+	}
+
+	//
+	// List
+	//
+
+	@Override
+	public E get( int index )
+	{
+		return elements.get( index );
+	}
+
+	@Override
+	public int size()
+	{
+		return elements.size();
+	}
+
+	@Override
+	public E set( int index, E element )
+	{
+		own();
+		return elements.set( index, element );
+	}
+
+	@Override
+	public void add( int index, E element )
+	{
+		own();
+		elements.add( index, element );
+		modCount++;
+	}
+
+	@Override
+	public E remove( int index )
+	{
+		own();
+		E element = elements.remove( index );
+		modCount++;
+		return element;
+	}
+
+	@Override
+	public void clear()
+	{
+		if( shared )
+		{
+			elements = new ArrayList<E>();
+			shared = false;
+		}
+		else
+			elements.clear();
+		modCount++;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The elements.
+	 */
+	private ArrayList<E> elements = new ArrayList<E>();
+
+	/**
+	 * Whether the elements are shared with a fork.
+	 */
+	private boolean shared;
+
+	/**
+	 * Copies the elements if they are shared with a fork.
+	 */
+	private void own()
+	{
+		if( shared )
+		{
+			elements = new ArrayList<E>( elements );
+			shared = false;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threecrickets.scripturian.FlushPolicy;
+
+/**
+ * A buffered writer that honors a {@link FlushPolicy}.
+ * <p>
+ * Calls to {@link #flush()} are only requests, honored according to the
+ * policy; {@link #flush(boolean)} can force a flush. The buffer is taken from
+ * a shared pool on the first write, and returned to the pool after a forced
+ * flush, so that idle writers do not hold on to memory.
+ *
+ * @author Tal Liron
+ */
+public class PooledBufferedWriter extends Writer
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The size of pooled buffers in characters.
+	 */
+	public static final int BUFFER_SIZE = 8192;
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 *
+	 * @param writer
+	 *        The underlying writer
+	 * @param flushPolicy
+	 *        The flush policy
+	 * @param flushThreshold
+	 *        The flush threshold in characters, for
+	 *        {@link FlushPolicy#THRESHOLD}
+	 */
+	public PooledBufferedWriter( Writer writer, FlushPolicy flushPolicy, int flushThreshold )
+	{
+		this.writer = writer;
+		this.flushPolicy = flushPolicy;
+		this.flushThreshold = flushThreshold;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The underlying writer.
+	 *
+	 * @return The underlying writer
+	 */
+	public Writer getWriter()
+	{
+		return writer;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Flushes the buffer to the underlying writer.
+	 *
+	 * @param force
+	 *        True to flush regardless of the policy, and also return the buffer
+	 *        to the pool
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	public void flush( boolean force ) throws IOException
+	{
+		synchronized( lock )
+		{
+			if( force || ( flushPolicy == FlushPolicy.IMMEDIATE ) )
+			{
+				drain();
+				writer.flush();
+				unflushed = 0;
+				if( force )
+					recycle();
+			}
+		}
+	}
+
+	//
+	// Writer
+	//
+
+	@Override
+	public void write( int c ) throws IOException
+	{
+		synchronized( lock )
+		{
+			if( buffer == null )
+				buffer = acquire();
+			else if( count == buffer.length )
+				drain();
+			buffer[count++] = (char) c;
+			checkThreshold();
+		}
+	}
+
+	@Override
+	public void write( char[] cbuf, int off, int len ) throws IOException
+	{
+		synchronized( lock )
+		{
+			if( buffer == null )
+				buffer = acquire();
+
+			if( len >= buffer.length )
+			{
+				// Too big to buffer
+				drain();
+				writer.write( cbuf, off, len );
+				wrote( len );
+				return;
+			}
+
+			if( len > buffer.length - count )
+				drain();
+			System.arraycopy( cbuf, off, buffer, count, len );
+			count += len;
+			checkThreshold();
+		}
+	}
+
+	@Override
+	public void write( String str, int off, int len ) throws IOException
+	{
+		synchronized( lock )
+		{
+			if( buffer == null )
+				buffer = acquire();
+
+			while( len > 0 )
+			{
+				if( count == buffer.length )
+					drain();
+				int chunk = Math.min( len, buffer.length - count );
+				str.getChars( off, off + chunk, buffer, count );
+				count += chunk;
+				off += chunk;
+				len -= chunk;
+			}
+			checkThreshold();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		flush( false );
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		synchronized( lock )
+		{
+			flush( true );
+			writer.close();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Maximum number of pooled buffers.
+	 */
+	private static final int MAXIMUM_POOLED = 256;
+
+	/**
+	 * Pooled buffers.
+	 */
+	private static final Queue<char[]> pool = new ConcurrentLinkedQueue<char[]>();
+
+	/**
+	 * Number of pooled buffers.
+	 */
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * The underlying writer.
+	 */
+	private final Writer writer;
+
+	/**
+	 * The flush policy.
+	 */
+	private final FlushPolicy flushPolicy;
+
+	/**
+	 * The flush threshold.
+	 */
+	private final int flushThreshold;
+
+	/**
+	 * The buffer, or null if we have not written since the last forced flush.
+	 */
+	private char[] buffer;
+
+	/**
+	 * Number of characters in the buffer.
+	 */
+	private int count;
+
+	/**
+	 * Number of characters written to the underlying writer since it was last
+	 * flushed.
+	 */
+	private int unflushed;
+
+	/**
+	 * Takes a buffer from the pool.
+	 *
+	 * @return The buffer
+	 */
+	private static char[] acquire()
+	{
+		char[] buffer = pool.poll();
+		if( buffer != null )
+		{
+			pooled.decrementAndGet();
+			return buffer;
+		}
+		return new char[BUFFER_SIZE];
+	}
+
+	/**
+	 * Writes the buffered characters to the underlying writer.
+	 *
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private void drain() throws IOException
+	{
+		if( count > 0 )
+		{
+			writer.write( buffer, 0, count );
+			int wrote = count;
+			count = 0;
+			wrote( wrote );
+		}
+	}
+
+	/**
+	 * Accounts for characters written to the underlying writer, flushing it if
+	 * the policy calls for it.
+	 *
+	 * @param length
+	 *        The number of characters
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private void wrote( int length ) throws IOException
+	{
+		unflushed += length;
+		if( ( flushPolicy == FlushPolicy.IMMEDIATE ) || ( ( flushPolicy == FlushPolicy.THRESHOLD ) && ( unflushed >= flushThreshold ) ) )
+		{
+			writer.flush();
+			unflushed = 0;
+		}
+	}
+
+	/**
+	 * Drains the buffer if the flush threshold was reached.
+	 *
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private void checkThreshold() throws IOException
+	{
+		if( ( flushPolicy == FlushPolicy.THRESHOLD ) && ( count + unflushed >= flushThreshold ) )
+			drain();
+	}
+
+	/**
+	 * Returns the buffer to the pool.
+	 */
+	private void recycle()
+	{
+		if( buffer != null )
+		{
+			if( pooled.incrementAndGet() <= MAXIMUM_POOLED )
+				pool.offer( buffer );
+			else
+				pooled.decrementAndGet();
+			buffer = null;
+			count = 0;
+		}
+	}
+}
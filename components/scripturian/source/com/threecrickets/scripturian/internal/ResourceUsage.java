@@ -0,0 +1,274 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the CPU time used and the bytes allocated by the current thread
+ * during an execution or entry, using the JVM's {@link ThreadMXBean}.
+ * <p>
+ * Measurements nest: each one knows the measurement that was ongoing in the
+ * thread when it started, so that the include chain can be reconstructed.
+ * Figures are inclusive of nested measurements.
+ * <p>
+ * Allocation measurement requires a JVM that supports
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}; if
+ * it is not supported, allocated bytes are reported as -1. Likewise for CPU
+ * time.
+ *
+ * @author Tal Liron
+ */
+public class ResourceUsage
+{
+	//
+	// Static attributes
+	//
+
+	/**
+	 * Whether CPU time can be measured.
+	 *
+	 * @return True if supported
+	 */
+	public static boolean isCpuTimeSupported()
+	{
+		return cpuTimeSupported;
+	}
+
+	/**
+	 * Whether allocated bytes can be measured.
+	 *
+	 * @return True if supported
+	 */
+	public static boolean isAllocatedBytesSupported()
+	{
+		return allocatedBytesBean != null;
+	}
+
+	/**
+	 * The innermost ongoing measurement in this thread.
+	 *
+	 * @return The measurement or null
+	 */
+	public static ResourceUsage getCurrent()
+	{
+		return current.get();
+	}
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Starts a measurement in this thread. It must be {@link #stop() stopped}
+	 * in this thread.
+	 *
+	 * @param documentName
+	 *        The name of the executed or entered document
+	 * @return The measurement
+	 */
+	public static ResourceUsage start( String documentName )
+	{
+		ResourceUsage resourceUsage = new ResourceUsage( documentName, current.get() );
+		current.set( resourceUsage );
+		return resourceUsage;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The name of the executed or entered document.
+	 *
+	 * @return The document name
+	 */
+	public String getDocumentName()
+	{
+		return documentName;
+	}
+
+	/**
+	 * The measurement that was ongoing in the thread when this one started,
+	 * usually that of the including document.
+	 *
+	 * @return The parent or null
+	 */
+	public ResourceUsage getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * The document names of this measurement and its parents, outermost first.
+	 *
+	 * @return The include chain
+	 */
+	public String[] getIncludeChain()
+	{
+		int depth = 0;
+		for( ResourceUsage resourceUsage = this; resourceUsage != null; resourceUsage = resourceUsage.parent )
+			depth++;
+		String[] includeChain = new String[depth];
+		for( ResourceUsage resourceUsage = this; resourceUsage != null; resourceUsage = resourceUsage.parent )
+			includeChain[--depth] = resourceUsage.documentName;
+		return includeChain;
+	}
+
+	/**
+	 * The CPU time used, available once stopped.
+	 *
+	 * @return The CPU time in nanoseconds, or -1 if not supported
+	 */
+	public long getCpuTime()
+	{
+		return cpuTime;
+	}
+
+	/**
+	 * The bytes allocated, available once stopped.
+	 *
+	 * @return The allocated bytes, or -1 if not supported
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Stops the measurement. Must be called in the measured thread.
+	 */
+	public void stop()
+	{
+		if( cpuTime != -1 )
+			cpuTime = threadBean.getCurrentThreadCpuTime() - cpuTime;
+		if( allocatedBytes != -1 )
+			allocatedBytes = allocatedBytesBean.getThreadAllocatedBytes( Thread.currentThread().getId() ) - allocatedBytes;
+
+		if( parent != null )
+			current.set( parent );
+		else
+			current.remove();
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return "ResourceUsage: " + documentName + ", " + cpuTime + ", " + allocatedBytes;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The innermost ongoing measurement per thread.
+	 */
+	private static final ThreadLocal<ResourceUsage> current = new ThreadLocal<ResourceUsage>();
+
+	/**
+	 * The thread bean.
+	 */
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Whether CPU time is supported and enabled.
+	 */
+	private static final boolean cpuTimeSupported;
+
+	/**
+	 * The thread bean, if it supports allocation measurement.
+	 */
+	private static final com.sun.management.ThreadMXBean allocatedBytesBean;
+
+	static
+	{
+		boolean supported = false;
+		try
+		{
+			if( threadBean.isCurrentThreadCpuTimeSupported() )
+			{
+				if( !threadBean.isThreadCpuTimeEnabled() )
+					threadBean.setThreadCpuTimeEnabled( true );
+				supported = true;
+			}
+		}
+		catch( Exception x )
+		{
+			// Not allowed
+		}
+		cpuTimeSupported = supported;
+
+		com.sun.management.ThreadMXBean bean = null;
+		try
+		{
+			if( threadBean instanceof com.sun.management.ThreadMXBean )
+			{
+				bean = (com.sun.management.ThreadMXBean) threadBean;
+				if( !bean.isThreadAllocatedMemorySupported() )
+					bean = null;
+				else if( !bean.isThreadAllocatedMemoryEnabled() )
+					bean.setThreadAllocatedMemoryEnabled( true );
+			}
+		}
+		catch( Throwable x )
+		{
+			// Not a HotSpot-compatible JVM, or not allowed
+			bean = null;
+		}
+		allocatedBytesBean = bean;
+	}
+
+	/**
+	 * The document name.
+	 */
+	private final String documentName;
+
+	/**
+	 * The parent or null.
+	 */
+	private final ResourceUsage parent;
+
+	/**
+	 * The CPU time at start, and then the CPU time used.
+	 */
+	private long cpuTime;
+
+	/**
+	 * The allocated bytes at start, and then the bytes allocated.
+	 */
+	private long allocatedBytes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param documentName
+	 *        The document name
+	 * @param parent
+	 *        The parent or null
+	 */
+	private ResourceUsage( String documentName, ResourceUsage parent )
+	{
+		this.documentName = documentName;
+		this.parent = parent;
+		cpuTime = cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : -1;
+		allocatedBytes = allocatedBytesBean != null ? allocatedBytesBean.getThreadAllocatedBytes( Thread.currentThread().getId() ) : -1;
+	}
+}
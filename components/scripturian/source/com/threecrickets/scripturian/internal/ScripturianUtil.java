@@ -445,6 +445,77 @@ public abstract class ScripturianUtil
 		}
 	}
 
+	/**
+	 * Calls the parallel version of include on the executable container, which
+	 * is expected to be named as the include command with an "All" suffix, and
+	 * to accept an array of document names. Falls back to including the
+	 * documents one by one if the container does not support it.
+	 * <p>
+	 * Internally uses reflection with caching of looked-up methods.
+	 * 
+	 * @param manager
+	 *        The language manager
+	 * @param executable
+	 *        The executable
+	 * @param executionContext
+	 *        The execution context
+	 * @param documentNames
+	 *        The document names
+	 * @see #containerInclude(LanguageManager, Executable, ExecutionContext,
+	 *      String)
+	 */
+	public static void containerIncludeAll( LanguageManager manager, Executable executable, ExecutionContext executionContext, String... documentNames )
+	{
+		Object container = executable.getContainerService( executionContext );
+		if( container != null )
+		{
+			Class<?> containerClass = container.getClass();
+			Method includeAllMethod = includeAllMethods.get( containerClass );
+			if( includeAllMethod == null )
+			{
+				String containerIncludeCommand = (String) manager.getAttributes().get( LanguageManager.CONTAINER_INCLUDE_COMMAND_ATTRIBUTE );
+				try
+				{
+					includeAllMethod = containerClass.getMethod( containerIncludeCommand + "All", new Class[]
+					{
+						String[].class
+					} );
+					includeAllMethods.put( containerClass, includeAllMethod );
+				}
+				catch( SecurityException x )
+				{
+				}
+				catch( NoSuchMethodException x )
+				{
+				}
+			}
+
+			if( includeAllMethod == null )
+			{
+				for( String documentName : documentNames )
+					containerInclude( manager, executable, executionContext, documentName );
+				return;
+			}
+
+			try
+			{
+				includeAllMethod.invoke( container, new Object[]
+				{
+					documentNames
+				} );
+			}
+			catch( IllegalArgumentException x )
+			{
+			}
+			catch( IllegalAccessException x )
+			{
+			}
+			catch( InvocationTargetException x )
+			{
+			}
+		}
+	}
+
 	/**
 	 * Wraps literal strings in double quotes, escaping special characters with
 	 * backslashes.
@@ -506,6 +577,14 @@ public abstract class ScripturianUtil
 	 */
 	private static final ConcurrentMap<Class<?>, Method> includeMethods = new ConcurrentHashMap<Class<?>, Method>();
 
+	/**
+	 * Cache of container parallel include methods.
+	 * 
+	 * @see #containerIncludeAll(LanguageManager, Executable, ExecutionContext,
+	 *      String...)
+	 */
+	private static final ConcurrentMap<Class<?>, Method> includeAllMethods = new ConcurrentHashMap<Class<?>, Method>();
+
 	/**
 	 * Disallow inheritance.
 	 */
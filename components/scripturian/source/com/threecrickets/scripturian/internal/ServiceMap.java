@@ -0,0 +1,285 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.scripturian.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A map that keeps a modification version, as well as the version at which
+ * each entry was last added or changed, so that consumers can find the entries
+ * that were modified since they last looked.
+ * <p>
+ * Putting the same value (by identity) again does not count as a change.
+ * <p>
+ * Maps can be {@link #fork() forked} cheaply: the fork shares the entries
+ * with the original until either of them is modified.
+ * <p>
+ * This class is not thread-safe, though a map and its forks may be used by
+ * different threads.
+ *
+ * @author Tal Liron
+ */
+public class ServiceMap extends AbstractMap<String, Object>
+{
+	//
+	// Attributes
+	//
+
+	/**
+	 * The modification version. Increases whenever an entry is added, changed
+	 * or removed.
+	 *
+	 * @return The version
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * The entries that were added or changed after a version. Removed entries
+	 * are not included.
+	 *
+	 * @param version
+	 *        The version, or 0 for all entries
+	 * @return The entries
+	 */
+	public Map<String, Object> getModifiedSince( long version )
+	{
+		HashMap<String, Object> modified = new HashMap<String, Object>();
+		for( Entry entry : entries.values() )
+			if( entry.version > version )
+				modified.put( entry.key, entry.value );
+		return modified;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Creates a copy of this map, which shares the entries until either map is
+	 * modified. The copy has the same version as this map.
+	 *
+	 * @return The copy
+	 */
+	public ServiceMap fork()
+	{
+		ServiceMap fork = new ServiceMap();
+		fork.entries = entries;
+		fork.version = version;
+		fork.shared = true;
+		shared = true;
+		return fork;
+	}
+
+	//
+	// Map
+	//
+
+	@Override
+	public int size()
+	{
+		return entries.size();
+	}
+
+	@Override
+	public boolean containsKey( Object key )
+	{
+		return entries.containsKey( key );
+	}
+
+	@Override
+	public Object get( Object key )
+	{
+		Entry entry = entries.get( key );
+		return entry != null ? entry.value : null;
+	}
+
+	@Override
+	public Object put( String key, Object value )
+	{
+		Entry entry = entries.get( key );
+		if( entry == null )
+		{
+			own();
+			entries.put( key, new Entry( key, value, ++version ) );
+			return null;
+		}
+
+		Object old = entry.value;
+		if( old != value )
+		{
+			own();
+			entry = entries.get( key );
+			entry.value = value;
+			entry.version = ++version;
+		}
+		return old;
+	}
+
+	@Override
+	public Object remove( Object key )
+	{
+		if( !entries.containsKey( key ) )
+			return null;
+		own();
+		Entry entry = entries.remove( key );
+		version++;
+		return entry.value;
+	}
+
+	@Override
+	public void clear()
+	{
+		if( !entries.isEmpty() )
+		{
+			if( shared )
+			{
+				entries = new HashMap<String, Entry>();
+				shared = false;
+			}
+			else
+				entries.clear();
+			version++;
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		return entrySet;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The entries.
+	 */
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * Whether the entries are shared with a fork.
+	 */
+	private boolean shared;
+
+	/**
+	 * The entry set view.
+	 */
+	private final Set<Map.Entry<String, Object>> entrySet = new AbstractSet<Map.Entry<String, Object>>()
+	{
+		@Override
+		public int size()
+		{
+			return entries.size();
+		}
+
+		@Override
+		public void clear()
+		{
+			ServiceMap.this.clear();
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, Object>> iterator()
+		{
+			final HashMap<String, Entry> iterated = entries;
+			final Iterator<Entry> iterator = iterated.values().iterator();
+			return new Iterator<Map.Entry<String, Object>>()
+			{
+				public boolean hasNext()
+				{
+					return iterator.hasNext();
+				}
+
+				public Map.Entry<String, Object> next()
+				{
+					final String key = ( current = iterator.next() ).key;
+					return new AbstractMap.SimpleEntry<String, Object>( key, current.value )
+					{
+						@Override
+						public Object setValue( Object value )
+						{
+							super.setValue( value );
+							return put( key, value );
+						}
+
+						private static final long serialVersionUID = 1L;
+					};
+				}
+
+				public void remove()
+				{
+					if( current == null )
+						throw new IllegalStateException();
+					if( ( entries == iterated ) && !shared )
+						iterator.remove();
+					else
+					{
+						// The entries we are iterating are no longer ours
+						own();
+						entries.remove( current.key );
+					}
+					current = null;
+					version++;
+				}
+
+				private Entry current;
+			};
+		}
+	};
+
+	/**
+	 * The modification version.
+	 */
+	private long version;
+
+	/**
+	 * Copies the entries if they are shared with a fork.
+	 */
+	private void own()
+	{
+		if( shared )
+		{
+			HashMap<String, Entry> entries = new HashMap<String, Entry>();
+			for( Entry entry : this.entries.values() )
+				entries.put( entry.key, new Entry( entry.key, entry.value, entry.version ) );
+			this.entries = entries;
+			shared = false;
+		}
+	}
+
+	/**
+	 * An entry with the version at which it was last modified.
+	 */
+	private static class Entry
+	{
+		public Entry( String key, Object value, long version )
+		{
+			this.key = key;
+			this.value = value;
+			this.version = version;
+		}
+
+		private final String key;
+
+		private Object value;
+
+		private long version;
+	}
+}
@@ -48,7 +48,7 @@ public class SwitchableOutputStream extends OutputStream
 	 * Switch the underlying output stream.
 	 * 
 	 * @param outputStream
-	 *        The output stream
+	 *        The output stream, or null to discard output
 	 */
 	public void use( OutputStream outputStream )
 	{
@@ -62,7 +62,25 @@ public class SwitchableOutputStream extends OutputStream
 	@Override
 	public void write( int b ) throws IOException
 	{
-		outputStream.write( b );
+		OutputStream outputStream = this.outputStream;
+		if( outputStream != null )
+			outputStream.write( b );
+	}
+
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException
+	{
+		OutputStream outputStream = this.outputStream;
+		if( outputStream != null )
+			outputStream.write( b, off, len );
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		OutputStream outputStream = this.outputStream;
+		if( outputStream != null )
+			outputStream.flush();
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -12,11 +12,21 @@
 package com.threecrickets.scripturian.service;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
@@ -35,6 +45,11 @@ import com.threecrickets.scripturian.parser.ScriptletsParser;
 
 /**
  * This is the <code>document</code> service exposed by a {@link Shell}.
+ * <p>
+ * Documents executed or included while another document is executing in the
+ * same thread are automatically added to its
+ * {@link DocumentDescriptor#getDependencies() dependencies}, which are
+ * replaced by those used on each execution.
  * 
  * @author Tal Liron
  * @see Main
@@ -143,6 +158,30 @@ public class DocumentService
 			( (DocumentFileSource<Executable>) source ).setPreferredExtension( preferredExtension );
 	}
 
+	/**
+	 * The executor used by {@link #includeAll(String...)}. Defaults to a
+	 * shared pool of daemon threads, which grows as needed so that nested
+	 * parallel inclusions cannot starve it.
+	 * 
+	 * @return The executor
+	 * @see #setExecutor(Executor)
+	 */
+	public Executor getExecutor()
+	{
+		Executor executor = this.executor;
+		return executor != null ? executor : getDefaultExecutor();
+	}
+
+	/**
+	 * @param executor
+	 *        The executor, or null to use the default
+	 * @see #getExecutor()
+	 */
+	public void setExecutor( Executor executor )
+	{
+		this.executor = executor;
+	}
+
 	//
 	// Operations
 	//
@@ -165,8 +204,7 @@ public class DocumentService
 	 */
 	public void execute( String documentName ) throws ParsingException, ExecutionException, DocumentException, IOException
 	{
-		Executable executable = getDocumentDescriptor( documentName, ProgramParser.NAME ).getDocument();
-		executable.execute( executionContext, this, shell.getExecutionController() );
+		execute( getDocumentDescriptor( documentName, ProgramParser.NAME ) );
 	}
 
 	/**
@@ -188,6 +226,13 @@ public class DocumentService
 	{
 		if( markExecuted( documentName, true ) )
 			execute( documentName );
+		else
+		{
+			// We still depend on it
+			DocumentDescriptor<Executable> including = currentDocumentDescriptor.get();
+			if( including != null )
+				dependOn( including, getDocumentDescriptor( documentName, ProgramParser.NAME ) );
+		}
 	}
 
 	/**
@@ -228,6 +273,15 @@ public class DocumentService
 		{
 			@SuppressWarnings("unchecked")
 			Set<String> executed = (Set<String>) executionContext.getAttributes().get( EXECUTED_ATTRIBUTE );
+			if( executed == null )
+			{
+				// Contexts created without this service (such as lazily
+				// created enterable contexts)
+				if( executionContext.isImmutable() )
+					return true;
+				executed = new HashSet<String>();
+				executionContext.getAttributes().put( EXECUTED_ATTRIBUTE, executed );
+			}
 
 			return wasExecuted ? executed.add( documentName ) : executed.remove( documentName );
 		}
@@ -253,8 +307,128 @@ public class DocumentService
 	 */
 	public void include( String documentName ) throws ParsingException, ExecutionException, DocumentException, IOException
 	{
-		Executable executable = getDocumentDescriptor( documentName, ScriptletsParser.NAME ).getDocument();
-		executable.execute( executionContext, this, shell.getExecutionController() );
+		execute( getDocumentDescriptor( documentName, ScriptletsParser.NAME ) );
+	}
+
+	/**
+	 * As {@link #include(String)} for several documents, but executes them
+	 * concurrently. Each document is executed in a
+	 * {@link ExecutionContext#fork() fork} of the current execution context,
+	 * with its output buffered, and the outputs are written in the order of
+	 * the document names. Documents should thus be independent of each other:
+	 * changes they make to services and attributes are not visible to each
+	 * other or to the current execution context.
+	 * <p>
+	 * All documents are retrieved before any is executed. If some executions
+	 * fail, waits for the others and throws the failure of the first document
+	 * to fail in order, after writing the outputs of the documents before it.
+	 * 
+	 * @param documentNames
+	 *        The document names
+	 * @throws ParsingException
+	 *         In case of a parsing error
+	 * @throws ExecutionException
+	 *         In case of an execution error
+	 * @throws DocumentException
+	 *         In case of a document retrieval error
+	 * @throws IOException
+	 *         In case of a writing error
+	 * @see #getExecutor()
+	 */
+	public void includeAll( String... documentNames ) throws ParsingException, ExecutionException, DocumentException, IOException
+	{
+		if( documentNames.length < 2 )
+		{
+			for( String documentName : documentNames )
+				include( documentName );
+			return;
+		}
+
+		DocumentDescriptor<Executable> including = currentDocumentDescriptor.get();
+		List<DocumentDescriptor<Executable>> documentDescriptors = new ArrayList<DocumentDescriptor<Executable>>( documentNames.length );
+		Executable[] executables = new Executable[documentNames.length];
+		for( int i = 0; i < documentNames.length; i++ )
+		{
+			DocumentDescriptor<Executable> documentDescriptor = getDocumentDescriptor( documentNames[i], ScriptletsParser.NAME );
+			documentDescriptors.add( documentDescriptor );
+			executables[i] = documentDescriptor.getDocument();
+			if( including != null )
+				dependOn( including, documentDescriptor );
+		}
+
+		ExecutionContext executionContext = getExecutionContext();
+		@SuppressWarnings("unchecked")
+		Set<String> executed = (Set<String>) executionContext.getAttributes().get( EXECUTED_ATTRIBUTE );
+		Executor executor = getExecutor();
+
+		int length = executables.length;
+		StringWriter[] outputs = new StringWriter[length];
+		ExecutionContext[] forks = new ExecutionContext[length];
+		List<Future<Void>> futures = new ArrayList<Future<Void>>( length );
+		try
+		{
+			for( int i = 0; i < length; i++ )
+			{
+				outputs[i] = new StringWriter();
+				forks[i] = executionContext.fork( outputs[i] );
+				forks[i].getAttributes().put( EXECUTED_ATTRIBUTE, executed != null ? new HashSet<String>( executed ) : new HashSet<String>() );
+				futures.add( executables[i].executeAsync( forks[i], this, shell.getExecutionController(), new IncludingExecutor( executor, documentDescriptors.get( i ) ) ) );
+			}
+		}
+		finally
+		{
+			// Don't leave a partial fork behind if submission failed
+			for( int i = futures.size(); i < length; i++ )
+				if( forks[i] != null )
+					forks[i].release();
+		}
+
+		Throwable failure = null;
+		Writer writer = executionContext.getWriterOrDefault();
+		for( int i = 0; i < length; i++ )
+		{
+			try
+			{
+				futures.get( i ).get();
+				if( failure == null )
+					writer.write( outputs[i].toString() );
+			}
+			catch( InterruptedException x )
+			{
+				Thread.currentThread().interrupt();
+				if( failure == null )
+					failure = new ExecutionException( documentNames[i], "Interrupted while waiting for inclusion", x );
+			}
+			catch( java.util.concurrent.ExecutionException x )
+			{
+				if( failure == null )
+					failure = x.getCause();
+			}
+			finally
+			{
+				try
+				{
+					forks[i].release();
+				}
+				catch( IllegalStateException x )
+				{
+					// Already released
+				}
+			}
+		}
+
+		if( failure instanceof ParsingException )
+			throw (ParsingException) failure;
+		else if( failure instanceof ExecutionException )
+			throw (ExecutionException) failure;
+		else if( failure instanceof IOException )
+			throw (IOException) failure;
+		else if( failure instanceof RuntimeException )
+			throw (RuntimeException) failure;
+		else if( failure instanceof Error )
+			throw (Error) failure;
+		else if( failure != null )
+			throw new ExecutionException( failure.getMessage(), failure );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -265,6 +439,11 @@ public class DocumentService
 	 */
 	private static final String EXECUTED_ATTRIBUTE = DocumentService.class.getCanonicalName() + ".executed";
 
+	/**
+	 * The document executing in this thread via a document service.
+	 */
+	private static final ThreadLocal<DocumentDescriptor<Executable>> currentDocumentDescriptor = new ThreadLocal<DocumentDescriptor<Executable>>();
+
 	/**
 	 * The main instance.
 	 */
@@ -280,6 +459,146 @@ public class DocumentService
 	 */
 	private String defaultLanguageTag = "javascript";
 
+	/**
+	 * The executor for parallel inclusions, or null to use the default.
+	 */
+	private volatile Executor executor;
+
+	/**
+	 * The default executor for parallel inclusions.
+	 */
+	private static ExecutorService defaultExecutor;
+
+	/**
+	 * The default executor for parallel inclusions, created on demand.
+	 * 
+	 * @return The default executor
+	 */
+	private static synchronized Executor getDefaultExecutor()
+	{
+		if( defaultExecutor == null )
+		{
+			defaultExecutor = Executors.newCachedThreadPool( new ThreadFactory()
+			{
+				public Thread newThread( Runnable runnable )
+				{
+					Thread thread = new Thread( runnable, "Scripturian Inclusion " + counter.incrementAndGet() );
+					thread.setDaemon( true );
+					return thread;
+				}
+
+				private final AtomicInteger counter = new AtomicInteger();
+			} );
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * The execution context of this thread, falling back to the one this
+	 * service was created for. This allows the service to be shared by
+	 * execution contexts created for the same executable, such as pooled
+	 * enterable contexts.
+	 * 
+	 * @return The execution context
+	 */
+	private ExecutionContext getExecutionContext()
+	{
+		ExecutionContext executionContext = ExecutionContext.getCurrent();
+		return executionContext != null ? executionContext : this.executionContext;
+	}
+
+	/**
+	 * Executes a document, recording it as a dependency of the document that
+	 * is executing in this thread, if there is one.
+	 * 
+	 * @param documentDescriptor
+	 *        The document descriptor
+	 * @throws ParsingException
+	 *         In case of a parsing error
+	 * @throws ExecutionException
+	 *         In case of an execution error
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private void execute( DocumentDescriptor<Executable> documentDescriptor ) throws ParsingException, ExecutionException, IOException
+	{
+		DocumentDescriptor<Executable> including = currentDocumentDescriptor.get();
+		if( including != null )
+			dependOn( including, documentDescriptor );
+
+		currentDocumentDescriptor.set( documentDescriptor );
+		try
+		{
+			documentDescriptor.getDocument().execute( getExecutionContext(), this, shell.getExecutionController() );
+		}
+		finally
+		{
+			if( including != null )
+				currentDocumentDescriptor.set( including );
+			else
+				currentDocumentDescriptor.remove();
+		}
+	}
+
+	/**
+	 * Records a dependency of a document. Dependencies are only added here;
+	 * they are dropped when the document is invalidated, because its
+	 * replacement starts with none.
+	 * 
+	 * @param documentDescriptor
+	 *        The document descriptor
+	 * @param dependency
+	 *        The dependency
+	 */
+	private static void dependOn( DocumentDescriptor<Executable> documentDescriptor, DocumentDescriptor<Executable> dependency )
+	{
+		// Usually already there, in which case this is only a read
+		Set<DocumentDescriptor<Executable>> dependencies = documentDescriptor.getDependencies();
+		if( !dependencies.contains( dependency ) )
+			dependencies.add( dependency );
+	}
+
+	/**
+	 * Runs tasks with a document as the one executing in the thread, so that
+	 * documents included by documents executing asynchronously are recorded
+	 * as their dependencies.
+	 */
+	private static class IncludingExecutor implements Executor
+	{
+		private IncludingExecutor( Executor executor, DocumentDescriptor<Executable> documentDescriptor )
+		{
+			this.executor = executor;
+			this.documentDescriptor = documentDescriptor;
+		}
+
+		public void execute( final Runnable command )
+		{
+			executor.execute( new Runnable()
+			{
+				public void run()
+				{
+					DocumentDescriptor<Executable> including = currentDocumentDescriptor.get();
+					currentDocumentDescriptor.set( documentDescriptor );
+					try
+					{
+						command.run();
+					}
+					finally
+					{
+						if( including != null )
+							currentDocumentDescriptor.set( including );
+						else
+							currentDocumentDescriptor.remove();
+					}
+				}
+			} );
+		}
+
+		private final Executor executor;
+
+		private final DocumentDescriptor<Executable> documentDescriptor;
+	}
+
 	/**
 	 * Fetches a document descriptor from the main source or one of the library
 	 * sources.